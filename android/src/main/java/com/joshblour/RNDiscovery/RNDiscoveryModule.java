@@ -22,21 +22,54 @@ import com.facebook.react.bridge.ReactContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 import com.facebook.react.bridge.Callback;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableMapKeySetIterator;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
+import com.joshblour.discovery.AdvertiserService;
 import com.joshblour.discovery.BLEUser;
 import com.joshblour.discovery.Discovery;
-
+import com.joshblour.discovery.DiscoveryMetrics;
+import com.joshblour.discovery.DistanceEstimator;
+import com.joshblour.discovery.EasedRssiFilter;
+import com.joshblour.discovery.ExponentialRssiFilter;
+import com.joshblour.discovery.IdentityCache;
+import com.joshblour.discovery.LatencyHistogram;
+import com.joshblour.discovery.KalmanRssiFilter;
+import com.joshblour.discovery.MedianRssiFilter;
+import com.joshblour.discovery.RssiFilter;
+import com.joshblour.discovery.ScanFilterSpec;
+
+import java.io.File;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+public class RNDiscoveryModule extends ReactContextBaseJavaModule implements Discovery.DiscoveryCallback, Discovery.ScanCycleListener, LifecycleEventListener {
+
+    private static final String EVENT_MODE_FULL = "full";
+    private static final String EVENT_MODE_DELTA = "delta";
+
+    private static final String SCAN_FILTER_MODE_NONE = "none";
+    private static final String SCAN_FILTER_MODE_FILTERED = "filtered";
+    private static final String SCAN_FILTER_MODE_HYBRID = "hybrid";
 
+    private static final String RSSI_FILTER_EASED = "eased";
+    private static final String RSSI_FILTER_EXPONENTIAL = "exponential";
+    private static final String RSSI_FILTER_KALMAN = "kalman";
+    private static final String RSSI_FILTER_MEDIAN = "median";
 
-public class RNDiscoveryModule extends ReactContextBaseJavaModule implements Discovery.DiscoveryCallback, LifecycleEventListener {
+    private static final String SCAN_LOG_DIRECTORY = "rndiscovery-scans";
 
     private static Discovery mDiscovery;
     private static ParcelUuid mDiscoveryUUID;
@@ -44,11 +77,18 @@ public class RNDiscoveryModule extends ReactContextBaseJavaModule implements Dis
     private int mWaitForSeconds;
     private boolean initialized;
 
+    // in delta mode "discoveredUsersDelta" replaces "discoveredUsers"
+    private volatile boolean mDeltaEvents;
+    private final AtomicBoolean mResyncRequested = new AtomicBoolean(true);
+    private final UserDeltaTracker mDeltaTracker = new UserDeltaTracker();
+
     private final BroadcastReceiver mBleStateReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             if (intent.getAction().equals(BluetoothAdapter.ACTION_STATE_CHANGED)) {
                 handleStateChange(intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR));
+            } else if (intent.getAction().equals(AdvertiserService.ADVERTISING_MODE_CHANGED)) {
+                handleAdvertisingModeChange(intent.getStringExtra(AdvertiserService.ADVERTISING_MODE_CHANGED_EXTRA_MODE));
             }
         }
     };
@@ -71,10 +111,15 @@ public class RNDiscoveryModule extends ReactContextBaseJavaModule implements Dis
     public void initialize(String uuid, String service, Promise promise) {
         // Register for broadcasts on BluetoothAdapter state change
         IntentFilter filter = new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED);
+        filter.addAction(AdvertiserService.ADVERTISING_MODE_CHANGED);
         getReactApplicationContext().registerReceiver(mBleStateReceiver, filter);
 
         mDiscoveryUUID = ParcelUuid.fromString(uuid);
+        // every Discovery owns a thread, don't leak the previous one
+        if (mDiscovery != null)
+            mDiscovery.release();
         mDiscovery =  new Discovery(getReactApplicationContext(), mDiscoveryUUID, service, Discovery.DIStartOptions.DIStartNone, this);
+        mDiscovery.setScanCycleListener(this);
         initialized = true;
 
         getReactApplicationContext().addLifecycleEventListener(this);
@@ -107,13 +152,25 @@ public class RNDiscoveryModule extends ReactContextBaseJavaModule implements Dis
         }
     }
 
+    public void handleAdvertisingModeChange(String mode) {
+        WritableMap params = Arguments.createMap();
+        params.putString("mode", mode);
+
+        getReactApplicationContext()
+                .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit("advertisingModeChanged", params);
+    }
+
     @Override
     public void didUpdateUsers(ArrayList<BLEUser> users, Boolean usersChanged) {
-        WritableArray usersArray = Arguments.createArray();
-        for (BLEUser user : users) {
-            usersArray.pushMap(convertBLEUserToMap(user));
+        if (mDeltaEvents) {
+            emitUsersDelta(users, usersChanged);
+            return;
         }
 
+        long start = System.nanoTime();
+        WritableArray usersArray = convertBLEUsersToArray(users);
+
         WritableMap params = Arguments.createMap();
         params.putArray("users", usersArray);
         params.putBoolean("usersChanged", usersChanged);
@@ -122,6 +179,284 @@ public class RNDiscoveryModule extends ReactContextBaseJavaModule implements Dis
         getReactApplicationContext()
                 .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
                 .emit("discoveredUsers", params);
+        DiscoveryMetrics.get().recordBridgeEmit((System.nanoTime() - start) / 1000, users.size());
+    }
+
+    @Override
+    public void onScanCycleChanged(boolean scanning, long scanForMillis, long waitForMillis, double churnRate) {
+        WritableMap params = Arguments.createMap();
+        params.putBoolean("scanning", scanning);
+        params.putDouble("scanForMillis", scanForMillis);
+        params.putDouble("waitForMillis", waitForMillis);
+        params.putDouble("churnRate", churnRate);
+
+        getReactApplicationContext()
+                .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit("scanCycleChanged", params);
+    }
+
+    // emits only the users that were added, changed or removed since the previous delta.
+    // a reset delta carries every user in "added" and tells JS to drop what it had.
+    private void emitUsersDelta(ArrayList<BLEUser> users, boolean usersChanged) {
+        // cleared in the same step it's read, so a resync requested meanwhile isn't lost
+        boolean reset = mResyncRequested.getAndSet(false);
+
+        mDeltaTracker.update(users, reset);
+        if (!reset && mDeltaTracker.isEmpty())
+            return;
+
+        long start = System.nanoTime();
+        WritableArray removedArray = Arguments.createArray();
+        for (String peripheralId : mDeltaTracker.removed) {
+            removedArray.pushString(peripheralId);
+        }
+
+        WritableMap params = Arguments.createMap();
+        params.putDouble("seq", mDeltaTracker.nextSequence());
+        params.putBoolean("reset", reset);
+        params.putArray("added", convertBLEUsersToArray(mDeltaTracker.added));
+        params.putArray("changed", convertBLEUsersToArray(mDeltaTracker.changed));
+        params.putArray("removed", removedArray);
+        params.putBoolean("usersChanged", usersChanged);
+        params.putString("uuid", mDiscoveryUUID.toString());
+
+        getReactApplicationContext()
+                .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit("discoveredUsersDelta", params);
+        DiscoveryMetrics.get().recordBridgeEmit((System.nanoTime() - start) / 1000,
+                mDeltaTracker.added.size() + mDeltaTracker.changed.size() + mDeltaTracker.removed.size());
+    }
+
+    /**
+     * Chooses how user updates are sent to JS:
+     * "full" emits "discoveredUsers" with the whole list (default),
+     * "delta" emits "discoveredUsersDelta" with the added, changed and removed users only.
+     */
+    @ReactMethod
+    public void setEventMode(String eventMode, Promise promise) {
+        if (EVENT_MODE_DELTA.equals(eventMode)) {
+            if (!mDeltaEvents) {
+                mResyncRequested.set(true);
+                mDeltaEvents = true;
+            }
+            promise.resolve(true);
+        } else if (EVENT_MODE_FULL.equals(eventMode)) {
+            mDeltaEvents = false;
+            promise.resolve(true);
+        } else {
+            promise.reject("unknown event mode: " + eventMode);
+        }
+    }
+
+    /**
+     * In delta mode, makes the next "discoveredUsersDelta" a reset carrying every user, and triggers it.
+     */
+    @ReactMethod
+    public void requestResync(Promise promise) {
+        if (initialized) {
+            mResyncRequested.set(true);
+            mDiscovery.updateList(false);
+            promise.resolve(true);
+        }else{
+            promise.reject("discovery not initialized");
+        }
+    }
+
+    /**
+     * Resolves with up to count identified users, closest first.
+     */
+    @ReactMethod
+    public void getClosestUsers(final int count, final Promise promise) {
+        if (initialized) {
+            final Discovery discovery = mDiscovery;
+            discovery.runOnDiscoveryThread(new Runnable() {
+                @Override
+                public void run() {
+                    promise.resolve(convertBLEUsersToArray(discovery.getClosestUsers(count)));
+                }
+            });
+        }else{
+            promise.reject("discovery not initialized");
+        }
+    }
+
+    /**
+     * Resolves with the identified users whose proximity is at least minProximity (dBm), closest first.
+     */
+    @ReactMethod
+    public void getUsersWithProximityAtLeast(final int minProximity, final Promise promise) {
+        if (initialized) {
+            final Discovery discovery = mDiscovery;
+            discovery.runOnDiscoveryThread(new Runnable() {
+                @Override
+                public void run() {
+                    promise.resolve(convertBLEUsersToArray(discovery.getUsersWithProximityAtLeast(minProximity)));
+                }
+            });
+        }else{
+            promise.reject("discovery not initialized");
+        }
+    }
+
+    /**
+     * Resolves with the counters of the identity cache, which saves GATT connections to known peers:
+     * hits, misses, avoidedConnections and size.
+     */
+    @ReactMethod
+    public void getIdentityCacheStats(final Promise promise) {
+        if (initialized) {
+            final Discovery discovery = mDiscovery;
+            discovery.runOnDiscoveryThread(new Runnable() {
+                @Override
+                public void run() {
+                    IdentityCache cache = discovery.getIdentityCache();
+                    WritableMap stats = Arguments.createMap();
+                    stats.putDouble("hits", cache.getHitCount());
+                    stats.putDouble("misses", cache.getMissCount());
+                    stats.putDouble("avoidedConnections", cache.getAvoidedConnectionCount());
+                    stats.putInt("size", cache.size());
+                    promise.resolve(stats);
+                }
+            });
+        }else{
+            promise.reject("discovery not initialized");
+        }
+    }
+
+    /**
+     * Resolves with the time it took to identify devices over GATT, from the connection attempt, in
+     * milliseconds: count, min, max, mean, p50, p90, p99 and buckets, the counts of latencies up to
+     * each bucket's bound (null for the last one).
+     */
+    @ReactMethod
+    public void getIdentificationLatency(Promise promise) {
+        if (initialized) {
+            promise.resolve(convertHistogramToMap(mDiscovery.getIdentificationLatency()));
+        }else{
+            promise.reject("discovery not initialized");
+        }
+    }
+
+    /**
+     * Resolves with the metrics of the discovery pipeline since they were last reset:
+     * - scanResults: matched (devices that are or may be peers) and unmatched, in total and per second
+     * - registrySize: the devices tracked as of the last update
+     * - updateList: the time it took to send updates, in microseconds
+     * - bridgeEmit: the emitted events (count, users, maxUsers) and the time they took, in microseconds
+     * - gatt: connect, discover, read and identify latencies, in milliseconds
+     * - advertiser: restarts and failures
+     * Durations are histograms, as resolved by getIdentificationLatency.
+     */
+    @ReactMethod
+    public void getMetrics(Promise promise) {
+        DiscoveryMetrics metrics = DiscoveryMetrics.get();
+        WritableMap result = Arguments.createMap();
+        result.putDouble("elapsedMillis", metrics.getElapsedMillis());
+
+        double seconds = Math.max(1, metrics.getElapsedMillis()) / 1000.0;
+        WritableMap scanResults = Arguments.createMap();
+        scanResults.putDouble("matched", metrics.getMatchedScanResults());
+        scanResults.putDouble("unmatched", metrics.getUnmatchedScanResults());
+        scanResults.putDouble("matchedPerSecond", metrics.getMatchedScanResults() / seconds);
+        scanResults.putDouble("unmatchedPerSecond", metrics.getUnmatchedScanResults() / seconds);
+        scanResults.putDouble("perSecond", metrics.getScanResultsPerSecond());
+        result.putMap("scanResults", scanResults);
+
+        result.putDouble("registrySize", metrics.getRegistrySize());
+        result.putMap("updateList", convertHistogramToMap(metrics.getUpdateListMicros()));
+
+        WritableMap bridgeEmit = Arguments.createMap();
+        bridgeEmit.putDouble("count", metrics.getBridgeEmits());
+        bridgeEmit.putDouble("users", metrics.getBridgeEmittedUsers());
+        bridgeEmit.putDouble("maxUsers", metrics.getBridgeMaxEmittedUsers());
+        bridgeEmit.putMap("duration", convertHistogramToMap(metrics.getBridgeEmitMicros()));
+        result.putMap("bridgeEmit", bridgeEmit);
+
+        WritableMap gatt = Arguments.createMap();
+        gatt.putMap("connect", convertHistogramToMap(metrics.getGattConnectLatency()));
+        gatt.putMap("discover", convertHistogramToMap(metrics.getGattDiscoverLatency()));
+        gatt.putMap("read", convertHistogramToMap(metrics.getGattReadLatency()));
+        gatt.putMap("identify", convertHistogramToMap(metrics.getGattIdentifyLatency()));
+        result.putMap("gatt", gatt);
+
+        WritableMap advertiser = Arguments.createMap();
+        advertiser.putDouble("restarts", metrics.getAdvertiserRestarts());
+        advertiser.putDouble("failures", metrics.getAdvertiserFailures());
+        result.putMap("advertiser", advertiser);
+
+        promise.resolve(result);
+    }
+
+    /*
+     * Zeroes the metrics resolved by getMetrics and getIdentificationLatency.
+     */
+    @ReactMethod
+    public void resetMetrics(Promise promise) {
+        DiscoveryMetrics.get().reset();
+        promise.resolve(true);
+    }
+
+    /*
+     * Records the scan results to a log of rotating segments of segmentKilobytes, keeping the last
+     * maxSegments, to replay them off-device with ScanReplayer. Resolves with the log's directory.
+     */
+    @ReactMethod
+    public void startRecording(int segmentKilobytes, int maxSegments, Promise promise) {
+        if (initialized) {
+            File directory = new File(getReactApplicationContext().getFilesDir(), SCAN_LOG_DIRECTORY);
+            try {
+                mDiscovery.startRecording(directory, segmentKilobytes * 1024, maxSegments);
+                promise.resolve(directory.getAbsolutePath());
+            } catch (IOException e) {
+                promise.reject("couldn't start recording", e);
+            }
+        }else{
+            promise.reject("discovery not initialized");
+        }
+    }
+
+    @ReactMethod
+    public void stopRecording(Promise promise) {
+        if (initialized) {
+            mDiscovery.stopRecording();
+            promise.resolve(true);
+        }else{
+            promise.reject("discovery not initialized");
+        }
+    }
+
+    private WritableMap convertHistogramToMap(LatencyHistogram histogram) {
+        WritableMap latency = Arguments.createMap();
+        latency.putDouble("count", histogram.getCount());
+        latency.putDouble("min", histogram.getMin());
+        latency.putDouble("max", histogram.getMax());
+        latency.putDouble("mean", histogram.getMean());
+        latency.putDouble("p50", histogram.getPercentile(50));
+        latency.putDouble("p90", histogram.getPercentile(90));
+        latency.putDouble("p99", histogram.getPercentile(99));
+
+        WritableArray buckets = Arguments.createArray();
+        long[] counts = histogram.getBucketCounts();
+        for (int i = 0; i < counts.length; i++) {
+            WritableMap bucket = Arguments.createMap();
+            if (i < histogram.getBucketCount()) {
+                bucket.putDouble("le", histogram.getBucketBound(i));
+            } else {
+                bucket.putNull("le");
+            }
+            bucket.putDouble("count", counts[i]);
+            buckets.pushMap(bucket);
+        }
+        latency.putArray("buckets", buckets);
+        return latency;
+    }
+
+    private WritableArray convertBLEUsersToArray(List<BLEUser> users) {
+        WritableArray usersArray = Arguments.createArray();
+        for (BLEUser user : users) {
+            usersArray.pushMap(convertBLEUserToMap(user));
+        }
+        return usersArray;
     }
 
     private WritableMap convertBLEUserToMap(BLEUser bleUser) {
@@ -132,13 +467,36 @@ public class RNDiscoveryModule extends ReactContextBaseJavaModule implements Dis
         params.putBoolean("identified", bleUser.isIdentified());
         params.putInt("rssi", bleUser.getRssi());
 
-        if (bleUser.getProximity() != null)
+        if (bleUser.hasProximity()) {
             params.putInt("proximity", bleUser.getProximity());
+            // in meters, rounded to the centimeter
+            params.putDouble("distance", Math.round(bleUser.getDistance() * 100) / 100.0);
+        }
+
+        if (bleUser.getZone() != null)
+            params.putString("proximityZone", convertZoneToString(bleUser.getZone()));
+
+        if (bleUser.hasTxPower())
+            params.putInt("txPower", bleUser.getTxPower());
+
+        if (bleUser.getProfile() != null)
+            params.putArray("profile", convertBytesToArray(bleUser.getProfile()));
 
         params.putString("updateTime", getISO8601StringForDate(new Date(bleUser.getUpdateTime())));
         return params;
     }
 
+    private static String convertZoneToString(DistanceEstimator.Zone zone) {
+        switch (zone) {
+            case IMMEDIATE:
+                return "immediate";
+            case NEAR:
+                return "near";
+            default:
+                return "far";
+        }
+    }
+
 
     /**
      * Changing these properties will start/stop advertising/discovery
@@ -153,6 +511,83 @@ public class RNDiscoveryModule extends ReactContextBaseJavaModule implements Dis
         }
     }
 
+    private static WritableArray convertBytesToArray(byte[] bytes) {
+        WritableArray array = Arguments.createArray();
+        for (byte b : bytes) {
+            array.pushInt(b & 0xFF);
+        }
+        return array;
+    }
+
+    /*
+     * Advertises with a BLE 5 advertising set on devices that support it, which carries the profile and
+     * updates it without restarting. Only peers with BLE 5 scanners see extended advertisements.
+     * Falls back to legacy advertising when unsupported; "advertisingModeChanged" reports the mode in use.
+     */
+    @ReactMethod
+    public void setExtendedAdvertising(Boolean extendedAdvertising, Promise promise) {
+        if (initialized) {
+            mDiscovery.setExtendedAdvertising(extendedAdvertising);
+            promise.resolve(true);
+        }else{
+            promise.reject("discovery not initialized");
+        }
+    }
+
+    /*
+     * App defined bytes sent to peers in extended mode, shown as "profile" on their users. null for none.
+     */
+    @ReactMethod
+    public void setAdvertisingProfile(ReadableArray profile, Promise promise) {
+        if (initialized) {
+            mDiscovery.setAdvertisingProfile(profile != null ? convertArrayToBytes(profile) : null);
+            promise.resolve(true);
+        }else{
+            promise.reject("discovery not initialized");
+        }
+    }
+
+    /*
+     * The Bluetooth SIG company id the identity payload is advertised under, 0xFFFF by default.
+     */
+    @ReactMethod
+    public void setCompanyId(int companyId, Promise promise) {
+        if (initialized) {
+            try {
+                mDiscovery.setCompanyId(companyId);
+            } catch (IllegalArgumentException e) {
+                promise.reject("invalid company id", e);
+                return;
+            }
+            promise.resolve(true);
+        }else{
+            promise.reject("discovery not initialized");
+        }
+    }
+
+    /*
+     * Resolves to the mode advertising runs in: "off", "legacy" or "extended".
+     */
+    @ReactMethod
+    public void getAdvertisingMode(Promise promise) {
+        promise.resolve(AdvertiserService.advertisingMode);
+    }
+
+    /*
+     * Peers are identified by the identity payload (service hash and uuid) this device puts in its scan response.
+     * Renaming the bluetooth adapter to the service (the default) also lets older peers match it by name,
+     * at the cost of renaming the phone for every other device. Takes effect the next time advertising starts.
+     */
+    @ReactMethod
+    public void setShouldRenameAdapter(Boolean shouldRenameAdapter, Promise promise) {
+        if (initialized) {
+            mDiscovery.setShouldRenameAdapter(shouldRenameAdapter);
+            promise.resolve(true);
+        }else{
+            promise.reject("discovery not initialized");
+        }
+    }
+
     @ReactMethod
     public void setShouldDiscover(Boolean shouldDiscover, Promise promise) {
         if (initialized) {
@@ -199,6 +634,245 @@ public class RNDiscoveryModule extends ReactContextBaseJavaModule implements Dis
         } 
     }
 
+    /*
+     * The minimum time between two "discoveredUsers" events. Updates that happen in between are merged
+     * into the next event. 0 (the default) only merges the updates caused by a single scan result,
+     * 16 is about one event per frame.
+     */
+    @ReactMethod
+    public void setUpdateIntervalMillis(int updateIntervalMillis, Promise promise) {
+        if (initialized) {
+            mDiscovery.setUpdateIntervalMillis(updateIntervalMillis);
+            promise.resolve(true);
+        }else{
+            promise.reject("discovery not initialized");
+        }
+    }
+
+    /*
+     * Lets the wait between two scan windows adapt to the churn of nearby users instead of always
+     * waiting waitForSeconds: shorter while users come and go, longer while they don't, within
+     * [minWaitMillis, maxWaitMillis]. targetLatencyMillis (0 for none) caps the wait so new devices
+     * are found within that time. Every scan window start and stop is reported with "scanCycleChanged".
+     */
+    @ReactMethod
+    public void setAdaptiveDutyCycle(Boolean enabled, int minWaitMillis, int maxWaitMillis, int targetLatencyMillis, Promise promise) {
+        if (initialized) {
+            if (enabled && (minWaitMillis < 0 || maxWaitMillis < minWaitMillis)) {
+                promise.reject("invalid wait bounds: " + minWaitMillis + " - " + maxWaitMillis);
+                return;
+            }
+
+            mDiscovery.setAdaptiveDutyCycle(enabled, minWaitMillis, maxWaitMillis, targetLatencyMillis);
+            promise.resolve(true);
+        }else{
+            promise.reject("discovery not initialized");
+        }
+    }
+
+    /*
+     * How many devices are connected to at once to identify them, closest first (default 2).
+     * Controllers only have a few connection slots, shared with the phone's other bluetooth peripherals.
+     */
+    @ReactMethod
+    public void setMaxConcurrentGattConnections(int maxConcurrentGattConnections, Promise promise) {
+        if (initialized) {
+            mDiscovery.setMaxConcurrentGattConnections(maxConcurrentGattConnections);
+            promise.resolve(true);
+        }else{
+            promise.reject("discovery not initialized");
+        }
+    }
+
+    /*
+     * Lets the bluetooth controller buffer scan results and deliver them every batchScanDelayMillis,
+     * to save battery in long background sessions. 0 (the default) reports every result right away.
+     * Ignored on devices that don't support offloaded batching. Takes effect at the next scan cycle.
+     */
+    @ReactMethod
+    public void setBatchScanDelayMillis(int batchScanDelayMillis, Promise promise) {
+        if (initialized) {
+            mDiscovery.setBatchScanDelayMillis(batchScanDelayMillis);
+            promise.resolve(true);
+        }else{
+            promise.reject("discovery not initialized");
+        }
+    }
+
+    /*
+     * "none" (the default) reports every advertisement. "filtered" lets the bluetooth controller drop
+     * advertisements that don't match the scan filters. "hybrid" filters too, but makes one scan cycle
+     * out of unfilteredSweepInterval unfiltered, to find peers the filters miss (e.g. iOS apps in the background).
+     */
+    @ReactMethod
+    public void setScanFilterMode(String scanFilterMode, int unfilteredSweepInterval, Promise promise) {
+        if (initialized) {
+            Discovery.ScanFilterMode mode;
+            if (SCAN_FILTER_MODE_NONE.equals(scanFilterMode)) {
+                mode = Discovery.ScanFilterMode.NONE;
+            } else if (SCAN_FILTER_MODE_FILTERED.equals(scanFilterMode)) {
+                mode = Discovery.ScanFilterMode.FILTERED;
+            } else if (SCAN_FILTER_MODE_HYBRID.equals(scanFilterMode)) {
+                mode = Discovery.ScanFilterMode.HYBRID;
+            } else {
+                promise.reject("unknown scan filter mode: " + scanFilterMode);
+                return;
+            }
+
+            mDiscovery.setScanFilterMode(mode, unfilteredSweepInterval);
+            promise.resolve(true);
+        }else{
+            promise.reject("discovery not initialized");
+        }
+    }
+
+    /*
+     * The filters used by the "filtered" and "hybrid" modes. An advertisement matching any of them is reported.
+     * Each filter is a map with any of: serviceUuid, serviceUuidMask, serviceDataUuid, serviceData,
+     * serviceDataMask, manufacturerId, manufacturerData, manufacturerDataMask, deviceName.
+     * Data and masks are arrays of byte values.
+     */
+    @ReactMethod
+    public void setScanFilters(ReadableArray filters, Promise promise) {
+        if (initialized) {
+            List<ScanFilterSpec> specs = new ArrayList<>();
+            try {
+                for (int i = 0; i < filters.size(); i++) {
+                    specs.add(convertMapToScanFilterSpec(filters.getMap(i)));
+                }
+            } catch (IllegalArgumentException e) {
+                promise.reject("invalid scan filter", e);
+                return;
+            }
+
+            mDiscovery.setScanFilters(specs);
+            promise.resolve(true);
+        }else{
+            promise.reject("discovery not initialized");
+        }
+    }
+
+    private ScanFilterSpec convertMapToScanFilterSpec(ReadableMap map) {
+        ScanFilterSpec spec = new ScanFilterSpec();
+
+        if (hasValue(map, "serviceUuid")) {
+            ParcelUuid mask = hasValue(map, "serviceUuidMask") ? ParcelUuid.fromString(map.getString("serviceUuidMask")) : null;
+            spec.setServiceUuid(ParcelUuid.fromString(map.getString("serviceUuid")), mask);
+        }
+
+        if (hasValue(map, "serviceDataUuid")) {
+            spec.setServiceData(ParcelUuid.fromString(map.getString("serviceDataUuid")),
+                    convertArrayToBytes(map, "serviceData"), convertArrayToBytes(map, "serviceDataMask"));
+        }
+
+        if (hasValue(map, "manufacturerId")) {
+            spec.setManufacturerData(map.getInt("manufacturerId"),
+                    convertArrayToBytes(map, "manufacturerData"), convertArrayToBytes(map, "manufacturerDataMask"));
+        }
+
+        if (hasValue(map, "deviceName"))
+            spec.setDeviceName(map.getString("deviceName"));
+
+        if (spec.isEmpty())
+            throw new IllegalArgumentException("a scan filter needs at least one criterion");
+
+        return spec;
+    }
+
+    private static boolean hasValue(ReadableMap map, String key) {
+        return map.hasKey(key) && !map.isNull(key);
+    }
+
+    private static byte[] convertArrayToBytes(ReadableMap map, String key) {
+        if (!hasValue(map, key))
+            return null;
+
+        return convertArrayToBytes(map.getArray(key));
+    }
+
+    private static byte[] convertArrayToBytes(ReadableArray array) {
+        byte[] bytes = new byte[array.size()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) array.getInt(i);
+        }
+        return bytes;
+    }
+
+    /*
+     * How rssi samples are smoothed into the proximity of a user:
+     * "eased" (the default) eases towards every sample by a fixed step, whatever the time between samples.
+     * "exponential" averages with weights halving every halfLifeMillis (default 2000).
+     * "kalman" tracks the rssi as a random walk with processNoise (dBm^2 per second, default 1)
+     * and measurementNoise (dBm^2, default 16).
+     * "median" takes the median of the last windowSize samples (default 5) no older than maxAgeMillis (default 5000, 0 for no limit).
+     * options may be null to use the defaults. Applies to the users already found too.
+     */
+    @ReactMethod
+    public void setRssiFilter(String type, ReadableMap options, Promise promise) {
+        if (initialized) {
+            RssiFilter filter;
+            try {
+                filter = convertToRssiFilter(type, options);
+            } catch (IllegalArgumentException e) {
+                promise.reject("invalid rssi filter", e);
+                return;
+            }
+
+            mDiscovery.setRssiFilter(filter);
+            promise.resolve(true);
+        }else{
+            promise.reject("discovery not initialized");
+        }
+    }
+
+    private static RssiFilter convertToRssiFilter(String type, ReadableMap options) {
+        if (RSSI_FILTER_EASED.equals(type)) {
+            return new EasedRssiFilter();
+        } else if (RSSI_FILTER_EXPONENTIAL.equals(type)) {
+            return new ExponentialRssiFilter((long) getDouble(options, "halfLifeMillis", 2000));
+        } else if (RSSI_FILTER_KALMAN.equals(type)) {
+            return new KalmanRssiFilter((float) getDouble(options, "processNoise", 1),
+                    (float) getDouble(options, "measurementNoise", 16));
+        } else if (RSSI_FILTER_MEDIAN.equals(type)) {
+            return new MedianRssiFilter((int) getDouble(options, "windowSize", 5),
+                    (long) getDouble(options, "maxAgeMillis", 5000));
+        }
+        throw new IllegalArgumentException("unknown rssi filter: " + type);
+    }
+
+    /*
+     * Tunes the distance estimates. environmentFactor is the path loss exponent: 2 in free space,
+     * usually 2.5 to 4 indoors. calibrationOffsets maps device models (android.os.Build.MODEL)
+     * to the offset in dB added to the rssi they measure; only this device's model is used.
+     */
+    @ReactMethod
+    public void setDistanceCalibration(double environmentFactor, ReadableMap calibrationOffsets, Promise promise) {
+        if (initialized) {
+            HashMap<String, Float> offsets = new HashMap<>();
+            if (calibrationOffsets != null) {
+                ReadableMapKeySetIterator iterator = calibrationOffsets.keySetIterator();
+                while (iterator.hasNextKey()) {
+                    String model = iterator.nextKey();
+                    offsets.put(model, (float) calibrationOffsets.getDouble(model));
+                }
+            }
+
+            try {
+                mDiscovery.setDistanceCalibration((float) environmentFactor, offsets);
+            } catch (IllegalArgumentException e) {
+                promise.reject("invalid distance calibration", e);
+                return;
+            }
+            promise.resolve(true);
+        }else{
+            promise.reject("discovery not initialized");
+        }
+    }
+
+    private static double getDouble(ReadableMap map, String key, double defaultValue) {
+        return map != null && hasValue(map, key) ? map.getDouble(key) : defaultValue;
+    }
+
     /**
      * Set this to YES, if your app will disappear, or set to NO when it will appear.
      */
@@ -0,0 +1,124 @@
+package com.joshblour.RNDiscovery;
+
+import android.os.ParcelUuid;
+
+import com.joshblour.discovery.BLEUser;
+import com.joshblour.discovery.DistanceEstimator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers what was last sent to JS for every user, so an update can be reduced to the users
+ * that were added, changed or removed since the previous one.
+ *
+ * Only the fields JS renders are compared (rssi, proximity, zone, tx power, profile, identified,
+ * service and uuid; the distance follows the proximity and the tx power);
+ * a new updateTime alone doesn't make a user "changed".
+ * Not thread-safe, call it from the thread that delivers the updates.
+ */
+class UserDeltaTracker {
+
+    private static class SentUser {
+        int rssi;
+        int proximity;
+        boolean hasProximity;
+        DistanceEstimator.Zone zone;
+        int txPower;
+        // replaced, never modified, when it changes
+        byte[] profile;
+        boolean identified;
+        String service;
+        ParcelUuid uuid;
+        long generation;
+
+        boolean matches(BLEUser user) {
+            return rssi == user.getRssi()
+                    && hasProximity == user.hasProximity()
+                    && proximity == user.getProximity()
+                    && zone == user.getZone()
+                    && txPower == user.getTxPower()
+                    && profile == user.getProfile()
+                    && identified == user.isIdentified()
+                    && equal(service, user.getService())
+                    && equal(uuid, user.getUUID());
+        }
+
+        void copy(BLEUser user) {
+            rssi = user.getRssi();
+            proximity = user.getProximity();
+            hasProximity = user.hasProximity();
+            zone = user.getZone();
+            txPower = user.getTxPower();
+            profile = user.getProfile();
+            identified = user.isIdentified();
+            service = user.getService();
+            uuid = user.getUUID();
+        }
+
+        private static boolean equal(Object a, Object b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    private final Map<String, SentUser> mSentUsers = new HashMap<>();
+    private long mGeneration;
+    private long mSequence;
+
+    final List<BLEUser> added = new ArrayList<>();
+    final List<BLEUser> changed = new ArrayList<>();
+    final List<String> removed = new ArrayList<>();
+
+    /**
+     * Compares the users with the last update and fills {@link #added}, {@link #changed} and
+     * {@link #removed}. After a reset every user is reported as added.
+     */
+    void update(List<BLEUser> users, boolean reset) {
+        added.clear();
+        changed.clear();
+        removed.clear();
+
+        if (reset)
+            mSentUsers.clear();
+
+        long generation = ++mGeneration;
+
+        for (BLEUser user : users) {
+            SentUser sent = mSentUsers.get(user.getDeviceAddress());
+
+            if (sent == null) {
+                sent = new SentUser();
+                sent.copy(user);
+                mSentUsers.put(user.getDeviceAddress(), sent);
+                added.add(user);
+            } else if (!sent.matches(user)) {
+                sent.copy(user);
+                changed.add(user);
+            }
+            sent.generation = generation;
+        }
+
+        Iterator<Map.Entry<String, SentUser>> iterator = mSentUsers.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, SentUser> entry = iterator.next();
+            if (entry.getValue().generation != generation) {
+                removed.add(entry.getKey());
+                iterator.remove();
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+    }
+
+    /**
+     * @return the sequence number for the next delta, starting at 1
+     */
+    long nextSequence() {
+        return ++mSequence;
+    }
+}
@@ -0,0 +1,517 @@
+package com.joshblour.discovery;
+
+import java.util.UUID;
+
+/**
+ * Flyweight parser for the AD structures of a raw advertisement (and scan response) record,
+ * as delivered to {@link MultiScanner.MultiScannerCallback#onScanResult}.
+ *
+ * A single instance is meant to be reused for every packet: {@link #parse(byte[])} only records
+ * offsets into the given array and expands UUIDs into primitive fields, so the scan hot path
+ * produces no garbage. Accessors that return objects ({@link #getServiceUuid(int)},
+ * {@link #getLocalName()}) allocate and should be kept off the per-packet path.
+ *
+ * Instances are not thread-safe. Use one parser per thread that consumes scan records.
+ */
+public class AdvertisementParser {
+
+    // AD types, see Bluetooth Assigned Numbers - Generic Access Profile
+    public static final int TYPE_FLAGS = 0x01;
+    public static final int TYPE_UUID16_PARTIAL = 0x02;
+    public static final int TYPE_UUID16_COMPLETE = 0x03;
+    public static final int TYPE_UUID32_PARTIAL = 0x04;
+    public static final int TYPE_UUID32_COMPLETE = 0x05;
+    public static final int TYPE_UUID128_PARTIAL = 0x06;
+    public static final int TYPE_UUID128_COMPLETE = 0x07;
+    public static final int TYPE_LOCAL_NAME_SHORT = 0x08;
+    public static final int TYPE_LOCAL_NAME_COMPLETE = 0x09;
+    public static final int TYPE_TX_POWER_LEVEL = 0x0A;
+    public static final int TYPE_SERVICE_DATA_UUID16 = 0x16;
+    public static final int TYPE_SERVICE_DATA_UUID32 = 0x20;
+    public static final int TYPE_SERVICE_DATA_UUID128 = 0x21;
+    public static final int TYPE_MANUFACTURER_DATA = 0xFF;
+
+    // 00000000-0000-1000-8000-00805F9B34FB, the base for 16 and 32-bit uuids
+    public static final long BASE_UUID_MSB = 0x0000000000001000L;
+    public static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    // a legacy record is at most 62 bytes (advertisement + scan response),
+    // so these bounds are only reached by extended advertisements.
+    private static final int MAX_SERVICE_UUIDS = 16;
+    private static final int MAX_SERVICE_DATA = 4;
+    private static final int MAX_MANUFACTURER_DATA = 4;
+
+    // returned by getFingerprint() for records without any fingerprinted structure
+    public static final long NO_FINGERPRINT = 0L;
+    private static final long FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+
+    private byte[] mData;
+
+    private int mServiceUuidCount;
+    private final long[] mServiceUuidMsb = new long[MAX_SERVICE_UUIDS];
+    private final long[] mServiceUuidLsb = new long[MAX_SERVICE_UUIDS];
+
+    private int mServiceDataCount;
+    private final long[] mServiceDataUuidMsb = new long[MAX_SERVICE_DATA];
+    private final long[] mServiceDataUuidLsb = new long[MAX_SERVICE_DATA];
+    private final int[] mServiceDataOffset = new int[MAX_SERVICE_DATA];
+    private final int[] mServiceDataLength = new int[MAX_SERVICE_DATA];
+
+    private int mManufacturerDataCount;
+    private final int[] mManufacturerId = new int[MAX_MANUFACTURER_DATA];
+    private final int[] mManufacturerDataOffset = new int[MAX_MANUFACTURER_DATA];
+    private final int[] mManufacturerDataLength = new int[MAX_MANUFACTURER_DATA];
+
+    private int mLocalNameOffset;
+    private int mLocalNameLength;
+    private boolean mLocalNameComplete;
+
+    private int mTxPowerLevel;
+    private boolean mHasTxPowerLevel;
+
+    private boolean mMalformed;
+
+    // the end of the well formed structures, the fingerprint is only hashed when first asked for
+    private int mEnd;
+    private long mFingerprint;
+    private boolean mFingerprintHashed;
+
+    /**
+     * Parses the AD structures of the given record, replacing the result of any previous call.
+     * The array is referenced, not copied, and must not be modified while its accessors are used.
+     *
+     * @return false if the record was truncated or malformed. Structures before the broken one
+     * are still available.
+     */
+    public boolean parse(byte[] data) {
+        reset();
+        mData = data;
+
+        if (data == null)
+            return false;
+
+        int position = 0;
+        while (position < data.length) {
+            int length = data[position] & 0xFF;
+
+            // a zero length marks the (zero padded) end of the significant part
+            if (length == 0)
+                break;
+
+            if (position + 1 + length > data.length) {
+                mMalformed = true;
+                break;
+            }
+
+            int type = data[position + 1] & 0xFF;
+            int offset = position + 2;
+            int payloadLength = length - 1;
+
+            switch (type) {
+                case TYPE_UUID16_PARTIAL:
+                case TYPE_UUID16_COMPLETE:
+                    for (int i = 0; i + 2 <= payloadLength; i += 2) {
+                        addServiceUuid(shortUuidToMsb(readUnsignedShort(data, offset + i)), BASE_UUID_LSB);
+                    }
+                    break;
+
+                case TYPE_UUID32_PARTIAL:
+                case TYPE_UUID32_COMPLETE:
+                    for (int i = 0; i + 4 <= payloadLength; i += 4) {
+                        addServiceUuid(shortUuidToMsb(readUnsignedInt(data, offset + i)), BASE_UUID_LSB);
+                    }
+                    break;
+
+                case TYPE_UUID128_PARTIAL:
+                case TYPE_UUID128_COMPLETE:
+                    for (int i = 0; i + 16 <= payloadLength; i += 16) {
+                        // 128-bit uuids are transmitted little endian, least significant half first
+                        addServiceUuid(readLong(data, offset + i + 8), readLong(data, offset + i));
+                    }
+                    break;
+
+                case TYPE_SERVICE_DATA_UUID16:
+                    if (payloadLength >= 2) {
+                        addServiceData(shortUuidToMsb(readUnsignedShort(data, offset)), BASE_UUID_LSB,
+                                offset + 2, payloadLength - 2);
+                    }
+                    break;
+
+                case TYPE_SERVICE_DATA_UUID32:
+                    if (payloadLength >= 4) {
+                        addServiceData(shortUuidToMsb(readUnsignedInt(data, offset)), BASE_UUID_LSB,
+                                offset + 4, payloadLength - 4);
+                    }
+                    break;
+
+                case TYPE_SERVICE_DATA_UUID128:
+                    if (payloadLength >= 16) {
+                        addServiceData(readLong(data, offset + 8), readLong(data, offset),
+                                offset + 16, payloadLength - 16);
+                    }
+                    break;
+
+                case TYPE_LOCAL_NAME_SHORT:
+                case TYPE_LOCAL_NAME_COMPLETE:
+                    // prefer the complete name if both are present
+                    if (mLocalNameOffset < 0 || type == TYPE_LOCAL_NAME_COMPLETE) {
+                        mLocalNameOffset = offset;
+                        mLocalNameLength = payloadLength;
+                        mLocalNameComplete = type == TYPE_LOCAL_NAME_COMPLETE;
+                    }
+                    break;
+
+                case TYPE_TX_POWER_LEVEL:
+                    if (payloadLength >= 1) {
+                        mTxPowerLevel = data[offset];
+                        mHasTxPowerLevel = true;
+                    }
+                    break;
+
+                case TYPE_MANUFACTURER_DATA:
+                    // peers advertise the identity payload next to the blocks of their vendor
+                    if (payloadLength >= 2)
+                        addManufacturerData(readUnsignedShort(data, offset), offset + 2, payloadLength - 2);
+                    break;
+
+                default:
+                    break;
+            }
+
+            position += 1 + length;
+        }
+
+        mEnd = position;
+        return !mMalformed;
+    }
+
+    private void reset() {
+        mData = null;
+        mServiceUuidCount = 0;
+        mServiceDataCount = 0;
+        mManufacturerDataCount = 0;
+        mLocalNameOffset = -1;
+        mLocalNameLength = 0;
+        mLocalNameComplete = false;
+        mTxPowerLevel = 0;
+        mHasTxPowerLevel = false;
+        mMalformed = false;
+        mEnd = 0;
+        mFingerprint = NO_FINGERPRINT;
+        mFingerprintHashed = false;
+    }
+
+    private void addServiceUuid(long msb, long lsb) {
+        if (mServiceUuidCount < MAX_SERVICE_UUIDS) {
+            mServiceUuidMsb[mServiceUuidCount] = msb;
+            mServiceUuidLsb[mServiceUuidCount] = lsb;
+            mServiceUuidCount++;
+        }
+    }
+
+    private void addServiceData(long msb, long lsb, int offset, int length) {
+        if (mServiceDataCount < MAX_SERVICE_DATA) {
+            mServiceDataUuidMsb[mServiceDataCount] = msb;
+            mServiceDataUuidLsb[mServiceDataCount] = lsb;
+            mServiceDataOffset[mServiceDataCount] = offset;
+            mServiceDataLength[mServiceDataCount] = length;
+            mServiceDataCount++;
+        }
+    }
+
+    private void addManufacturerData(int manufacturerId, int offset, int length) {
+        if (mManufacturerDataCount < MAX_MANUFACTURER_DATA) {
+            mManufacturerId[mManufacturerDataCount] = manufacturerId;
+            mManufacturerDataOffset[mManufacturerDataCount] = offset;
+            mManufacturerDataLength[mManufacturerDataCount] = length;
+            mManufacturerDataCount++;
+        }
+    }
+
+
+    //***BEGIN SERVICE UUIDS***
+    public int getServiceUuidCount() {
+        return mServiceUuidCount;
+    }
+
+    public long getServiceUuidMostSignificantBits(int index) {
+        return mServiceUuidMsb[index];
+    }
+
+    public long getServiceUuidLeastSignificantBits(int index) {
+        return mServiceUuidLsb[index];
+    }
+
+    public boolean hasServiceUuid(long msb, long lsb) {
+        for (int i = 0; i < mServiceUuidCount; i++) {
+            if (mServiceUuidMsb[i] == msb && mServiceUuidLsb[i] == lsb)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Allocates a new UUID, prefer the primitive accessors on the hot path.
+     */
+    public UUID getServiceUuid(int index) {
+        return new UUID(mServiceUuidMsb[index], mServiceUuidLsb[index]);
+    } //***END SERVICE UUIDS***
+
+
+    //***BEGIN SERVICE DATA***
+    public int getServiceDataCount() {
+        return mServiceDataCount;
+    }
+
+    public long getServiceDataUuidMostSignificantBits(int index) {
+        return mServiceDataUuidMsb[index];
+    }
+
+    public long getServiceDataUuidLeastSignificantBits(int index) {
+        return mServiceDataUuidLsb[index];
+    }
+
+    public int getServiceDataOffset(int index) {
+        return mServiceDataOffset[index];
+    }
+
+    public int getServiceDataLength(int index) {
+        return mServiceDataLength[index];
+    }
+
+    /**
+     * @return the index of the service data block for the given uuid, or -1.
+     */
+    public int findServiceData(long msb, long lsb) {
+        for (int i = 0; i < mServiceDataCount; i++) {
+            if (mServiceDataUuidMsb[i] == msb && mServiceDataUuidLsb[i] == lsb)
+                return i;
+        }
+        return -1;
+    } //***END SERVICE DATA***
+
+
+    //***BEGIN MANUFACTURER DATA***
+    public int getManufacturerDataCount() {
+        return mManufacturerDataCount;
+    }
+
+    /**
+     * @return the Bluetooth SIG company identifier of the manufacturer data block.
+     */
+    public int getManufacturerId(int index) {
+        return mManufacturerId[index];
+    }
+
+    public int getManufacturerDataOffset(int index) {
+        return mManufacturerDataOffset[index];
+    }
+
+    public int getManufacturerDataLength(int index) {
+        return mManufacturerDataLength[index];
+    }
+
+    /**
+     * @return the index of the first manufacturer data block of the given company, or -1.
+     */
+    public int findManufacturerData(int manufacturerId) {
+        for (int i = 0; i < mManufacturerDataCount; i++) {
+            if (mManufacturerId[i] == manufacturerId)
+                return i;
+        }
+        return -1;
+    } //***END MANUFACTURER DATA***
+
+
+    //***BEGIN LOCAL NAME***
+    public boolean hasLocalName() {
+        return mLocalNameOffset >= 0;
+    }
+
+    public boolean isLocalNameComplete() {
+        return mLocalNameComplete;
+    }
+
+    public int getLocalNameOffset() {
+        return mLocalNameOffset;
+    }
+
+    public int getLocalNameLength() {
+        return mLocalNameLength;
+    }
+
+    /**
+     * Compares the advertised local name with the given string without decoding it.
+     */
+    public boolean localNameEquals(String name) {
+        if (mLocalNameOffset < 0 || name == null)
+            return false;
+
+        return utf8Equals(mData, mLocalNameOffset, mLocalNameLength, name);
+    }
+
+    /**
+     * Matches the advertised local name against a UTF-8 encoded name. A shortened local name
+     * matches if it's a prefix of the name.
+     */
+    public boolean localNameMatches(byte[] utf8Name) {
+        if (mLocalNameOffset < 0 || utf8Name == null)
+            return false;
+
+        if (mLocalNameComplete ? mLocalNameLength != utf8Name.length : mLocalNameLength > utf8Name.length)
+            return false;
+
+        for (int i = 0; i < mLocalNameLength; i++) {
+            if (mData[mLocalNameOffset + i] != utf8Name[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Allocates a new String, prefer {@link #localNameEquals(String)} on the hot path.
+     */
+    public String getLocalName() {
+        if (mLocalNameOffset < 0)
+            return null;
+
+        try {
+            return new String(mData, mLocalNameOffset, mLocalNameLength, "UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            return null;
+        }
+    } //***END LOCAL NAME***
+
+
+    //***BEGIN TX POWER***
+    public boolean hasTxPowerLevel() {
+        return mHasTxPowerLevel;
+    }
+
+    /**
+     * @return the advertised TX power level in dBm. Only meaningful if {@link #hasTxPowerLevel()}.
+     */
+    public int getTxPowerLevel() {
+        return mTxPowerLevel;
+    } //***END TX POWER***
+
+
+    public byte[] getData() {
+        return mData;
+    }
+
+    public boolean isMalformed() {
+        return mMalformed;
+    }
+
+    /**
+     * A 64-bit hash of the record's AD structures except flags and TX power, identifying what a
+     * device advertises independently of its (possibly rotating) address. Hashed on the first call
+     * after parse.
+     *
+     * @return the fingerprint, or {@link #NO_FINGERPRINT} if the record has no structure to hash
+     */
+    public long getFingerprint() {
+        if (!mFingerprintHashed) {
+            mFingerprint = hashStructures(mData, mEnd);
+            mFingerprintHashed = true;
+        }
+        return mFingerprint;
+    }
+
+    // kept out of parse: most packets come from users identified already, which don't need it
+    private static long hashStructures(byte[] data, int end) {
+        long hash = FNV_OFFSET_BASIS;
+        boolean hashed = false;
+        for (int position = 0; position < end; position += 1 + (data[position] & 0xFF)) {
+            int length = data[position] & 0xFF;
+            int type = data[position + 1] & 0xFF;
+
+            // flags and tx power may differ between packets of the same device, leave them out
+            if (type != TYPE_FLAGS && type != TYPE_TX_POWER_LEVEL) {
+                hash = fnv1a(hash, data, position, length + 1);
+                hashed = true;
+            }
+        }
+
+        if (!hashed)
+            return NO_FINGERPRINT;
+        // keep NO_FINGERPRINT out of the range of real fingerprints
+        return hash == NO_FINGERPRINT ? FNV_OFFSET_BASIS : hash;
+    }
+
+
+    //***BEGIN HELPERS***
+    static long fnv1a(long hash, byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            hash ^= data[i] & 0xFF;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    public static long shortUuidToMsb(long shortUuid) {
+        return ((shortUuid & 0xFFFFFFFFL) << 32) | BASE_UUID_MSB;
+    }
+
+    static int readUnsignedShort(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+    }
+
+    static long readUnsignedInt(byte[] data, int offset) {
+        return (readUnsignedShort(data, offset) | ((long) readUnsignedShort(data, offset + 2) << 16)) & 0xFFFFFFFFL;
+    }
+
+    // little endian
+    static long readLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    // compares UTF-8 bytes with a java string, encoding the string on the fly
+    static boolean utf8Equals(byte[] data, int offset, int length, String value) {
+        int position = offset;
+        int end = offset + length;
+
+        for (int i = 0; i < value.length(); i++) {
+            int c = value.charAt(i);
+
+            if (Character.isHighSurrogate((char) c) && i + 1 < value.length()) {
+                c = Character.toCodePoint((char) c, value.charAt(++i));
+            }
+
+            if (c < 0x80) {
+                if (position + 1 > end || data[position] != (byte) c)
+                    return false;
+                position += 1;
+            } else if (c < 0x800) {
+                if (position + 2 > end
+                        || data[position] != (byte) (0xC0 | (c >> 6))
+                        || data[position + 1] != (byte) (0x80 | (c & 0x3F)))
+                    return false;
+                position += 2;
+            } else if (c < 0x10000) {
+                if (position + 3 > end
+                        || data[position] != (byte) (0xE0 | (c >> 12))
+                        || data[position + 1] != (byte) (0x80 | ((c >> 6) & 0x3F))
+                        || data[position + 2] != (byte) (0x80 | (c & 0x3F)))
+                    return false;
+                position += 3;
+            } else {
+                if (position + 4 > end
+                        || data[position] != (byte) (0xF0 | (c >> 18))
+                        || data[position + 1] != (byte) (0x80 | ((c >> 12) & 0x3F))
+                        || data[position + 2] != (byte) (0x80 | ((c >> 6) & 0x3F))
+                        || data[position + 3] != (byte) (0x80 | (c & 0x3F)))
+                    return false;
+                position += 4;
+            }
+        }
+
+        return position == end;
+    } //***END HELPERS***
+}
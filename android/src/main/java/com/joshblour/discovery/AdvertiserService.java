@@ -13,6 +13,9 @@ import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.AdvertiseCallback;
 import android.bluetooth.le.AdvertiseData;
 import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.AdvertisingSet;
+import android.bluetooth.le.AdvertisingSetCallback;
+import android.bluetooth.le.AdvertisingSetParameters;
 import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -24,6 +27,8 @@ import android.os.IBinder;
 import android.os.ParcelUuid;
 import android.util.Log;
 
+import java.util.Arrays;
+
 
 /**
  * Created by Yonah on 21/01/16.
@@ -69,13 +74,38 @@ public class AdvertiserService extends Service {
 
     public static final String ADVERTISING_FAILED_EXTRA_CODE = "failureCode";
 
+    public static final String ADVERTISING_MODE_CHANGED =
+            "com.joshblour.discovery.advertising_mode_changed";
+
+    public static final String ADVERTISING_MODE_CHANGED_EXTRA_MODE = "mode";
+
+    public static final String MODE_OFF = "off";
+    // BluetoothLeAdvertiser.startAdvertising, 31 bytes of advertisement and 31 of scan response
+    public static final String MODE_LEGACY = "legacy";
+    // a BLE 5 advertising set, carrying everything (including the profile) in one extended advertisement
+    public static final String MODE_EXTENDED = "extended";
+
+    /**
+     * The mode advertising currently runs in, one of the MODE_ constants. A broadcast with the
+     * action ADVERTISING_MODE_CHANGED is sent when it changes.
+     */
+    public static volatile String advertisingMode = MODE_OFF;
+
     private BluetoothLeAdvertiser mBluetoothLeAdvertiser;
     private BluetoothAdapter mBluetoothAdapter;
     private BluetoothManager mBluetoothManager;
 
     private AdvertiseCallback mAdvertiseCallback;
+    // serves the service name and the identity payload to peers that connect to identify us
+    private IdentityGattServer mGattServer;
+    private AdvertisingSetCallback mAdvertisingSetCallback;
+    private AdvertisingSet mAdvertisingSet;
     private ParcelUuid mUUID;
     private String mService;
+    private boolean mRenameAdapter;
+    private boolean mExtendedAdvertising;
+    private byte[] mProfile;
+    private int mCompanyId;
 
     /**
      * how many times in a row we failed to start advertising
@@ -97,8 +127,10 @@ public class AdvertiserService extends Service {
 
                 switch (state) {
                     case BluetoothAdapter.STATE_ON:
-                        if (shouldAutoRestart)
+                        if (shouldAutoRestart) {
+                            DiscoveryMetrics.get().countAdvertiserRestart();
                             startAdvertising();
+                        }
                         break;
                 }
             }
@@ -149,8 +181,30 @@ public class AdvertiserService extends Service {
         super.onStartCommand(intent, flags, startId);
         Bundle extras = intent.getExtras();
 
-        this.mUUID = ParcelUuid.fromString(extras.getString("uuid"));
-        this.mService = extras.getString("service");
+        ParcelUuid uuid = ParcelUuid.fromString(extras.getString("uuid"));
+        String service = extras.getString("service");
+        boolean renameAdapter = extras.getBoolean("renameAdapter", true);
+        boolean extendedAdvertising = extras.getBoolean("extendedAdvertising", false);
+        byte[] profile = extras.getByteArray("profile");
+        int companyId = extras.getInt("companyId", IdentityPayload.DEFAULT_COMPANY_ID);
+
+        // only the profile changed: an advertising set can take it without restarting
+        if (running && mAdvertisingSet != null && extendedAdvertising == mExtendedAdvertising
+                && uuid.equals(mUUID) && service.equals(mService) && renameAdapter == mRenameAdapter
+                && companyId == mCompanyId) {
+            if (!Arrays.equals(profile, mProfile)) {
+                mProfile = profile;
+                mAdvertisingSet.setAdvertisingData(buildExtendedAdvertiseData());
+            }
+            return START_REDELIVER_INTENT;
+        }
+
+        this.mUUID = uuid;
+        this.mService = service;
+        this.mRenameAdapter = renameAdapter;
+        this.mExtendedAdvertising = extendedAdvertising;
+        this.mProfile = profile;
+        this.mCompanyId = companyId;
 
         if (mBluetoothLeAdvertiser == null) {
             mBluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
@@ -161,11 +215,19 @@ public class AdvertiserService extends Service {
         }
 
         if (mBluetoothAdapter != null) {
-            mBluetoothAdapter.setName(mService);
+            // lets peers that don't read the identity payload match the service by name
+            if (mRenameAdapter)
+                mBluetoothAdapter.setName(mService);
             mBluetoothLeAdvertiser = mBluetoothAdapter.getBluetoothLeAdvertiser();
         }
 
 
+        // the service is already advertising if only the settings changed
+        if (running) {
+            DiscoveryMetrics.get().countAdvertiserRestart();
+            stopAdvertising();
+        }
+
         running = true;
         startAdvertising();
 
@@ -178,6 +240,20 @@ public class AdvertiserService extends Service {
     private void startAdvertising() {
         Log.d(TAG, "Service: Starting Advertising");
 
+        // the advertisement is connectable, peers that can't identify us from it read the server
+        if (mGattServer == null) {
+            mGattServer = new IdentityGattServer(this, new android.os.Handler());
+        }
+        mGattServer.open(mUUID, mService);
+
+        if (mExtendedAdvertising && isExtendedAdvertisingSupported()) {
+            startAdvertisingSet();
+        } else {
+            startLegacyAdvertising();
+        }
+    }
+
+    private void startLegacyAdvertising() {
         if (mAdvertiseCallback == null) {
             mAdvertiseCallback = new MyAdvertiseCallback();
         }
@@ -185,7 +261,8 @@ public class AdvertiserService extends Service {
         if (mBluetoothLeAdvertiser != null) {
             AdvertiseSettings settings = buildAdvertiseSettings();
             AdvertiseData data = buildAdvertiseData();
-            mBluetoothLeAdvertiser.startAdvertising(settings, data,
+            AdvertiseData scanResponse = buildScanResponse();
+            mBluetoothLeAdvertiser.startAdvertising(settings, data, scanResponse,
                     mAdvertiseCallback);
         }
     }
@@ -195,10 +272,76 @@ public class AdvertiserService extends Service {
      */
     private void stopAdvertising() {
 //        Log.d(TAG, "Service: Stopping Advertising");
-        if (mBluetoothLeAdvertiser != null) {
+        if (mBluetoothLeAdvertiser != null && mAdvertiseCallback != null) {
             mBluetoothLeAdvertiser.stopAdvertising(mAdvertiseCallback);
             mAdvertiseCallback = null;
         }
+        stopAdvertisingSet();
+        setAdvertisingMode(MODE_OFF);
+
+        if (mGattServer != null)
+            mGattServer.close();
+    }
+
+    private boolean isExtendedAdvertisingSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && mBluetoothAdapter != null
+                && mBluetoothAdapter.isLeExtendedAdvertisingSupported();
+    }
+
+    /**
+     * Starts a BLE 5 advertising set. Its callback falls back to legacy advertising if the set
+     * can't be started, e.g. because the data is too large for the controller.
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    private void startAdvertisingSet() {
+        if (mBluetoothLeAdvertiser == null)
+            return;
+
+        if (mAdvertisingSetCallback == null) {
+            mAdvertisingSetCallback = new MyAdvertisingSetCallback();
+        }
+
+        // extended advertisements can't be both connectable and scannable: everything goes in
+        // the advertisement, and it stays connectable for peers identifying over GATT
+        AdvertisingSetParameters parameters = new AdvertisingSetParameters.Builder()
+                .setLegacyMode(false)
+                .setConnectable(true)
+                .setScannable(false)
+                .setInterval(AdvertisingSetParameters.INTERVAL_HIGH)
+                .setTxPowerLevel(AdvertisingSetParameters.TX_POWER_HIGH)
+                .build();
+
+        mBluetoothLeAdvertiser.startAdvertisingSet(parameters, buildExtendedAdvertiseData(), null, null, null,
+                mAdvertisingSetCallback);
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private void stopAdvertisingSet() {
+        if (mBluetoothLeAdvertiser != null && mAdvertisingSetCallback != null) {
+            mBluetoothLeAdvertiser.stopAdvertisingSet(mAdvertisingSetCallback);
+            mAdvertisingSetCallback = null;
+        }
+        mAdvertisingSet = null;
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private void fallBackToLegacyAdvertising(int status) {
+        Log.w(TAG, "extended advertising failed (" + status + "), falling back to legacy advertising");
+        stopAdvertisingSet();
+        if (running)
+            startLegacyAdvertising();
+    }
+
+    private void setAdvertisingMode(String mode) {
+        if (mode.equals(advertisingMode))
+            return;
+
+        advertisingMode = mode;
+        Intent intent = new Intent();
+        intent.setAction(ADVERTISING_MODE_CHANGED);
+        intent.putExtra(ADVERTISING_MODE_CHANGED_EXTRA_MODE, mode);
+        sendBroadcast(intent);
     }
 
     /**
@@ -217,7 +360,8 @@ public class AdvertiserService extends Service {
 
         AdvertiseData.Builder dataBuilder = new AdvertiseData.Builder();
         dataBuilder.addServiceUuid(mUUID);
-        dataBuilder.setIncludeDeviceName(mService.length() < 8);
+        dataBuilder.setIncludeDeviceName(mRenameAdapter && mService.length() < 8);
+        // no room left next to a 128-bit uuid and the name, it goes in the scan response
         dataBuilder.setIncludeTxPowerLevel(false);
 
         /* For example - this will cause advertising to fail (exceeds size limit) */
@@ -227,6 +371,34 @@ public class AdvertiserService extends Service {
         return dataBuilder.build();
     }
 
+    /**
+     * Returns the scan response, sent to scanners that ask for more than the advertisement.
+     * It carries the identity payload (service hash and uuid) as manufacturer data, which identifies
+     * this device without a connection, and the TX power level the advertisement is sent with, which
+     * scanners use to estimate their distance from the rssi. 27 + 3 bytes.
+     */
+    private AdvertiseData buildScanResponse() {
+        AdvertiseData.Builder dataBuilder = new AdvertiseData.Builder();
+        dataBuilder.addManufacturerData(mCompanyId, IdentityPayload.encodeManufacturerData(mService, mUUID.getUuid(), null));
+        dataBuilder.setIncludeTxPowerLevel(true);
+        return dataBuilder.build();
+    }
+
+    /**
+     * Returns the data of an extended advertisement: what the legacy advertisement and scan
+     * response carry, the name whatever its length and the profile, up to the controller's
+     * maximum advertising data length. The profile follows the identity payload in its manufacturer
+     * data, Android only advertises one block per company id.
+     */
+    private AdvertiseData buildExtendedAdvertiseData() {
+        AdvertiseData.Builder dataBuilder = new AdvertiseData.Builder();
+        dataBuilder.addServiceUuid(mUUID);
+        dataBuilder.setIncludeDeviceName(mRenameAdapter);
+        dataBuilder.setIncludeTxPowerLevel(true);
+        dataBuilder.addManufacturerData(mCompanyId, IdentityPayload.encodeManufacturerData(mService, mUUID.getUuid(), mProfile));
+        return dataBuilder.build();
+    }
+
     /**
      * Returns an AdvertiseSettings object set to use low power (to help preserve battery life)
      * and disable the built-in timeout since this code uses its own timeout runnable.
@@ -240,26 +412,6 @@ public class AdvertiserService extends Service {
         return settingsBuilder.build();
     }
 
-    /**
-     * Returns a gatt service for the service uuid containing
-     * a characteristic with the device name
-     */
-    private BluetoothGattService buildGattService() {
-        BluetoothGattService gattService = new BluetoothGattService(
-                mUUID.getUuid(),
-                BluetoothGattService.SERVICE_TYPE_PRIMARY
-        );
-        BluetoothGattCharacteristic gattCharacteristic = new BluetoothGattCharacteristic(
-                mUUID.getUuid(),
-                BluetoothGattCharacteristic.PROPERTY_READ,
-                BluetoothGattCharacteristic.PERMISSION_READ
-        );
-
-        gattCharacteristic.setValue(mService);
-        gattService.addCharacteristic(gattCharacteristic);
-        return gattService;
-    }
-
     /**
      * Custom callback after Advertising succeeds or fails to start. Broadcasts the error code
      * in an Intent. Will rety advertising x times before finally failing and stopping
@@ -290,6 +442,7 @@ public class AdvertiserService extends Service {
                     break;
             }
             mRetriesAfterFailure++;
+            DiscoveryMetrics.get().countAdvertiserFailure();
 
             if (mRetriesAfterFailure < maxRetriesAfterFailure) {
                 //RETRY CODE HERE!!
@@ -297,6 +450,7 @@ public class AdvertiserService extends Service {
                 new android.os.Handler().postDelayed(
                         new Runnable() {
                             public void run() {
+                                DiscoveryMetrics.get().countAdvertiserRestart();
                                 stopAdvertising();
                                 startAdvertising();
                             }
@@ -313,10 +467,47 @@ public class AdvertiserService extends Service {
         public void onStartSuccess(AdvertiseSettings settingsInEffect) {
             super.onStartSuccess(settingsInEffect);
             mRetriesAfterFailure = 0;
+            setAdvertisingMode(MODE_LEGACY);
 //            Log.d(TAG, "Advertising successfully started");
         }
     }
 
+    /**
+     * Keeps track of the advertising set, and falls back to legacy advertising if it can't be
+     * started or its data can't be changed.
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    private class MyAdvertisingSetCallback extends AdvertisingSetCallback {
+
+        @Override
+        public void onAdvertisingSetStarted(AdvertisingSet advertisingSet, int txPower, int status) {
+            if (this != mAdvertisingSetCallback)
+                return;
+
+            if (status != AdvertisingSetCallback.ADVERTISE_SUCCESS) {
+                fallBackToLegacyAdvertising(status);
+                return;
+            }
+
+            mAdvertisingSet = advertisingSet;
+            mRetriesAfterFailure = 0;
+            setAdvertisingMode(MODE_EXTENDED);
+        }
+
+        @Override
+        public void onAdvertisingDataSet(AdvertisingSet advertisingSet, int status) {
+            // e.g. a profile too large for the controller
+            if (this == mAdvertisingSetCallback && status != AdvertisingSetCallback.ADVERTISE_SUCCESS)
+                fallBackToLegacyAdvertising(status);
+        }
+
+        @Override
+        public void onAdvertisingSetStopped(AdvertisingSet advertisingSet) {
+            if (advertisingSet == mAdvertisingSet)
+                mAdvertisingSet = null;
+        }
+    }
+
     /**
      * Builds and sends a broadcast intent indicating Advertising has failed. Includes the error
      * code as an extra. This is intended to be picked up by the {@code AdvertiserFragment}.
@@ -3,41 +3,96 @@ package com.joshblour.discovery;
 import android.bluetooth.BluetoothDevice;
 import android.os.ParcelUuid;
 
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
 /**
  * Created by Yonah on 15/10/15.
  */
 public class BLEUser {
+    private static final int FLAG_IDENTIFIED = 1;
+    private static final int FLAG_MY_SERVICE_KNOWN = 1 << 1;
+    private static final int FLAG_MY_SERVICE = 1 << 2;
+    private static final int FLAG_HAS_PROXIMITY = 1 << 3;
+
+    private static final AtomicLongFieldUpdater<BLEUser> UPDATE_TIME =
+            AtomicLongFieldUpdater.newUpdater(BLEUser.class, "mUpdateTime");
+
     private BluetoothDevice mDevice;
     private ParcelUuid mUUID;
+    private long mAddressKey;
     private String mDeviceAddress;
     private String mService;
-    private Boolean mIdentified;
-    private Boolean mIsMyService;
-    private Integer mRssi;
-    private Integer mProximity;
-    private long mUpdateTime;
-    private EasedValue mEasedProximity;
+    private int mFlags;
+    // the last rssi and sighting time may be written from any thread, the other fields are owned by
+    // the discovery thread
+    private volatile int mRssi;
+    private int mProximity;
+    private volatile long mUpdateTime;
+    private long mIndexKey = DeviceRegistry.NO_KEY;
+    private RssiFilter mRssiFilter;
+    private int mTxPower = DistanceEstimator.NO_TX_POWER;
+    private float mDistance;
+    private DistanceEstimator.Zone mZone;
+    private byte[] mProfile;
+    // fingerprint of the last advertisement, remembered by the negative cache if the user isn't ours
+    private long mFingerprint = AdvertisementParser.NO_FINGERPRINT;
+
+    // intrusive links of the ExpiryWheel slot this user is scheduled in
+    BLEUser mExpiryNext;
+    BLEUser mExpiryPrev;
+    long mExpiryTick = ExpiryWheel.NOT_SCHEDULED;
 
     public BLEUser(final BluetoothDevice device) {
+        this(DeviceRegistry.packAddress(device.getAddress()), device);
+    }
+
+    public BLEUser(long addressKey, final BluetoothDevice device) {
+        this(addressKey, device, new EasedRssiFilter());
+    }
+
+    public BLEUser(long addressKey, final BluetoothDevice device, RssiFilter rssiFilter) {
         this.mDevice = device;
+        this.mAddressKey = addressKey;
         this.mDeviceAddress = device.getAddress();
         this.mRssi = 0;
-        this.mEasedProximity = new EasedValue();
+        this.mRssiFilter = rssiFilter;
+    }
+
+    public int convertRSSItoProximity(int rssi) {
+        return convertRSSItoProximity(rssi, System.currentTimeMillis());
+    }
+
+    public int convertRSSItoProximity(int rssi, long timestamp) {
+        return Math.round(this.mRssiFilter.update(rssi, timestamp));
+    }
+
+    public RssiFilter getRssiFilter() {
+        return mRssiFilter;
+    }
+
+    // replaces the filter, the proximity is eased again from the next sample
+    public void setRssiFilter(RssiFilter rssiFilter) {
+        this.mRssiFilter = rssiFilter;
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
     }
 
-    public Integer convertRSSItoProximity(Integer rssi) {
-        // eased value doesn't support negative values
-        this.mEasedProximity.setValue(Math.abs(rssi) * 1.0f);//convert to float
-        this.mEasedProximity.update();
-        Integer proximity = Math.round(this.mEasedProximity.getValue() * -1.0f);
-        return proximity;
+    /**
+     * @return the device address packed by {@link DeviceRegistry#packAddress(String)}
+     */
+    public long getAddressKey() {
+        return mAddressKey;
     }
+
     public String getDeviceAddress() {
         return mDeviceAddress;
     }
 
     public void setDeviceAddress(String deviceAddress) {
         this.mDeviceAddress = deviceAddress;
+        this.mAddressKey = DeviceRegistry.packAddress(deviceAddress);
     }
 
     public String getService() {
@@ -48,29 +103,101 @@ public class BLEUser {
         this.mService = mService;
     }
 
-    public Boolean isIdentified() {
-        return mIdentified;
+    public boolean isIdentified() {
+        return (mFlags & FLAG_IDENTIFIED) != 0;
     }
 
-    public void setIdentified(Boolean mIdentified) {
-        this.mIdentified = mIdentified;
+    public void setIdentified(boolean identified) {
+        setFlag(FLAG_IDENTIFIED, identified);
     }
 
-    public Integer getRssi() {
+    public int getRssi() {
         return mRssi;
     }
 
     public void setRssi(int mRssi) {
+        setRssi(mRssi, System.currentTimeMillis());
+    }
+
+    // the timestamp is when the rssi was sampled, time-aware filters smooth over the elapsed time
+    public void setRssi(int mRssi, long timestamp) {
         this.mRssi = mRssi;
-        this.setProximity(convertRSSItoProximity(mRssi));
+        this.setProximity(convertRSSItoProximity(mRssi, timestamp));
     }
 
-    public Integer getProximity() {
+    /**
+     * @return the eased proximity, only meaningful if {@link #hasProximity()}
+     */
+    public int getProximity() {
         return mProximity;
     }
 
-    public void setProximity(Integer mProximity) {
+    public boolean hasProximity() {
+        return (mFlags & FLAG_HAS_PROXIMITY) != 0;
+    }
+
+    public void setProximity(int mProximity) {
         this.mProximity = mProximity;
+        setFlag(FLAG_HAS_PROXIMITY, true);
+    }
+
+    /**
+     * @return the TX power level the device advertises, in dBm, or {@link DistanceEstimator#NO_TX_POWER}
+     */
+    public int getTxPower() {
+        return mTxPower;
+    }
+
+    public boolean hasTxPower() {
+        return mTxPower != DistanceEstimator.NO_TX_POWER;
+    }
+
+    public void setTxPower(int txPower) {
+        this.mTxPower = txPower;
+    }
+
+    /**
+     * @return the estimated distance in meters, only meaningful if {@link #hasProximity()}
+     */
+    public float getDistance() {
+        return mDistance;
+    }
+
+    public void setDistance(float distance) {
+        this.mDistance = distance;
+    }
+
+    /**
+     * @return the zone the estimated distance falls in, null until the distance is estimated
+     */
+    public DistanceEstimator.Zone getZone() {
+        return mZone;
+    }
+
+    public void setZone(DistanceEstimator.Zone zone) {
+        this.mZone = zone;
+    }
+
+    /**
+     * @return the profile the device advertises in extended mode, null if none was seen
+     */
+    public byte[] getProfile() {
+        return mProfile;
+    }
+
+    public void setProfile(byte[] profile) {
+        this.mProfile = profile;
+    }
+
+    /**
+     * @return the fingerprint of the last advertisement, AdvertisementParser.NO_FINGERPRINT if none was seen
+     */
+    public long getFingerprint() {
+        return mFingerprint;
+    }
+
+    public void setFingerprint(long fingerprint) {
+        this.mFingerprint = fingerprint;
     }
 
     public long getUpdateTime() {
@@ -81,6 +208,42 @@ public class BLEUser {
         this.mUpdateTime = mUpdateTime;
     }
 
+    /**
+     * Moves the update time forward to the timestamp, never back, from any thread.
+     *
+     * @return false if the update time was already later
+     */
+    public boolean advanceUpdateTime(long timestamp) {
+        long updateTime;
+        while (timestamp > (updateTime = mUpdateTime)) {
+            if (UPDATE_TIME.compareAndSet(this, updateTime, timestamp))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records a sighting from any thread, without a lock: the raw rssi and the update time, if the
+     * sighting is the latest. Unlike setRssi, the rssi doesn't go through the filter, so the
+     * proximity stays as of the last sighting processed by the discovery thread.
+     */
+    public void touch(int rssi, long timestamp) {
+        if (advanceUpdateTime(timestamp))
+            mRssi = rssi;
+    }
+
+    /**
+     * @return the key this user is stored under in a {@link ProximityIndex}, or
+     * {@link DeviceRegistry#NO_KEY} if it isn't indexed
+     */
+    long getIndexKey() {
+        return mIndexKey;
+    }
+
+    void setIndexKey(long indexKey) {
+        this.mIndexKey = indexKey;
+    }
+
     public void setUUID(ParcelUuid mUUID) {
         this.mUUID = mUUID;
     }
@@ -88,15 +251,30 @@ public class BLEUser {
     public ParcelUuid getUUID() {
         return mUUID;
     }
-    
+
     // we need this because we are not filtering by serviceUUID.
     // with this flag, we can store them as identifed but not our service, so that we don't need to always reconnect.
-    public void setIsMyService(Boolean isMyService) {
-        this.mIsMyService = isMyService;
+    public void setIsMyService(boolean isMyService) {
+        setFlag(FLAG_MY_SERVICE_KNOWN, true);
+        setFlag(FLAG_MY_SERVICE, isMyService);
     }
 
-    public Boolean isMyService() {
-        return mIsMyService;
+    /**
+     * @return false until {@link #setIsMyService(boolean)} has been called
+     */
+    public boolean isMyServiceKnown() {
+        return (mFlags & FLAG_MY_SERVICE_KNOWN) != 0;
     }
-}
 
+    public boolean isMyService() {
+        return (mFlags & FLAG_MY_SERVICE) != 0;
+    }
+
+    private void setFlag(int flag, boolean value) {
+        if (value) {
+            mFlags |= flag;
+        } else {
+            mFlags &= ~flag;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.joshblour.discovery;
+
+import java.util.ArrayList;
+
+/**
+ * Concurrent map from a 48-bit MAC address, packed into a long, to its {@link BLEUser}.
+ *
+ * Replaces a HashMap keyed by address strings: lookups hash a primitive and never allocate. Keys
+ * are spread over lock-striped open-addressing tables, each two flat arrays (keys and users)
+ * probed linearly, so the per-device cost is the BLEUser itself plus two array slots. Threads only
+ * contend when they hit the same stripe, e.g. the scanner's callback threads looking up users
+ * while the discovery thread adds and removes them.
+ *
+ * Iterate over a snapshot with {@link #values()}. The size is only exact when no update races
+ * with it.
+ */
+public class DeviceRegistry {
+
+    // a MAC address only uses the low 48 bits, so -1 can never be a valid key
+    public static final long NO_KEY = -1L;
+
+    // the stripe is picked by the top bits of the hash, the slot in it by the bottom bits
+    private static final int STRIPE_COUNT = 16;
+    private static final int STRIPE_SHIFT = 32 - 4;
+    private static final int MIN_STRIPE_CAPACITY = 8;
+
+    private final Stripe[] mStripes = new Stripe[STRIPE_COUNT];
+
+    public DeviceRegistry() {
+        this(0);
+    }
+
+    public DeviceRegistry(int expectedSize) {
+        int capacity = tableSizeFor(expectedSize / STRIPE_COUNT + 1);
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            mStripes[i] = new Stripe(capacity);
+        }
+    }
+
+    public BLEUser get(long key) {
+        int hash = hash(key);
+        Stripe stripe = mStripes[hash >>> STRIPE_SHIFT];
+        synchronized (stripe) {
+            int slot = stripe.indexOf(key, hash);
+            return slot < 0 ? null : stripe.mValues[slot];
+        }
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return the user previously stored for this key, or null.
+     */
+    public BLEUser put(long key, BLEUser user) {
+        if (key == NO_KEY)
+            throw new IllegalArgumentException("invalid key");
+
+        int hash = hash(key);
+        Stripe stripe = mStripes[hash >>> STRIPE_SHIFT];
+        synchronized (stripe) {
+            return stripe.put(key, hash, user);
+        }
+    }
+
+    /**
+     * @return the removed user, or null if the key wasn't present.
+     */
+    public BLEUser remove(long key) {
+        int hash = hash(key);
+        Stripe stripe = mStripes[hash >>> STRIPE_SHIFT];
+        synchronized (stripe) {
+            int slot = stripe.indexOf(key, hash);
+            if (slot < 0)
+                return null;
+
+            BLEUser removed = stripe.mValues[slot];
+            stripe.removeAt(slot);
+            return removed;
+        }
+    }
+
+    public void clear() {
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                stripe.allocate(stripe.mKeys.length);
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : mStripes) {
+            size += stripe.mSize;
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return the users, one stripe at a time: a user added or removed meanwhile may be missed.
+     */
+    public ArrayList<BLEUser> values() {
+        ArrayList<BLEUser> users = new ArrayList<>(size());
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                for (BLEUser user : stripe.mValues) {
+                    if (user != null)
+                        users.add(user);
+                }
+            }
+        }
+        return users;
+    }
+
+    // guarded by its own lock
+    private static class Stripe {
+        long[] mKeys;
+        BLEUser[] mValues;
+        // read without the lock by size()
+        volatile int mSize;
+        int mMask;
+        int mResizeThreshold;
+
+        Stripe(int capacity) {
+            allocate(capacity);
+        }
+
+        int indexOf(long key, int hash) {
+            int slot = hash & mMask;
+            long current;
+            while ((current = mKeys[slot]) != NO_KEY) {
+                if (current == key)
+                    return slot;
+                slot = (slot + 1) & mMask;
+            }
+            return -1;
+        }
+
+        BLEUser put(long key, int hash, BLEUser user) {
+            int slot = hash & mMask;
+            while (mKeys[slot] != NO_KEY) {
+                if (mKeys[slot] == key) {
+                    BLEUser previous = mValues[slot];
+                    mValues[slot] = user;
+                    return previous;
+                }
+                slot = (slot + 1) & mMask;
+            }
+
+            mKeys[slot] = key;
+            mValues[slot] = user;
+            if (++mSize > mResizeThreshold)
+                resize(mKeys.length << 1);
+
+            return null;
+        }
+
+        // backward shift deletion: keeps probe sequences intact without tombstones
+        void removeAt(int slot) {
+            int gap = slot;
+            int next = (gap + 1) & mMask;
+
+            while (mKeys[next] != NO_KEY) {
+                int home = hash(mKeys[next]) & mMask;
+                // move the entry into the gap if its home slot is not between gap and next (cyclically)
+                if (((next - home) & mMask) >= ((next - gap) & mMask)) {
+                    mKeys[gap] = mKeys[next];
+                    mValues[gap] = mValues[next];
+                    gap = next;
+                }
+                next = (next + 1) & mMask;
+            }
+
+            mKeys[gap] = NO_KEY;
+            mValues[gap] = null;
+            mSize--;
+        }
+
+        void resize(int capacity) {
+            long[] oldKeys = mKeys;
+            BLEUser[] oldValues = mValues;
+
+            allocate(capacity);
+            int size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != NO_KEY) {
+                    int slot = hash(oldKeys[i]) & mMask;
+                    while (mKeys[slot] != NO_KEY) {
+                        slot = (slot + 1) & mMask;
+                    }
+                    mKeys[slot] = oldKeys[i];
+                    mValues[slot] = oldValues[i];
+                    size++;
+                }
+            }
+            mSize = size;
+        }
+
+        void allocate(int capacity) {
+            mKeys = new long[capacity];
+            mValues = new BLEUser[capacity];
+            for (int i = 0; i < capacity; i++) {
+                mKeys[i] = NO_KEY;
+            }
+            mSize = 0;
+            mMask = capacity - 1;
+            // keep the load factor at or below 1/2, linear probing degrades quickly above that
+            mResizeThreshold = capacity >> 1;
+        }
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int capacity = MIN_STRIPE_CAPACITY;
+        while (capacity >> 1 < expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    // MAC addresses share vendor prefixes, so mix all bits before masking (murmur3 finalizer)
+    static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+
+    //***BEGIN ADDRESS HELPERS***
+
+    /**
+     * Packs an address of the form "AA:BB:CC:DD:EE:FF" into the low 48 bits of a long.
+     *
+     * @return the packed address, or {@link #NO_KEY} if the string is not a valid address.
+     */
+    public static long packAddress(String address) {
+        if (address == null || address.length() != 17)
+            return NO_KEY;
+
+        long key = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':')
+                    return NO_KEY;
+                continue;
+            }
+
+            int digit = Character.digit(c, 16);
+            if (digit < 0)
+                return NO_KEY;
+            key = (key << 4) | digit;
+        }
+        return key;
+    }
+
+    /**
+     * Formats a packed address back to the upper case "AA:BB:CC:DD:EE:FF" form used by Android.
+     */
+    public static String unpackAddress(long key) {
+        char[] chars = new char[17];
+        for (int i = 5; i >= 0; i--) {
+            int octet = (int) (key >>> (8 * (5 - i))) & 0xFF;
+            int position = i * 3;
+            chars[position] = Character.toUpperCase(Character.forDigit(octet >>> 4, 16));
+            chars[position + 1] = Character.toUpperCase(Character.forDigit(octet & 0xF, 16));
+            if (i < 5)
+                chars[position + 2] = ':';
+        }
+        return new String(chars);
+    } //***END ADDRESS HELPERS***
+}
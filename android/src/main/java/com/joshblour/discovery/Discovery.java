@@ -20,22 +20,28 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.ParcelUuid;
+import android.os.Process;
 import android.util.Log;
 
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by Yonah on 15/10/15.
@@ -44,10 +50,36 @@ import java.util.UUID;
 public class Discovery implements MultiScanner.MultiScannerCallback, GattManager.GattManagerCallback{
     private final static String TAG = "RNDiscovery-Disccovery";
 
+    // resolution and size of the wheel that expires users, 128 * 250ms covers 32 seconds per revolution
+    private final static long EXPIRY_TICK_MILLIS = 250;
+    private final static int EXPIRY_SLOTS = 128;
+
+    // sightings waiting for the discovery thread, and how many are processed per message
+    private final static int INGEST_QUEUE_CAPACITY = 1024;
+    private final static int INGEST_DRAIN_BATCH = 256;
+    // batched results waiting for the discovery thread, beyond which new batches are dropped whole
+    private final static int MAX_PENDING_BATCH_RESULTS = 16 * 1024;
+
+    // identities read over GATT are remembered for a week after the peer was last seen
+    private final static String IDENTITY_CACHE_FILE = "rndiscovery-identities";
+    private final static long IDENTITY_CACHE_TTL_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    // devices and advertisements that turned out not to be ours are ignored for a while
+    private final static int NEGATIVE_CACHE_CAPACITY = 512;
+    private final static long NEGATIVE_CACHE_TTL_MILLIS = 10 * 60 * 1000;
+    // the name the stack knows a device by is asked again after this long, in case it changes
+    private final static long NON_CANDIDATE_TTL_MILLIS = 30 * 1000;
+
     public interface DiscoveryCallback {
         void didUpdateUsers(ArrayList<BLEUser> users, Boolean usersChanged);
     }
 
+    public interface ScanCycleListener {
+        // called when a scan window starts or stops, with the current windows and the observed
+        // churn rate (users appearing or going away per minute)
+        void onScanCycleChanged(boolean scanning, long scanForMillis, long waitForMillis, double churnRate);
+    }
+
 
 
     public enum DIStartOptions{
@@ -57,27 +89,85 @@ public class Discovery implements MultiScanner.MultiScannerCallback, GattManager
         DIStartNone
     }
 
+    public enum ScanFilterMode {
+        // every advertisement is reported (default)
+        NONE,
+        // only advertisements matching the scan filters are reported
+        FILTERED,
+        // filtered, with a periodic unfiltered sweep for peers the filters can't match
+        HYBRID
+    }
+
     private Context mContext;
     private String mService;
+    private byte[] mServiceUtf8;
+    private int mServiceHash;
     private ParcelUuid mUUID;
     private Boolean mPaused;
     private Integer mUserTimeoutInterval;
     private Integer mScanForSeconds;
     private Integer mWaitForSeconds;
     private Boolean mShouldAdvertise;
+    private Boolean mShouldRenameAdapter;
+    private boolean mExtendedAdvertising;
+    private byte[] mAdvertisingProfile;
+    // the company whose manufacturer data carries the identity payload
+    private int mCompanyId = IdentityPayload.DEFAULT_COMPANY_ID;
     private Boolean mShouldDiscover;
     private Boolean mDisableAndroidLScanner;
-    private Map<String, BLEUser> mUsersMap;
-
-
+    private long mBatchScanDelayMillis;
+    private ScanFilterMode mScanFilterMode;
+    private List<ScanFilterSpec> mScanFilters;
+    private int mUnfilteredSweepInterval;
+    // the filters or the batch delay changed since they were last handed to mScanner
+    private boolean mScannerFiltersChanged = true;
+    private DeviceRegistry mUsers;
+    private ProximityIndex mProximityIndex;
+    private ExpiryWheel mExpiryWheel;
+    private long mExpiryDueTime = ExpiryWheel.NOT_SCHEDULED;
+
+
+    // the discovery thread owns the registry's contents, the index and the wheel.
+    // scan callbacks only enqueue sightings, or touch known users when the queue is full,
+    // everything else is posted to mHandler.
+    private HandlerThread mDiscoveryThread;
     private Handler mHandler;
+    private ScanIngestQueue mIngestQueue;
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+    private final AtomicInteger mPendingBatchResults = new AtomicInteger();
+    private final AtomicLong mDroppedBatchResults = new AtomicLong();
     private Runnable mRunnable;
+    private Runnable mWaitRunnable;
+    private DutyCycleScheduler mDutyCycleScheduler;
+    private volatile ScanCycleListener mScanCycleListener;
+    // records the scan results before they're queued, when set
+    private volatile ScanRecorder mScanRecorder;
+    // users added to and removed from the index since the current scan cycle started
+    private int mCycleArrivals;
+    private int mCycleDepartures;
+    private long mCycleStartTime;
+    private UpdateDispatcher mUpdateDispatcher;
     private DiscoveryCallback mDiscoveryCallback;
     private BluetoothAdapter mBluetoothAdapter;
 
     private GattManager mGattManager;
     private GattManager.GattManagerCallback mGattManagerCallback;
-    private MultiScanner mScanner;
+    private ScanBackend mScanner;
+    // creates mScanner, null for the platform's MultiScanner
+    private ScanBackend.Factory mScanBackendFactory;
+    private final AdvertisementParser mAdvertisementParser = new AdvertisementParser();
+    private final IdentityPayload mIdentityPayload = new IdentityPayload();
+    private IdentityCache mIdentityCache;
+    private final DiscoveryMetrics mMetrics = DiscoveryMetrics.get();
+    private NegativeCache mNegativeAddresses;
+    // devices whose name, as the stack knows it, isn't our service. Only spares getName() calls:
+    // their advertisements are still classified, and GattManager doesn't consult it
+    private NegativeCache mNameMismatches;
+    private NegativeCache mNegativeFingerprints;
+    private long mNegativeCacheTtlMillis;
+    // every new user gets its own copy of this filter
+    private RssiFilter mRssiFilter;
+    private DistanceEstimator mDistanceEstimator;
 
     public Discovery(Context context, ParcelUuid uuid, String service, DiscoveryCallback discoveryCallback) {
         this(context, uuid, service, DIStartOptions.DIStartAdvertisingAndDetecting, discoveryCallback);
@@ -86,18 +176,52 @@ public class Discovery implements MultiScanner.MultiScannerCallback, GattManager
     public Discovery(Context context, ParcelUuid uuid, String service, DIStartOptions startOptions, DiscoveryCallback discoveryCallback ) {
 //        initialize defaults
         mShouldAdvertise = false;
+        mShouldRenameAdapter = true;
         mShouldDiscover = false;
         mDisableAndroidLScanner = false;
         mPaused = false;
         mUserTimeoutInterval = 10;
         mScanForSeconds = 5;
         mWaitForSeconds = 5;
+        mScanFilterMode = ScanFilterMode.NONE;
+        mScanFilters = new ArrayList<>();
+        mUnfilteredSweepInterval = 6;
         mContext = context;
         mUUID = uuid;
         mService = service;
+        mServiceUtf8 = service.getBytes(Charset.forName("UTF-8"));
+        mServiceHash = IdentityPayload.hashService(service);
         mDiscoveryCallback = discoveryCallback;
-        mUsersMap = new HashMap<>();
-        mHandler = new Handler();
+        mUsers = new DeviceRegistry();
+        mProximityIndex = new ProximityIndex();
+        mNegativeAddresses = new NegativeCache(NEGATIVE_CACHE_CAPACITY);
+        mNameMismatches = new NegativeCache(NEGATIVE_CACHE_CAPACITY);
+        mNegativeFingerprints = new NegativeCache(NEGATIVE_CACHE_CAPACITY);
+        mNegativeCacheTtlMillis = NEGATIVE_CACHE_TTL_MILLIS;
+        mRssiFilter = new EasedRssiFilter();
+        mDistanceEstimator = new DistanceEstimator(Build.MODEL);
+        mIdentityCache = new IdentityCache(new File(context.getFilesDir(), IDENTITY_CACHE_FILE), IDENTITY_CACHE_TTL_MILLIS);
+        mExpiryWheel = new ExpiryWheel(EXPIRY_TICK_MILLIS, EXPIRY_SLOTS, new ExpiryWheel.Callback() {
+            @Override
+            public long deadlineFor(BLEUser user) {
+                return user.getUpdateTime() + getUserTimeoutInterval() * 1000L;
+            }
+
+            @Override
+            public void onExpired(BLEUser user) {
+                removeUser(user);
+            }
+        });
+        mDiscoveryThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mDiscoveryThread.start();
+        mHandler = new Handler(mDiscoveryThread.getLooper());
+        mIngestQueue = new ScanIngestQueue(INGEST_QUEUE_CAPACITY);
+        mUpdateDispatcher = new UpdateDispatcher(mHandler, new UpdateDispatcher.Listener() {
+            @Override
+            public void onFlush(boolean usersChanged) {
+                dispatchUpdate(usersChanged);
+            }
+        });
 
         switch (startOptions) {
             case DIStartAdvertisingAndDetecting:
@@ -116,7 +240,16 @@ public class Discovery implements MultiScanner.MultiScannerCallback, GattManager
         }
     }
 
-    public void setPaused(Boolean paused) {
+    public void setPaused(final Boolean paused) {
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                applyPaused(paused);
+            }
+        });
+    }
+
+    private void applyPaused(Boolean paused) {
         if (getBluetoothAdapter() == null)
             return;
 
@@ -134,8 +267,17 @@ public class Discovery implements MultiScanner.MultiScannerCallback, GattManager
     }
 
     //***BEGIN DETECTION METHODS***
-    public void setShouldDiscover(Boolean shouldDiscover) {
-        if (getBluetoothAdapter() == null)
+    public void setShouldDiscover(final Boolean shouldDiscover) {
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                applyShouldDiscover(shouldDiscover);
+            }
+        });
+    }
+
+    private void applyShouldDiscover(Boolean shouldDiscover) {
+        if (!isScanningAvailable())
             return;
 
         if (this.mShouldDiscover == shouldDiscover)
@@ -158,7 +300,7 @@ public class Discovery implements MultiScanner.MultiScannerCallback, GattManager
         if (!mShouldDiscover || mPaused)
             return;
 
-        if (getBluetoothAdapter() == null)
+        if (!isScanningAvailable())
             return;
 
         startDetecting();
@@ -166,6 +308,14 @@ public class Discovery implements MultiScanner.MultiScannerCallback, GattManager
 
         if (mRunnable != null)
             mHandler.removeCallbacks(mRunnable);
+        if (mWaitRunnable != null)
+            mHandler.removeCallbacks(mWaitRunnable);
+
+        final long scanForMillis = mScanForSeconds * 1000L;
+        long now = System.currentTimeMillis();
+        if (mCycleStartTime == 0)
+            mCycleStartTime = now;
+        notifyScanCycleChanged(true, scanForMillis, getCurrentWaitMillis(scanForMillis));
 
          mRunnable = new Runnable() {
             @Override
@@ -173,29 +323,147 @@ public class Discovery implements MultiScanner.MultiScannerCallback, GattManager
                 stopDetecting();
                 Log.v(TAG, "detection cycle stopped");
 
-                Runnable runable = new Runnable() {
-                    @Override
-                    public void run() {
-                        startDetectionCycling();
-                    }
-                };
-                mHandler.postDelayed(runable, mWaitForSeconds * 1000);
+                if (mWaitRunnable == null) {
+                    mWaitRunnable = new Runnable() {
+                        @Override
+                        public void run() {
+                            startDetectionCycling();
+                        }
+                    };
+                }
                 checkList();
+
+                long waitForMillis = finishScanCycle(scanForMillis);
+                mHandler.postDelayed(mWaitRunnable, waitForMillis);
+                notifyScanCycleChanged(false, scanForMillis, waitForMillis);
             }
         };
-        mHandler.postDelayed(mRunnable, mScanForSeconds * 1000);
+        mHandler.postDelayed(mRunnable, scanForMillis);
+    }
+
+    // feeds the changes seen during the cycle to the scheduler and returns the wait before the next one
+    private long finishScanCycle(long scanForMillis) {
+        long now = System.currentTimeMillis();
+        long waitForMillis;
+
+        if (mDutyCycleScheduler != null) {
+            waitForMillis = mDutyCycleScheduler.onCycleFinished(mCycleArrivals, mCycleDepartures, scanForMillis, now - mCycleStartTime);
+        } else {
+            waitForMillis = mWaitForSeconds * 1000L;
+        }
+
+        mCycleArrivals = 0;
+        mCycleDepartures = 0;
+        mCycleStartTime = now;
+        return waitForMillis;
+    }
+
+    private long getCurrentWaitMillis(long scanForMillis) {
+        if (mDutyCycleScheduler != null)
+            return mDutyCycleScheduler.getWaitMillis(scanForMillis);
+
+        return mWaitForSeconds * 1000L;
+    }
+
+    private void notifyScanCycleChanged(boolean scanning, long scanForMillis, long waitForMillis) {
+        if (mScanCycleListener != null) {
+            double churnRate = mDutyCycleScheduler != null ? mDutyCycleScheduler.getChurnRate() : 0;
+            mScanCycleListener.onScanCycleChanged(scanning, scanForMillis, waitForMillis, churnRate);
+        }
     }
 
     public void startDetecting() {
-        if (mScanner == null)
-            mScanner = new MultiScanner(getBluetoothAdapter(), null, this, true);
+        // batching and filters are only available to the Lollipop+ scanner
+        boolean usePreLScanner = mBatchScanDelayMillis == 0 && mScanFilterMode == ScanFilterMode.NONE;
+        if (mScanner != null && mScanner.usesPreLScanner() != usePreLScanner) {
+            mScanner.stop();
+            mScanner = null;
+        }
 
+        if (mScanner == null) {
+            mScanner = mScanBackendFactory != null
+                    ? mScanBackendFactory.create(this, usePreLScanner)
+                    : new MultiScanner(getBluetoothAdapter(), null, this, usePreLScanner);
+            mScannerFiltersChanged = true;
+        }
+
+        mScanner.setReportDelayMillis(mBatchScanDelayMillis);
+        if (mScannerFiltersChanged) {
+            mScannerFiltersChanged = false;
+            applyScanFilters();
+        }
         mScanner.start();
     }
 
+    private void applyScanFilters() {
+        if (mScanFilterMode == ScanFilterMode.NONE) {
+            mScanner.setScanFilters(null);
+            mScanner.setUnfilteredSweepInterval(0);
+            return;
+        }
+
+        List<ScanFilterSpec> filters = mScanFilters;
+        if (filters.isEmpty()) {
+            // peers advertise an identity payload with our service hash in their scan response.
+            // older peers only put our service in their device name, and only advertise names shorter than 8 characters
+            filters = new ArrayList<>();
+            filters.add(IdentityPayload.toScanFilter(mService, mCompanyId));
+            if (mService.length() < 8)
+                filters.add(new ScanFilterSpec().setDeviceName(mService));
+        }
+
+        mScanner.setScanFilters(filters);
+        mScanner.setUnfilteredSweepInterval(mScanFilterMode == ScanFilterMode.HYBRID ? mUnfilteredSweepInterval : 0);
+    }
+
     public void stopDetecting(){
         if (mScanner != null)
             mScanner.stop();
+    }
+
+    // scanning with another backend doesn't need the adapter
+    private boolean isScanningAvailable() {
+        return mScanBackendFactory != null || getBluetoothAdapter() != null;
+    }
+
+    /**
+     * Scans with backends created by the factory instead of the platform's scanners, e.g. to run
+     * the pipeline against simulated peers. null goes back to the platform. Set it before
+     * discovery starts: the current backend is stopped, and the next scan window uses the new one.
+     */
+    public void setScanBackendFactory(final ScanBackend.Factory scanBackendFactory) {
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mScanner != null) {
+                    mScanner.stop();
+                    mScanner = null;
+                }
+                mScanBackendFactory = scanBackendFactory;
+            }
+        });
+    }
+
+    /**
+     * Records the scan results to a log in the directory, for {@link ScanReplayer}, replacing the
+     * current recording. The oldest segments are deleted beyond maxSegments.
+     */
+    public void startRecording(File directory, int segmentBytes, int maxSegments) throws IOException {
+        ScanRecorder previous = mScanRecorder;
+        mScanRecorder = new ScanRecorder(directory, segmentBytes, maxSegments, null);
+        if (previous != null)
+            previous.close();
+    }
+
+    public void stopRecording() {
+        ScanRecorder recorder = mScanRecorder;
+        mScanRecorder = null;
+        if (recorder != null)
+            recorder.close();
+    }
+
+    public boolean isRecording() {
+        return mScanRecorder != null;
     }//***END DETECTION METHODS***
 
 
@@ -234,6 +502,14 @@ public class Discovery implements MultiScanner.MultiScannerCallback, GattManager
         }
     }
 
+    // hands new settings to the advertiser if it's running
+    private void updateAdvertising() {
+        if (mShouldAdvertise && AdvertiserService.running && getBluetoothAdapter().isEnabled()
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            mContext.startService(getAdvertiserServiceIntent(mContext));
+        }
+    }
+
     private void stopAdvertising() {
         if (getBluetoothAdapter().isEnabled() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             AdvertiserService.shouldAutoRestart = false;
@@ -249,6 +525,11 @@ public class Discovery implements MultiScanner.MultiScannerCallback, GattManager
         Intent intent = new Intent(c, AdvertiserService.class);
         intent.putExtra("uuid", getUUID().toString());
         intent.putExtra("service", getService());
+        intent.putExtra("renameAdapter", mShouldRenameAdapter.booleanValue());
+        intent.putExtra("extendedAdvertising", mExtendedAdvertising);
+        intent.putExtra("companyId", mCompanyId);
+        if (mAdvertisingProfile != null)
+            intent.putExtra("profile", mAdvertisingProfile);
         return intent;
     } // ***END ADVERTISING METHODS***
 
@@ -259,139 +540,235 @@ public class Discovery implements MultiScanner.MultiScannerCallback, GattManager
         updateList(true);
     }
 
-    // sends an update to the delegate with an array of identified users
+    // schedules an update to the delegate. updates requested before it is sent are merged into it,
+    // so the delegate is called at most once per mUpdateDispatcher interval.
     public void updateList(Boolean usersChanged) {
-        ArrayList<BLEUser> users = new ArrayList<>(getUsersMap().values());
-
-        // remove unidentified users and users who dont belong to our service
-        ArrayList<BLEUser> discardedItems = new ArrayList<>();
-        for (BLEUser user : users) {
-            if (!user.isIdentified()) {
-                discardedItems.add(user);
-            }
-        }
-        users.removeAll(discardedItems);
+        mUpdateDispatcher.markDirty(usersChanged);
+    }
 
-        // we sort the list according to "proximity".
+    // sends an update to the delegate with an array of identified users
+    private void dispatchUpdate(boolean usersChanged) {
+        long start = System.nanoTime();
+        // the index only holds identified users, kept ordered according to "proximity".
         // so the client will receive ordered users according to the proximity.
-        Collections.sort(users, new Comparator<BLEUser>() {
-            public int compare(BLEUser s1, BLEUser s2) {
-                if (s1.getProximity() == null || s2.getProximity() == null)
-                    return 0;
-                return s1.getProximity().compareTo(s2.getProximity());
-            }
-        });
+        ArrayList<BLEUser> users = mProximityIndex.toList();
 
 
         if (mDiscoveryCallback != null) {
             mDiscoveryCallback.didUpdateUsers(users, usersChanged);
         }
+
+        // includes the delegate, the bridge records its own share
+        mMetrics.setRegistrySize(getUsers().size());
+        mMetrics.recordUpdateList((System.nanoTime() - start) / 1000);
     }
 
     // removes users who haven't been seen in mUserTimeoutInterval seconds and triggers
-    // an update to the delegate
+    // an update to the delegate.
+    // users are expired by mExpiryWheel as their deadlines pass, this only catches up with it.
     private void checkList() {
+        expireUsers();
 
-        if (getUsersMap() == null)
-            return;
+        // simply update the list, because the order of the users may have changed.
+        updateList(false);
+    }
 
+    private final Runnable mExpiryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mExpiryDueTime = ExpiryWheel.NOT_SCHEDULED;
+            expireUsers();
+        }
+    };
 
-        long currentTime = new Date().getTime();
-        ArrayList<String> discardedKeys = new ArrayList<>();
+    private void expireUsers() {
+        mExpiryWheel.advance(System.currentTimeMillis());
+        scheduleExpiry(Long.MAX_VALUE);
+    }
 
-        for (String key : getUsersMap().keySet()) {
-            BLEUser bleUser = getUsersMap().get(key);
-            long diff = currentTime - bleUser.getUpdateTime();
+    // makes sure mExpiryRunnable runs when the next slot of the wheel comes due.
+    // deadline is the earliest deadline that was just added, to skip the lookup when it is later anyway.
+    private void scheduleExpiry(long deadline) {
+        if (mExpiryDueTime != ExpiryWheel.NOT_SCHEDULED && mExpiryDueTime <= deadline)
+            return;
 
-            // We remove the user if we haven't seen him for the userTimeInterval amount of seconds.
-            // You can simply set the userTimeInterval variable anything you want.
-            if (diff > getUserTimeoutInterval() * 1000) {
-                discardedKeys.add(key);
-            }
-        }
+        long dueTime = mExpiryWheel.nextDueTime();
+        if (dueTime == ExpiryWheel.NOT_SCHEDULED)
+            return;
 
+        mHandler.removeCallbacks(mExpiryRunnable);
+        mExpiryDueTime = dueTime;
+        mHandler.postDelayed(mExpiryRunnable, Math.max(0, dueTime - System.currentTimeMillis()));
+    }
 
-        // update the list if we removed a user.
-        if (discardedKeys.size() > 0) {
-            for (String key : discardedKeys) {
-                getUsersMap().remove(key);
-            }
-            updateList();
-        } else {
-        // simply update the list, because the order of the users may have changed.
-            updateList(false);
+    // We remove the user if we haven't seen him for the userTimeInterval amount of seconds.
+    // You can simply set the userTimeInterval variable anything you want.
+    private void removeUser(BLEUser bleUser) {
+        getUsers().remove(bleUser.getAddressKey());
+        mExpiryWheel.cancel(bleUser);
+
+        // only identified users are reported to the delegate
+        if (mProximityIndex.remove(bleUser)) {
+            mIdentityCache.touch(bleUser.getAddressKey(), bleUser.getUpdateTime());
+            mCycleDepartures++;
+            updateList(true);
         }
+    }
+
+    // adds an identified user to the index, counting it as an arrival for the duty cycle
+    private void indexUser(BLEUser bleUser) {
+        if (!mProximityIndex.contains(bleUser))
+            mCycleArrivals++;
 
+        mProximityIndex.add(bleUser);
     }
 
-    private BLEUser userForDevice(BluetoothDevice device) {
-        BLEUser bleUser = getUsersMap().get(device.getAddress());
+    private BLEUser userForDevice(BluetoothDevice device, long timestamp) {
+        return userForDevice(DeviceRegistry.packAddress(device.getAddress()), device, timestamp);
+    }
+
+    // timestamp is the time the device was seen, its first deadline counts from it
+    private BLEUser userForDevice(long key, BluetoothDevice device, long timestamp) {
+        BLEUser bleUser = getUsers().get(key);
 
         if (bleUser == null) {
-            bleUser = new BLEUser(device);
+            bleUser = new BLEUser(key, device, mRssiFilter.newInstance());
             bleUser.setService(null);
             bleUser.setIdentified(false);
-            getUsersMap().put(bleUser.getDeviceAddress(), bleUser);
+            getUsers().put(key, bleUser);
+
+            long deadline = timestamp + getUserTimeoutInterval() * 1000L;
+            mExpiryWheel.schedule(bleUser, deadline);
+            scheduleExpiry(deadline);
         }
 
         return bleUser;
     }
 
-    private List<UUID> parseUuids(byte[] advertisedData) {
-        List<UUID> uuids = new ArrayList<>();
+    // called on the scanner's callback thread: only queue the sighting for the discovery thread.
+    // If it's behind, a known user still gets its rssi and time, so it doesn't time out meanwhile
+    @Override
+    public void onScanResult(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        ScanRecorder recorder = mScanRecorder;
+        if (recorder != null)
+            recorder.onScanResult(device, rssi, scanRecord);
+
+        long key = DeviceRegistry.packAddress(device.getAddress());
+        if (key == DeviceRegistry.NO_KEY)
+            return;
 
-        ByteBuffer buffer = ByteBuffer.wrap(advertisedData).order(ByteOrder.LITTLE_ENDIAN);
-        while (buffer.remaining() > 2) {
-            byte length = buffer.get();
-            if (length == 0) break;
+        long now = System.currentTimeMillis();
+        if (!mIngestQueue.offer(key, device, rssi, scanRecord, now)) {
+            touchUser(key, rssi, now);
+            return;
+        }
 
-            byte type = buffer.get();
-            switch (type) {
-                case 0x02: // Partial list of 16-bit UUIDs
-                case 0x03: // Complete list of 16-bit UUIDs
-                    while (length >= 2) {
-                        uuids.add(UUID.fromString(String.format("%08x-0000-1000-8000-00805f9b34fb", buffer.getShort())));
-                        length -= 2;
-                    }
-                    break;
-
-                case 0x06: // Partial list of 128-bit UUIDs
-                case 0x07: // Complete list of 128-bit UUIDs
-                    while (length >= 16) {
-                        long lsb = buffer.getLong();
-                        long msb = buffer.getLong();
-                        uuids.add(new UUID(msb, lsb));
-                        length -= 16;
-                    }
-                    break;
+        if (mDrainScheduled.compareAndSet(false, true))
+            mHandler.post(mDrainRunnable);
+    }
 
-                default:
-                    buffer.position(buffer.position() + length - 1);
-                    break;
+    // called on the scanner's callback thread with a deduplicated batch: it's handed to the discovery
+    // thread whole, as a single message, so the batch results in one update to the delegate.
+    // If too many batched results are pending, the batch is dropped and only touches known users.
+    @Override
+    public void onBatchScanResults(final BluetoothDevice[] devices, final int[] rssis, final byte[][] scanRecords, final long[] timestamps, final int count) {
+        ScanRecorder recorder = mScanRecorder;
+        if (recorder != null)
+            recorder.onBatchScanResults(devices, rssis, scanRecords, timestamps, count);
+
+        if (count == 0)
+            return;
+
+        if (mPendingBatchResults.addAndGet(count) > MAX_PENDING_BATCH_RESULTS) {
+            mPendingBatchResults.addAndGet(-count);
+            mDroppedBatchResults.addAndGet(count);
+            Log.w(TAG, "discovery thread behind, dropped a batch of " + count + " results");
+            for (int i = 0; i < count; i++) {
+                long key = DeviceRegistry.packAddress(devices[i].getAddress());
+                if (key != DeviceRegistry.NO_KEY)
+                    touchUser(key, rssis[i], timestamps[i]);
             }
+            return;
         }
 
-        return uuids;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                processBatch(devices, rssis, scanRecords, timestamps, count);
+            }
+        });
     }
 
+    private void processBatch(BluetoothDevice[] devices, int[] rssis, byte[][] scanRecords, long[] timestamps, int count) {
+        mPendingBatchResults.addAndGet(-count);
 
-    @Override
-    public void onScanResult(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        // sightings reported one by one before the batch come first, there are at most a queue's worth
+        mIngestQueue.drain(mSightingConsumer, INGEST_QUEUE_CAPACITY);
+
+        for (int i = 0; i < count; i++) {
+            long key = DeviceRegistry.packAddress(devices[i].getAddress());
+            if (key != DeviceRegistry.NO_KEY)
+                mSightingConsumer.onSighting(key, devices[i], rssis[i], scanRecords[i], timestamps[i]);
+        }
+    }
 
+    // on the scanner's callback thread, for a sighting the discovery thread won't process
+    private void touchUser(long key, int rssi, long timestamp) {
+        BLEUser bleUser = getUsers().get(key);
+        if (bleUser != null)
+            bleUser.touch(rssi, timestamp);
+    }
 
-        // String UUIDx = UUID.nameUUIDFromBytes(scanRecord).toString();
-        // Log.v(TAG, UUIDx + " uuids");
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // cleared before draining, so a sighting queued meanwhile schedules another run
+            mDrainScheduled.set(false);
+            mIngestQueue.drain(mSightingConsumer, INGEST_DRAIN_BATCH);
 
-        // Log.v(TAG, device.getUuids() + " uuids");
+            if (!mIngestQueue.isEmpty() && mDrainScheduled.compareAndSet(false, true))
+                mHandler.post(this);
+        }
+    };
 
-        BLEUser bleUser = userForDevice(device);
+    private final ScanIngestQueue.Consumer mSightingConsumer = new ScanIngestQueue.Consumer() {
+        @Override
+        public void onSighting(long addressKey, BluetoothDevice device, int rssi, byte[] scanRecord, long timestamp) {
+            mMetrics.countScanResult(processSighting(addressKey, device, rssi, scanRecord, timestamp));
+        }
+    };
+
+    // returns whether the device is or may be a peer. Package-private for the benchmarks
+    boolean processSighting(long addressKey, BluetoothDevice device, int rssi, byte[] scanRecord, long timestamp) {
+        // devices known not to be ours are dropped before any user state is touched
+        if (mNegativeAddresses.contains(addressKey, timestamp))
+            return false;
+
+        // the record stays parsed for the rest of this method
+        mAdvertisementParser.parse(scanRecord);
+
+        // identified users are peers, the fingerprint is only hashed for the devices that may not be
+        BLEUser bleUser = getUsers().get(addressKey);
+        if (bleUser == null || !bleUser.isIdentified()) {
+            long fingerprint = mAdvertisementParser.getFingerprint();
+            if (fingerprint != AdvertisementParser.NO_FINGERPRINT && mNegativeFingerprints.contains(fingerprint, timestamp))
+                return false;
+
+            // user state is only materialized for devices that may be peers
+            if (bleUser == null) {
+                bleUser = admitCandidate(addressKey, device, timestamp);
+                if (bleUser == null)
+                    return false;
+            }
+            bleUser.setFingerprint(fingerprint);
+        }
 
         // before we report this device to our delegate as a success, two things:
         // 1) Make sure it contains our service (it's another device advertising with our unique uuid)
         // 2) Make sure we can read its service
 
         // We check if we can get a cached copy of the devices service uuidsScanResult
-        if (bleUser.isMyService() == null) {
+        if (!bleUser.isMyServiceKnown()) {
             String service = bleUser.getService();
             if(service != null){
                 if (service.equals(getService())) {
@@ -399,33 +776,29 @@ public class Discovery implements MultiScanner.MultiScannerCallback, GattManager
                     bleUser.setIsMyService(true);
                     updateList(true);
 
-                    List<UUID> uuids = parseUuids(scanRecord);
                     // if there is any UUID in discovered devices
-                     if (uuids != null && uuids.size() > 0) {
-                        ParcelUuid uuid = new ParcelUuid(uuids.get(0));
+                    if (mAdvertisementParser.getServiceUuidCount() > 0) {
+                        ParcelUuid uuid = new ParcelUuid(mAdvertisementParser.getServiceUuid(0));
                         Log.v(TAG, device.getAddress() + " - found UUIDS from advisering data!");
                         bleUser.setUUID(uuid);
                         bleUser.setIdentified(true);
+                        indexUser(bleUser);
                         updateList(true);
                     }else{
                         // else connect to device and get user UUID
                         Log.v(TAG, device.getAddress() + " - couldn't get UUIDS, connecting...");
-                        if (mGattManager == null)
-                            mGattManager = new GattManager(mContext, mService, this);
-                        mGattManager.identify(device);
+                        getGattManager().identify(device, rssi);
                     }
                 }
             }
-        }
-
-        // We check if we can get the service from the advertisement data,
-        // in case the advertising peer application is working at foreground
-        if (bleUser.getService() == null) {
-            String service = device.getName();
-
-            if (service != null && service.length() > 0) {
-                bleUser.setService(service);
-                updateList(true);
+        } else if (bleUser.isMyService() && !bleUser.isIdentified()) {
+            if (hasMatchingIdentityPayload()) {
+                // its scan response came in while it was waiting for a connection
+                identifyFromPayload(bleUser);
+            } else if (mGattManager != null) {
+                // still waiting to connect, or the last attempt didn't settle it: requeue it with its latest
+                // rssi. GattManager skips it while it's backing off from failed attempts.
+                mGattManager.identify(device, rssi);
             }
         }
 
@@ -436,30 +809,219 @@ public class Discovery implements MultiScanner.MultiScannerCallback, GattManager
         //     }
         // }
         
-        bleUser.setRssi(rssi);
-        bleUser.setUpdateTime(new Date().getTime());
+        bleUser.setRssi(rssi, timestamp);
+        if (mAdvertisementParser.hasTxPowerLevel())
+            bleUser.setTxPower(mAdvertisementParser.getTxPowerLevel());
+        updateProfile(bleUser);
+        estimateDistance(bleUser);
+        // a later sighting may have been dropped, and touched the user already
+        bleUser.advanceUpdateTime(timestamp);
+        mProximityIndex.update(bleUser);
+        return true;
     }
 
-    @Override
-    public void onScanFailed(int errorCode) {
+    // copies the profile out of the record only when it changed
+    private void updateProfile(BLEUser bleUser) {
+        if (!mIdentityPayload.read(mAdvertisementParser) || !mIdentityPayload.hasProfile())
+            return;
+
+        byte[] data = mAdvertisementParser.getData();
+        int offset = mIdentityPayload.getProfileOffset();
+        int length = mIdentityPayload.getProfileLength();
 
+        byte[] profile = bleUser.getProfile();
+        if (profile != null && profile.length == length) {
+            boolean same = true;
+            for (int i = 0; i < length && same; i++) {
+                same = profile[i] == data[offset + i];
+            }
+            if (same)
+                return;
+        }
+
+        bleUser.setProfile(Arrays.copyOfRange(data, offset, offset + length));
+        updateList(true);
     }
 
-    @Override
-    public void didIdentify(BluetoothDevice device, String service, ParcelUuid uuid) {
-        BLEUser bleUser = userForDevice(device);
-        bleUser.setService(service);
+    private void estimateDistance(BLEUser bleUser) {
+        float distance = mDistanceEstimator.estimate(bleUser.getProximity(), bleUser.getTxPower());
+        bleUser.setDistance(distance);
+        bleUser.setZone(mDistanceEstimator.zoneFor(distance, bleUser.getZone()));
+    }
+
+    // classifies a device seen for the first time, from the advertisement parsed by processSighting:
+    // 1) a device advertising an identity payload, which is a peer if the payload has our service hash
+    // 2) a peer we identified before, according to the identity cache
+    // 3) a device advertising our service as its name
+    // 4) if it doesn't advertise a name, a device the stack knows by our service name.
+    //    getName() may cost a Binder call, so it's only asked once per NON_CANDIDATE_TTL_MILLIS.
+    // returns the new user for candidates, null for the rest. Only peers of another service are
+    // ignored for a while: the identity payload and the name may be in a scan response that's only
+    // merged into a later record.
+    private BLEUser admitCandidate(long addressKey, BluetoothDevice device, long timestamp) {
+        if (mIdentityPayload.read(mAdvertisementParser)) {
+            if (mIdentityPayload.getServiceHash() != mServiceHash) {
+                // a peer of another service
+                rejectDevice(addressKey, timestamp);
+                long fingerprint = mAdvertisementParser.getFingerprint();
+                if (fingerprint != AdvertisementParser.NO_FINGERPRINT)
+                    mNegativeFingerprints.put(fingerprint, timestamp + mNegativeCacheTtlMillis, timestamp);
+                return null;
+            }
+
+            BLEUser bleUser = userForDevice(addressKey, device, timestamp);
+            identifyFromPayload(bleUser);
+            return bleUser;
+        }
+
+        IdentityCache.Entry entry = mIdentityCache.get(addressKey, timestamp);
+        if (entry != null && entry.getService().equals(getService())) {
+            BLEUser bleUser = userForDevice(addressKey, device, timestamp);
+            restoreIdentity(bleUser, entry);
+            return bleUser;
+        }
+
+        boolean candidate;
+        if (mAdvertisementParser.hasLocalName()) {
+            candidate = mAdvertisementParser.localNameMatches(mServiceUtf8);
+        } else if (mNameMismatches.contains(addressKey, timestamp)) {
+            candidate = false;
+        } else {
+            // in case the advertising peer application is working at foreground
+            candidate = getService().equals(device.getName());
+            if (!candidate)
+                mNameMismatches.put(addressKey, timestamp + NON_CANDIDATE_TTL_MILLIS, timestamp);
+        }
+
+        if (!candidate)
+            return null;
+
+        BLEUser bleUser = userForDevice(addressKey, device, timestamp);
+        bleUser.setService(getService());
+        return bleUser;
+    }
+
+    private boolean hasMatchingIdentityPayload() {
+        return mIdentityPayload.read(mAdvertisementParser) && mIdentityPayload.getServiceHash() == mServiceHash;
+    }
+
+    // identifies a user from the identity payload last read, no connection needed
+    private void identifyFromPayload(BLEUser bleUser) {
+        Log.v(TAG, bleUser.getDeviceAddress() + " - identified from its identity payload");
+        bleUser.setService(getService());
+        bleUser.setIsMyService(true);
+        bleUser.setUUID(new ParcelUuid(new UUID(mIdentityPayload.getUuidMostSignificantBits(), mIdentityPayload.getUuidLeastSignificantBits())));
         bleUser.setIdentified(true);
+        indexUser(bleUser);
+        updateList(true);
+    }
+
+    // identifies a new user from the identity cache, which saves a connection if its
+    // advertisement doesn't carry its uuid
+    private void restoreIdentity(BLEUser bleUser, IdentityCache.Entry entry) {
+        ParcelUuid uuid;
+        if (mAdvertisementParser.getServiceUuidCount() > 0) {
+            uuid = new ParcelUuid(mAdvertisementParser.getServiceUuid(0));
+        } else {
+            uuid = new ParcelUuid(new UUID(entry.getUuidMostSignificantBits(), entry.getUuidLeastSignificantBits()));
+            mIdentityCache.countAvoidedConnection();
+        }
+
+        Log.v(TAG, bleUser.getDeviceAddress() + " - identified from the cache");
+        bleUser.setService(entry.getService());
         bleUser.setIsMyService(true);
         bleUser.setUUID(uuid);
+        bleUser.setIdentified(true);
+        indexUser(bleUser);
         updateList(true);
     }
 
+    @Override
+    public void onScanFailed(int errorCode) {
+        ScanRecorder recorder = mScanRecorder;
+        if (recorder != null)
+            recorder.onScanFailed(errorCode);
+    }
 
+    // GattManager callbacks arrive on Binder threads
     @Override
-    public void failedToMatchService(BluetoothDevice device) {
-        BLEUser bleUser = userForDevice(device);
-        bleUser.setIsMyService(false);
+    public void didIdentify(final BluetoothDevice device, final String service, final ParcelUuid uuid) {
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.currentTimeMillis();
+                BLEUser bleUser = userForDevice(device, now);
+                bleUser.setService(service);
+                bleUser.setIdentified(true);
+                bleUser.setIsMyService(true);
+                bleUser.setUUID(uuid);
+                indexUser(bleUser);
+                updateList(true);
+
+                mIdentityCache.put(bleUser.getAddressKey(), service,
+                        uuid.getUuid().getMostSignificantBits(), uuid.getUuid().getLeastSignificantBits(), now);
+            }
+        });
+    }
+
+
+    @Override
+    public void failedToMatchService(final BluetoothDevice device) {
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                long key = DeviceRegistry.packAddress(device.getAddress());
+                long now = System.currentTimeMillis();
+                rejectDevice(key, now);
+
+                BLEUser bleUser = getUsers().get(key);
+                if (bleUser != null) {
+                    bleUser.setIsMyService(false);
+                    long fingerprint = bleUser.getFingerprint();
+                    if (fingerprint != AdvertisementParser.NO_FINGERPRINT)
+                        mNegativeFingerprints.put(fingerprint, now + mNegativeCacheTtlMillis, now);
+
+                    // its sightings are ignored from now on, no need to wait for it to expire
+                    removeUser(bleUser);
+                }
+            }
+        });
+    }
+
+    // ignores the device for mNegativeCacheTtlMillis
+    private void rejectDevice(long addressKey, long now) {
+        mNegativeAddresses.put(addressKey, now + mNegativeCacheTtlMillis, now);
+    }
+
+    /**
+     * Runs the task on the discovery thread, which owns the users. Runs it right away if called
+     * from that thread. Use it to read the users' state or the proximity queries from elsewhere.
+     */
+    public void runOnDiscoveryThread(Runnable task) {
+        if (Looper.myLooper() == mHandler.getLooper()) {
+            task.run();
+        } else {
+            mHandler.post(task);
+        }
+    }
+
+    /**
+     * Stops detecting and advertising and ends the discovery thread. The instance can't be used afterwards.
+     */
+    public void release() {
+        setShouldAdvertise(false);
+        stopRecording();
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                applyShouldDiscover(false);
+                if (mGattManager != null)
+                    mGattManager.close();
+                mHandler.removeCallbacksAndMessages(null);
+                mUpdateDispatcher.cancel();
+                mDiscoveryThread.quitSafely();
+            }
+        });
     }
 
 
@@ -485,11 +1047,43 @@ public class Discovery implements MultiScanner.MultiScannerCallback, GattManager
     public Integer getUserTimeoutInterval() {
         return mUserTimeoutInterval;
     }
-    public void setUserTimeoutInterval(Integer mUserTimeoutInterval) {
+    public void setUserTimeoutInterval(final Integer userTimeoutInterval) {
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                applyUserTimeoutInterval(userTimeoutInterval);
+            }
+        });
+    }
+    private void applyUserTimeoutInterval(Integer mUserTimeoutInterval) {
+        boolean shorter = mUserTimeoutInterval < this.mUserTimeoutInterval;
         this.mUserTimeoutInterval = mUserTimeoutInterval;
+
+        // deadlines only move forward lazily, so bring the existing ones in when the timeout shrinks
+        if (shorter) {
+            for (BLEUser bleUser : getUsers().values()) {
+                mExpiryWheel.schedule(bleUser, bleUser.getUpdateTime() + mUserTimeoutInterval * 1000L);
+            }
+            expireUsers();
+        }
+    }
+    // the registry may be read from any thread. Only the discovery thread adds and removes users,
+    // and updates their fields other than the rssi and update time, see runOnDiscoveryThread
+    public DeviceRegistry getUsers() {
+        return mUsers;
+    }
+    /**
+     * @return up to count identified users, closest first. Call it from the discovery thread.
+     */
+    public List<BLEUser> getClosestUsers(int count) {
+        return mProximityIndex.closest(count);
     }
-    public Map<String, BLEUser> getUsersMap() {
-        return mUsersMap;
+    /**
+     * @return identified users whose proximity is at least minProximity (in dBm), closest first.
+     * Call it from the discovery thread.
+     */
+    public List<BLEUser> getUsersWithProximityAtLeast(int minProximity) {
+        return mProximityIndex.withProximityAtLeast(minProximity);
     }
     public Integer getScanForSeconds() {
         return mScanForSeconds;
@@ -497,24 +1091,264 @@ public class Discovery implements MultiScanner.MultiScannerCallback, GattManager
     public Integer getWaitForSeconds() {
         return mWaitForSeconds;
     }
+    public long getUpdateIntervalMillis() {
+        return mUpdateDispatcher.getIntervalMillis();
+    }
+    // the minimum time between two calls to DiscoveryCallback.didUpdateUsers.
+    // 0 (the default) only merges the updates triggered while processing a single event.
+    public void setUpdateIntervalMillis(long updateIntervalMillis) {
+        mUpdateDispatcher.setIntervalMillis(updateIntervalMillis);
+    }
+
+    /**
+     * Lets the wait between two scan windows adapt to how much the set of nearby users changes,
+     * instead of always waiting waitForSeconds. The wait shrinks towards minWaitMillis while users
+     * come and go and grows towards maxWaitMillis while they don't. targetLatencyMillis, if not 0,
+     * caps the wait so a new device is found within that time. Applies from the next scan cycle.
+     */
+    public void setAdaptiveDutyCycle(final boolean enabled, final long minWaitMillis, final long maxWaitMillis, final long targetLatencyMillis) {
+        if (enabled && (minWaitMillis < 0 || maxWaitMillis < minWaitMillis))
+            throw new IllegalArgumentException("invalid wait bounds: " + minWaitMillis + " - " + maxWaitMillis);
+
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                if (!enabled) {
+                    mDutyCycleScheduler = null;
+                    return;
+                }
+
+                if (mDutyCycleScheduler == null) {
+                    mDutyCycleScheduler = new DutyCycleScheduler(minWaitMillis, maxWaitMillis, targetLatencyMillis);
+                    mDutyCycleScheduler.reset(mWaitForSeconds * 1000L);
+                } else {
+                    mDutyCycleScheduler.setBounds(minWaitMillis, maxWaitMillis, targetLatencyMillis);
+                }
+            }
+        });
+    }
+    public boolean isAdaptiveDutyCycleEnabled() {
+        return mDutyCycleScheduler != null;
+    }
+    // notified when scan windows start and stop, on the discovery thread
+    public void setScanCycleListener(ScanCycleListener scanCycleListener) {
+        this.mScanCycleListener = scanCycleListener;
+    }
+
+    public long getBatchScanDelayMillis() {
+        return mBatchScanDelayMillis;
+    }
+    // lets the bluetooth controller buffer scan results and deliver them every batchScanDelayMillis,
+    // which saves battery in long background sessions. Only supported by the Lollipop+ scanner on
+    // controllers with offloaded batching, otherwise results keep being reported one by one.
+    // 0 (the default) disables batching. Takes effect at the next scan cycle, so scanForSeconds
+    // should be longer than the delay.
+    public void setBatchScanDelayMillis(final long batchScanDelayMillis) {
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                mBatchScanDelayMillis = Math.max(0, batchScanDelayMillis);
+                mScannerFiltersChanged = true;
+            }
+        });
+    }
+
+    public ScanFilterMode getScanFilterMode() {
+        return mScanFilterMode;
+    }
+    // NONE (the default) reports every advertisement. FILTERED pushes the scan filters down to the
+    // bluetooth controller so non matching advertisements don't wake the app. HYBRID does the same
+    // but makes one scan cycle out of unfilteredSweepInterval unfiltered, to find peers whose
+    // advertisement the filters miss. Takes effect at the next scan cycle.
+    public void setScanFilterMode(final ScanFilterMode scanFilterMode, final int unfilteredSweepInterval) {
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                mScanFilterMode = scanFilterMode;
+                mUnfilteredSweepInterval = Math.max(1, unfilteredSweepInterval);
+                mScannerFiltersChanged = true;
+            }
+        });
+    }
+    public List<ScanFilterSpec> getScanFilters() {
+        return mScanFilters;
+    }
+    // the filters used in FILTERED and HYBRID modes, an advertisement matching any of them is reported.
+    // when empty, peers are matched by the device name they advertise if the service is short enough.
+    public void setScanFilters(List<ScanFilterSpec> scanFilters) {
+        final List<ScanFilterSpec> filters = scanFilters != null ? new ArrayList<>(scanFilters) : new ArrayList<ScanFilterSpec>();
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                mScanFilters = filters;
+                mScannerFiltersChanged = true;
+            }
+        });
+    }
+
+    public boolean isExtendedAdvertising() {
+        return mExtendedAdvertising;
+    }
+    // advertises with a BLE 5 advertising set on controllers that support it, which carries the
+    // profile and changes it without restarting. Only peers with BLE 5 scanners see extended
+    // advertisements. Falls back to legacy advertising when unsupported, see AdvertiserService.advertisingMode.
+    public void setExtendedAdvertising(boolean extendedAdvertising) {
+        this.mExtendedAdvertising = extendedAdvertising;
+        updateAdvertising();
+    }
+
+    public byte[] getAdvertisingProfile() {
+        return mAdvertisingProfile;
+    }
+    // app defined data sent to peers in extended mode, null for none. Not sent in legacy mode.
+    public void setAdvertisingProfile(byte[] advertisingProfile) {
+        this.mAdvertisingProfile = advertisingProfile != null ? advertisingProfile.clone() : null;
+        updateAdvertising();
+    }
+
+    public int getCompanyId() {
+        return mCompanyId;
+    }
+    // the Bluetooth SIG company identifier under which the identity payload is advertised as
+    // manufacturer data. Peers only recognize each other with the same id. Defaults to 0xFFFF, the id
+    // reserved for tests: apps that ship should use the one assigned to their vendor.
+    public void setCompanyId(final int companyId) {
+        if (companyId < 0 || companyId > 0xFFFF)
+            throw new IllegalArgumentException("invalid company id " + companyId);
+
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                mCompanyId = companyId;
+                mIdentityPayload.setCompanyId(companyId);
+                mScannerFiltersChanged = true;
+                updateAdvertising();
+            }
+        });
+    }
+
+    public Boolean getShouldRenameAdapter() {
+        return mShouldRenameAdapter;
+    }
+    // peers are identified by the identity payload in the scan response. Renaming the bluetooth
+    // adapter to the service (the default) also lets older peers identify this one by its name,
+    // but renames the phone for every other device too. Takes effect the next time advertising starts.
+    public void setShouldRenameAdapter(Boolean shouldRenameAdapter) {
+        this.mShouldRenameAdapter = shouldRenameAdapter;
+    }
 
     public void setShouldDisableAndroidLScanner(Boolean disableAndroidLScanner) {
         this.mDisableAndroidLScanner = disableAndroidLScanner;
     }
     public void setScanForSeconds(Integer scanForSeconds) {
         this.mScanForSeconds = scanForSeconds;
-        startDetectionCycling();
+        runOnDiscoveryThread(mStartDetectionCyclingRunnable);
     }
 
     public void setWaitForSeconds(Integer waitForSeconds) {
         this.mWaitForSeconds = waitForSeconds;
-        startDetectionCycling();
+        runOnDiscoveryThread(mStartDetectionCyclingRunnable);
+    }
+
+    private final Runnable mStartDetectionCyclingRunnable = new Runnable() {
+        @Override
+        public void run() {
+            startDetectionCycling();
+        }
+    };
+
+    /**
+     * @return the number of sightings dropped because the discovery thread fell behind, reported
+     * one by one or in batches
+     */
+    public long getDroppedSightingCount() {
+        return mIngestQueue.getDroppedCount() + mDroppedBatchResults.get();
+    }
+
+    // remembers identities read over GATT across restarts. Only use it from the discovery thread.
+    public IdentityCache getIdentityCache() {
+        return mIdentityCache;
+    }
+
+    // time from the connection attempt to the identification of devices identified over GATT
+    public LatencyHistogram getIdentificationLatency() {
+        return mMetrics.getGattIdentifyLatency();
+    }
+
+    // how many devices are connected to at once to identify them, closest first
+    public void setMaxConcurrentGattConnections(final int maxConcurrentGattConnections) {
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                getGattManager().setMaxConcurrentConnections(maxConcurrentGattConnections);
+            }
+        });
+    }
+
+    // how long devices and advertisements that turned out not to be ours are ignored
+    public void setNegativeCacheTtlMillis(final long negativeCacheTtlMillis) {
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                mNegativeCacheTtlMillis = negativeCacheTtlMillis;
+            }
+        });
+    }
+
+    public RssiFilter getRssiFilter() {
+        return mRssiFilter;
+    }
+    // how the rssi samples of a user are smoothed into its proximity. Every user, including the
+    // ones already found, gets a copy with no samples. Defaults to EasedRssiFilter.
+    public void setRssiFilter(final RssiFilter rssiFilter) {
+        if (rssiFilter == null)
+            throw new IllegalArgumentException("rssiFilter can't be null");
+
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                mRssiFilter = rssiFilter;
+
+                for (BLEUser bleUser : getUsers().values()) {
+                    bleUser.setRssiFilter(rssiFilter.newInstance());
+                }
+            }
+        });
+    }
+
+    /**
+     * Configures the distance estimates: environmentFactor is the path loss exponent (2 in free
+     * space, 2.5 to 4 indoors) and calibrationOffsets maps device models to the offset, in dB, added
+     * to the rssi they measure. Applies from the next sighting of every user.
+     */
+    public void setDistanceCalibration(final float environmentFactor, Map<String, Float> calibrationOffsets) {
+        if (environmentFactor <= 0)
+            throw new IllegalArgumentException("invalid environment factor: " + environmentFactor);
+
+        final Map<String, Float> offsets = calibrationOffsets != null ? new HashMap<>(calibrationOffsets) : null;
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                mDistanceEstimator.setEnvironmentFactor(environmentFactor);
+                mDistanceEstimator.setCalibrationOffsets(offsets);
+            }
+        });
+    }
+
+    private GattManager getGattManager() {
+        if (mGattManager == null) {
+            mGattManager = new GattManager(mContext, mService, this, mHandler);
+            mGattManager.setNegativeCache(mNegativeAddresses);
+        }
+
+        return mGattManager;
     }
 
     private BluetoothAdapter getBluetoothAdapter() {
         if (mBluetoothAdapter == null) {
             BluetoothManager manager = (BluetoothManager) mContext.getSystemService(Context.BLUETOOTH_SERVICE);
-            mBluetoothAdapter = manager.getAdapter();
+            if (manager != null)
+                mBluetoothAdapter = manager.getAdapter();
         }
 
         return mBluetoothAdapter;
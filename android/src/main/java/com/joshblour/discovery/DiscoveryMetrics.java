@@ -0,0 +1,178 @@
+package com.joshblour.discovery;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms of the discovery pipeline, from the scanner to the bridge, the
+ * GATT connections and the advertiser.
+ *
+ * There's a single registry per process, since the advertiser runs in its own service. Counters
+ * are atomics and the histograms have fixed buckets, so recording is lock-free and allocation-free
+ * from any thread. Rates are counted since the last reset.
+ */
+public class DiscoveryMetrics {
+
+    private static final DiscoveryMetrics sInstance = new DiscoveryMetrics();
+
+    // the discovery thread's work, in microseconds: buckets from 100us to 204.8ms
+    private static final long WORK_FIRST_BUCKET_MICROS = 100;
+    private static final int WORK_BUCKET_COUNT = 12;
+
+    private final AtomicLong mResetTime = new AtomicLong(SystemClock.elapsedRealtime());
+
+    // sightings of devices that are or may be peers, and of the other devices
+    private final AtomicLong mMatchedScanResults = new AtomicLong();
+    private final AtomicLong mUnmatchedScanResults = new AtomicLong();
+    private final AtomicLong mRegistrySize = new AtomicLong();
+    private final LatencyHistogram mUpdateListMicros = new LatencyHistogram(WORK_FIRST_BUCKET_MICROS, WORK_BUCKET_COUNT);
+
+    private final AtomicLong mBridgeEmits = new AtomicLong();
+    // users sent across the bridge, in total and at most in one event
+    private final AtomicLong mBridgeEmittedUsers = new AtomicLong();
+    private final AtomicLong mBridgeMaxEmittedUsers = new AtomicLong();
+    private final LatencyHistogram mBridgeEmitMicros = new LatencyHistogram(WORK_FIRST_BUCKET_MICROS, WORK_BUCKET_COUNT);
+
+    // in milliseconds
+    private final LatencyHistogram mGattConnectLatency = new LatencyHistogram();
+    private final LatencyHistogram mGattDiscoverLatency = new LatencyHistogram();
+    private final LatencyHistogram mGattReadLatency = new LatencyHistogram();
+    private final LatencyHistogram mGattIdentifyLatency = new LatencyHistogram();
+
+    private final AtomicLong mAdvertiserRestarts = new AtomicLong();
+    private final AtomicLong mAdvertiserFailures = new AtomicLong();
+
+    public static DiscoveryMetrics get() {
+        return sInstance;
+    }
+
+    public void countScanResult(boolean matched) {
+        (matched ? mMatchedScanResults : mUnmatchedScanResults).incrementAndGet();
+    }
+
+    public void setRegistrySize(int size) {
+        mRegistrySize.lazySet(size);
+    }
+
+    public void recordUpdateList(long micros) {
+        mUpdateListMicros.record(micros);
+    }
+
+    /**
+     * @param users the number of users in the event
+     */
+    public void recordBridgeEmit(long micros, int users) {
+        mBridgeEmits.incrementAndGet();
+        mBridgeEmittedUsers.addAndGet(users);
+        long max;
+        while (users > (max = mBridgeMaxEmittedUsers.get()) && !mBridgeMaxEmittedUsers.compareAndSet(max, users)) {
+            // raced with another event, try again
+        }
+        mBridgeEmitMicros.record(micros);
+    }
+
+    public void countAdvertiserRestart() {
+        mAdvertiserRestarts.incrementAndGet();
+    }
+
+    public void countAdvertiserFailure() {
+        mAdvertiserFailures.incrementAndGet();
+    }
+
+    /**
+     * @return the time since the metrics were last reset, in milliseconds
+     */
+    public long getElapsedMillis() {
+        return SystemClock.elapsedRealtime() - mResetTime.get();
+    }
+
+    public long getMatchedScanResults() {
+        return mMatchedScanResults.get();
+    }
+
+    public long getUnmatchedScanResults() {
+        return mUnmatchedScanResults.get();
+    }
+
+    /**
+     * @return the scan results per second since the last reset, matched and not
+     */
+    public double getScanResultsPerSecond() {
+        long elapsed = getElapsedMillis();
+        return elapsed > 0 ? (getMatchedScanResults() + getUnmatchedScanResults()) * 1000.0 / elapsed : 0;
+    }
+
+    // as of the last update sent to the delegate
+    public long getRegistrySize() {
+        return mRegistrySize.get();
+    }
+
+    public LatencyHistogram getUpdateListMicros() {
+        return mUpdateListMicros;
+    }
+
+    public long getBridgeEmits() {
+        return mBridgeEmits.get();
+    }
+
+    public long getBridgeEmittedUsers() {
+        return mBridgeEmittedUsers.get();
+    }
+
+    public long getBridgeMaxEmittedUsers() {
+        return mBridgeMaxEmittedUsers.get();
+    }
+
+    public LatencyHistogram getBridgeEmitMicros() {
+        return mBridgeEmitMicros;
+    }
+
+    // from the connection attempt to the connection
+    public LatencyHistogram getGattConnectLatency() {
+        return mGattConnectLatency;
+    }
+
+    // from the start of the service discovery to its end
+    public LatencyHistogram getGattDiscoverLatency() {
+        return mGattDiscoverLatency;
+    }
+
+    // from the read request to the value
+    public LatencyHistogram getGattReadLatency() {
+        return mGattReadLatency;
+    }
+
+    // from the connection attempt to the identification
+    public LatencyHistogram getGattIdentifyLatency() {
+        return mGattIdentifyLatency;
+    }
+
+    public long getAdvertiserRestarts() {
+        return mAdvertiserRestarts.get();
+    }
+
+    public long getAdvertiserFailures() {
+        return mAdvertiserFailures.get();
+    }
+
+    /**
+     * Zeroes every counter and histogram, except the registry size which is a gauge.
+     */
+    public void reset() {
+        mMatchedScanResults.set(0);
+        mUnmatchedScanResults.set(0);
+        mUpdateListMicros.reset();
+        mBridgeEmits.set(0);
+        mBridgeEmittedUsers.set(0);
+        mBridgeMaxEmittedUsers.set(0);
+        mBridgeEmitMicros.reset();
+        mGattConnectLatency.reset();
+        mGattDiscoverLatency.reset();
+        mGattReadLatency.reset();
+        mGattIdentifyLatency.reset();
+        mAdvertiserRestarts.set(0);
+        mAdvertiserFailures.set(0);
+        mResetTime.set(SystemClock.elapsedRealtime());
+    }
+}
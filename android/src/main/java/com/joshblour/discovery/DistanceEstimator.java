@@ -0,0 +1,130 @@
+package com.joshblour.discovery;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Estimates how far a peer is from its rssi, with the log-distance path loss model:
+ *
+ *     distance = 10 ^ ((measuredPower - rssi) / (10 * environmentFactor))
+ *
+ * where measuredPower is the rssi expected at 1 meter. It is derived from the TX power level the
+ * peer advertises when it does (Android peers put it in their scan response), otherwise a typical
+ * value for phones is assumed. The environment factor is 2 in free space and usually 2.5 to 4
+ * indoors, where walls and bodies absorb more of the signal.
+ *
+ * Receivers don't all measure the same rssi at the same distance. The calibration offset of the
+ * local device model, in dB, is added to every rssi to make up for it.
+ *
+ * Distances are grouped into zones, with some hysteresis so a user standing near a boundary doesn't
+ * flip between two zones with every sample. Only use it from the discovery thread.
+ */
+public class DistanceEstimator {
+
+    public enum Zone {
+        // within IMMEDIATE_METERS
+        IMMEDIATE,
+        // within NEAR_METERS
+        NEAR,
+        FAR
+    }
+
+    public static final int NO_TX_POWER = Integer.MIN_VALUE;
+
+    public static final float IMMEDIATE_METERS = 0.5f;
+    public static final float NEAR_METERS = 3f;
+
+    // a zone is only left once the distance is this much (relatively) past its boundary
+    private static final float ZONE_HYSTERESIS = 0.1f;
+    // signal lost in the first meter, between the advertised TX power level and the rssi at 1m
+    private static final int PATH_LOSS_AT_1M = 41;
+    // rssi at 1m of a phone that doesn't advertise its TX power, e.g. an iOS peer
+    private static final int DEFAULT_MEASURED_POWER = -59;
+    private static final float DEFAULT_ENVIRONMENT_FACTOR = 2f;
+
+    private final String mLocalModel;
+    private final Map<String, Float> mCalibrationOffsets = new HashMap<>();
+
+    private float mEnvironmentFactor = DEFAULT_ENVIRONMENT_FACTOR;
+    private int mDefaultMeasuredPower = DEFAULT_MEASURED_POWER;
+    private float mCalibrationOffset;
+
+    /**
+     * @param localModel the model of this device (Build.MODEL), to pick its calibration offset
+     */
+    public DistanceEstimator(String localModel) {
+        mLocalModel = localModel;
+    }
+
+    /**
+     * @param rssi the (filtered) rssi of the peer, in dBm
+     * @param txPowerLevel the TX power level the peer advertises, in dBm, or {@link #NO_TX_POWER}
+     * @return the estimated distance, in meters
+     */
+    public float estimate(float rssi, int txPowerLevel) {
+        int measuredPower = txPowerLevel != NO_TX_POWER ? txPowerLevel - PATH_LOSS_AT_1M : mDefaultMeasuredPower;
+        double exponent = (measuredPower - (rssi + mCalibrationOffset)) / (10 * mEnvironmentFactor);
+        return (float) Math.pow(10, exponent);
+    }
+
+    /**
+     * @param current the zone the user was in, null if none yet
+     * @return the zone for the distance
+     */
+    public Zone zoneFor(float distance, Zone current) {
+        Zone zone = distance < IMMEDIATE_METERS ? Zone.IMMEDIATE : distance < NEAR_METERS ? Zone.NEAR : Zone.FAR;
+        if (current == null || zone == current)
+            return zone;
+
+        // stay in the current zone until the distance is clearly outside of it
+        float margin = 1 + ZONE_HYSTERESIS;
+        switch (current) {
+            case IMMEDIATE:
+                return distance < IMMEDIATE_METERS * margin ? current : zone;
+            case NEAR:
+                return distance >= IMMEDIATE_METERS / margin && distance < NEAR_METERS * margin ? current : zone;
+            default:
+                return distance >= NEAR_METERS / margin ? current : zone;
+        }
+    }
+
+    public float getEnvironmentFactor() {
+        return mEnvironmentFactor;
+    }
+
+    public void setEnvironmentFactor(float environmentFactor) {
+        if (environmentFactor <= 0)
+            throw new IllegalArgumentException("invalid environment factor: " + environmentFactor);
+
+        mEnvironmentFactor = environmentFactor;
+    }
+
+    public int getDefaultMeasuredPower() {
+        return mDefaultMeasuredPower;
+    }
+
+    // the rssi at 1m assumed for peers that don't advertise their TX power
+    public void setDefaultMeasuredPower(int defaultMeasuredPower) {
+        mDefaultMeasuredPower = defaultMeasuredPower;
+    }
+
+    /**
+     * @return the offset applied to the rssi of this device, in dB
+     */
+    public float getCalibrationOffset() {
+        return mCalibrationOffset;
+    }
+
+    /**
+     * Replaces the calibration offsets, in dB, keyed by device model. Only the offset of the local
+     * model is used; models without an offset get 0.
+     */
+    public void setCalibrationOffsets(Map<String, Float> calibrationOffsets) {
+        mCalibrationOffsets.clear();
+        if (calibrationOffsets != null)
+            mCalibrationOffsets.putAll(calibrationOffsets);
+
+        Float offset = mCalibrationOffsets.get(mLocalModel);
+        mCalibrationOffset = offset != null ? offset : 0f;
+    }
+}
@@ -0,0 +1,119 @@
+package com.joshblour.discovery;
+
+/**
+ * Chooses how long to wait between two scan windows from how much the set of nearby users changes.
+ *
+ * After every scan window Discovery reports how many users appeared and went away during the
+ * cycle. A cycle with changes halves the wait, so new arrivals are picked up quickly while people
+ * come and go; a quiet cycle lengthens it by half, saving battery while the surroundings are
+ * stable. The wait always stays within [minWaitMillis, maxWaitMillis] and is further capped so
+ * that a device appearing right after a scan window is found within targetLatencyMillis.
+ *
+ * The churn rate is a moving average of the changes per minute, reported for tuning.
+ * This class is not thread-safe.
+ */
+public class DutyCycleScheduler {
+
+    private static final double GROWTH_FACTOR = 1.5;
+    private static final double SHRINK_FACTOR = 0.5;
+    // a quiet cycle grows the wait from at least this much, a wait of 0 would never grow back
+    private static final long GROWTH_BASE_MILLIS = 1000;
+    // weight of the latest cycle in the churn rate
+    private static final double CHURN_SMOOTHING = 0.5;
+
+    private long mMinWaitMillis;
+    private long mMaxWaitMillis;
+    private long mTargetLatencyMillis;
+
+    private long mWaitMillis;
+    private double mChurnRate;
+
+    /**
+     * @param minWaitMillis shortest wait between two scan windows
+     * @param maxWaitMillis longest wait between two scan windows
+     * @param targetLatencyMillis the longest acceptable time to discover a new device, 0 for no target
+     */
+    public DutyCycleScheduler(long minWaitMillis, long maxWaitMillis, long targetLatencyMillis) {
+        setBounds(minWaitMillis, maxWaitMillis, targetLatencyMillis);
+        mWaitMillis = mMinWaitMillis;
+    }
+
+    public void setBounds(long minWaitMillis, long maxWaitMillis, long targetLatencyMillis) {
+        if (minWaitMillis < 0 || maxWaitMillis < minWaitMillis)
+            throw new IllegalArgumentException("invalid wait bounds: " + minWaitMillis + " - " + maxWaitMillis);
+
+        mMinWaitMillis = minWaitMillis;
+        mMaxWaitMillis = maxWaitMillis;
+        mTargetLatencyMillis = Math.max(0, targetLatencyMillis);
+    }
+
+    /**
+     * Starts over from the given wait, e.g. the fixed one used before the scheduler was enabled.
+     * It may be 0: the first quiet cycle grows it again.
+     */
+    public void reset(long waitMillis) {
+        mWaitMillis = waitMillis;
+        mChurnRate = 0;
+    }
+
+    /**
+     * Records a finished scan cycle and computes the wait before the next one.
+     *
+     * @param arrivals users that appeared during the cycle
+     * @param departures users that went away during the cycle
+     * @param scanMillis length of the scan window
+     * @param cycleMillis time since the previous cycle started
+     * @return the wait before the next scan window
+     */
+    public long onCycleFinished(int arrivals, int departures, long scanMillis, long cycleMillis) {
+        int changes = arrivals + departures;
+
+        double changesPerMinute = cycleMillis > 0 ? changes * 60000.0 / cycleMillis : 0;
+        mChurnRate = CHURN_SMOOTHING * changesPerMinute + (1 - CHURN_SMOOTHING) * mChurnRate;
+
+        long wait;
+        if (changes > 0) {
+            wait = (long) (mWaitMillis * SHRINK_FACTOR);
+        } else {
+            wait = (long) Math.ceil(Math.max(mWaitMillis, GROWTH_BASE_MILLIS) * GROWTH_FACTOR);
+        }
+        mWaitMillis = clamp(wait, scanMillis);
+        return mWaitMillis;
+    }
+
+    /**
+     * @return the wait before the next scan window, within the bounds
+     */
+    public long getWaitMillis(long scanMillis) {
+        return clamp(mWaitMillis, scanMillis);
+    }
+
+    /**
+     * @return users appearing or going away per minute, smoothed over the last cycles
+     */
+    public double getChurnRate() {
+        return mChurnRate;
+    }
+
+    public long getMinWaitMillis() {
+        return mMinWaitMillis;
+    }
+
+    public long getMaxWaitMillis() {
+        return mMaxWaitMillis;
+    }
+
+    public long getTargetLatencyMillis() {
+        return mTargetLatencyMillis;
+    }
+
+    private long clamp(long wait, long scanMillis) {
+        long max = mMaxWaitMillis;
+
+        // a device that starts advertising right after a scan window is seen in the next one
+        if (mTargetLatencyMillis > 0)
+            max = Math.min(max, mTargetLatencyMillis - scanMillis);
+
+        return Math.max(mMinWaitMillis, Math.min(max, wait));
+    }
+}
@@ -0,0 +1,34 @@
+package com.joshblour.discovery;
+
+/**
+ * The original smoothing: eases towards every sample by one fixed step, whatever the time since
+ * the previous one. A device advertising twice as often therefore converges twice as fast.
+ * Kept as the default so proximities don't change for existing apps.
+ */
+public class EasedRssiFilter implements RssiFilter {
+
+    private final EasedValue mEasedValue = new EasedValue();
+
+    @Override
+    public float update(int rssi, long timestamp) {
+        // eased value doesn't support negative values
+        mEasedValue.setValue(Math.abs(rssi));
+        mEasedValue.update();
+        return -mEasedValue.getValue();
+    }
+
+    @Override
+    public float getValue() {
+        return -mEasedValue.getValue();
+    }
+
+    @Override
+    public void reset() {
+        mEasedValue.clear();
+    }
+
+    @Override
+    public RssiFilter newInstance() {
+        return new EasedRssiFilter();
+    }
+}
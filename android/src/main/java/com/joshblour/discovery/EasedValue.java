@@ -4,10 +4,9 @@ package com.joshblour.discovery;
  * Created by Yonah on 16/10/15.
  */
 public class EasedValue {
-    private Float mValue;
-    private Float mVelocity;
-    private Float mTargetValue;
-    private Float mCurrentValue;
+    private float mVelocity;
+    private float mTargetValue;
+    private float mCurrentValue;
 
     public EasedValue() {
         this.mVelocity = 0.0f;
@@ -15,11 +14,11 @@ public class EasedValue {
         this.mCurrentValue = 0.0f;
     }
 
-    public void setValue(Float value) {
+    public void setValue(float value) {
         this.mTargetValue = value;
     }
 
-    public Float getValue() {
+    public float getValue() {
         return mCurrentValue;
     }
 
@@ -47,4 +46,13 @@ public class EasedValue {
         mCurrentValue = mTargetValue;
     }
 
+    /**
+     * Starts over from zero, as a new instance would.
+     */
+    public void clear() {
+        mVelocity = 0.0f;
+        mTargetValue = 0.0f;
+        mCurrentValue = 0.0f;
+    }
+
 }
@@ -0,0 +1,190 @@
+package com.joshblour.discovery;
+
+/**
+ * Hashed timing wheel that expires users which haven't been seen for a while.
+ *
+ * Users are linked into the slot of the tick their deadline falls in, through fields on the
+ * user itself, so scheduling and cancelling are O(1) and allocation-free. Deadlines are re-armed
+ * lazily: seeing a user again only moves its update time, and when its slot comes due the wheel
+ * asks the {@link Callback} for the current deadline and either expires the user or moves it to
+ * the later slot. Each advance therefore only touches the users of the slots that came due,
+ * instead of walking every tracked user.
+ *
+ * This class is not thread-safe.
+ */
+public class ExpiryWheel {
+
+    public interface Callback {
+        /**
+         * @return the time at which the user should expire, in the clock passed to {@link #advance(long)}
+         */
+        long deadlineFor(BLEUser user);
+
+        void onExpired(BLEUser user);
+    }
+
+    public static final long NOT_SCHEDULED = -1L;
+
+    private final BLEUser[] mSlots;
+    private final int mMask;
+    private final long mTickMillis;
+    private final Callback mCallback;
+
+    private long mCurrentTick = -1;
+    private int mSize;
+
+    /**
+     * @param tickMillis the resolution of the wheel
+     * @param slotCount number of slots, rounded up to a power of two. Deadlines further away than
+     *                  slotCount * tickMillis are supported but cost an extra visit per revolution.
+     */
+    public ExpiryWheel(long tickMillis, int slotCount, Callback callback) {
+        int slots = 1;
+        while (slots < slotCount) {
+            slots <<= 1;
+        }
+
+        mSlots = new BLEUser[slots];
+        mMask = slots - 1;
+        mTickMillis = tickMillis;
+        mCallback = callback;
+    }
+
+    /**
+     * Schedules the user to be checked at the given deadline, replacing a previous schedule.
+     */
+    public void schedule(BLEUser user, long deadline) {
+        if (user.mExpiryTick != NOT_SCHEDULED)
+            unlink(user);
+
+        // round up, so a user is never checked before its deadline
+        long tick = (deadline + mTickMillis - 1) / mTickMillis;
+        if (mCurrentTick >= 0 && tick <= mCurrentTick)
+            tick = mCurrentTick + 1;
+
+        link(user, tick);
+    }
+
+    public void cancel(BLEUser user) {
+        if (user.mExpiryTick != NOT_SCHEDULED)
+            unlink(user);
+    }
+
+    public boolean isScheduled(BLEUser user) {
+        return user.mExpiryTick != NOT_SCHEDULED;
+    }
+
+    /**
+     * Processes every slot that came due up to now, expiring the users whose deadline has passed.
+     *
+     * @return the number of expired users
+     */
+    public int advance(long now) {
+        long targetTick = now / mTickMillis;
+
+        // on the first advance the users may have been scheduled in any slot
+        if (mCurrentTick < 0)
+            mCurrentTick = targetTick - mSlots.length;
+
+        if (targetTick <= mCurrentTick)
+            return 0;
+
+        // after a long pause every slot is due, but each one only needs to be visited once
+        long fromTick = Math.max(mCurrentTick + 1, targetTick - mSlots.length + 1);
+        mCurrentTick = targetTick;
+
+        int expired = 0;
+        for (long tick = fromTick; tick <= targetTick; tick++) {
+            expired += processSlot((int) (tick & mMask), targetTick, now);
+        }
+        return expired;
+    }
+
+    /**
+     * @return the time of the next slot holding users, at which {@link #advance(long)} should be
+     * called, or {@link #NOT_SCHEDULED} if the wheel is empty. Users in that slot may belong to a
+     * later revolution, in which case advancing just keeps them.
+     */
+    public long nextDueTime() {
+        if (mSize == 0)
+            return NOT_SCHEDULED;
+
+        if (mCurrentTick < 0)
+            return 0;
+
+        for (long tick = mCurrentTick + 1; tick <= mCurrentTick + mSlots.length; tick++) {
+            if (mSlots[(int) (tick & mMask)] != null)
+                return tick * mTickMillis;
+        }
+        return NOT_SCHEDULED;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public long getTickMillis() {
+        return mTickMillis;
+    }
+
+    private int processSlot(int slot, long targetTick, long now) {
+        // detach the slot first, users rescheduled while walking it may land in it again
+        BLEUser user = mSlots[slot];
+        mSlots[slot] = null;
+
+        int expired = 0;
+        while (user != null) {
+            BLEUser next = user.mExpiryNext;
+            long tick = user.mExpiryTick;
+            user.mExpiryNext = null;
+            user.mExpiryPrev = null;
+            mSize--;
+
+            if (tick > targetTick) {
+                // due in a later revolution
+                link(user, tick);
+            } else {
+                long deadline = mCallback.deadlineFor(user);
+                if (deadline <= now) {
+                    user.mExpiryTick = NOT_SCHEDULED;
+                    expired++;
+                    mCallback.onExpired(user);
+                } else {
+                    user.mExpiryTick = NOT_SCHEDULED;
+                    schedule(user, deadline);
+                }
+            }
+            user = next;
+        }
+        return expired;
+    }
+
+    private void link(BLEUser user, long tick) {
+        int slot = (int) (tick & mMask);
+        BLEUser head = mSlots[slot];
+
+        user.mExpiryTick = tick;
+        user.mExpiryPrev = null;
+        user.mExpiryNext = head;
+        if (head != null)
+            head.mExpiryPrev = user;
+        mSlots[slot] = user;
+        mSize++;
+    }
+
+    private void unlink(BLEUser user) {
+        if (user.mExpiryPrev != null) {
+            user.mExpiryPrev.mExpiryNext = user.mExpiryNext;
+        } else {
+            mSlots[(int) (user.mExpiryTick & mMask)] = user.mExpiryNext;
+        }
+
+        if (user.mExpiryNext != null)
+            user.mExpiryNext.mExpiryPrev = user.mExpiryPrev;
+
+        user.mExpiryNext = null;
+        user.mExpiryPrev = null;
+        user.mExpiryTick = NOT_SCHEDULED;
+        mSize--;
+    }
+}
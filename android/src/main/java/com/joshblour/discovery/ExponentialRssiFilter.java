@@ -0,0 +1,58 @@
+package com.joshblour.discovery;
+
+/**
+ * Exponential moving average whose weights decay with time: a sample's influence halves every
+ * halfLifeMillis, however many samples arrive in between. The first sample is taken as is.
+ */
+public class ExponentialRssiFilter implements RssiFilter {
+
+    private final long mHalfLifeMillis;
+
+    private float mValue;
+    private long mLastTimestamp;
+    private boolean mHasValue;
+
+    public ExponentialRssiFilter(long halfLifeMillis) {
+        if (halfLifeMillis <= 0)
+            throw new IllegalArgumentException("invalid half-life: " + halfLifeMillis);
+
+        mHalfLifeMillis = halfLifeMillis;
+    }
+
+    @Override
+    public float update(int rssi, long timestamp) {
+        if (!mHasValue) {
+            mValue = rssi;
+            mHasValue = true;
+        } else {
+            // samples reported together (e.g. in a batch) still count, as if 1ms apart
+            long elapsed = Math.max(1, timestamp - mLastTimestamp);
+            double weight = 1 - Math.pow(0.5, (double) elapsed / mHalfLifeMillis);
+            mValue += (float) (weight * (rssi - mValue));
+        }
+
+        mLastTimestamp = Math.max(mLastTimestamp, timestamp);
+        return mValue;
+    }
+
+    @Override
+    public float getValue() {
+        return mValue;
+    }
+
+    @Override
+    public void reset() {
+        mValue = 0;
+        mLastTimestamp = 0;
+        mHasValue = false;
+    }
+
+    @Override
+    public RssiFilter newInstance() {
+        return new ExponentialRssiFilter(mHalfLifeMillis);
+    }
+
+    public long getHalfLifeMillis() {
+        return mHalfLifeMillis;
+    }
+}
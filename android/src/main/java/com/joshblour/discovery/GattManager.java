@@ -7,179 +7,532 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.util.Date;
+import java.nio.charset.Charset;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
 
 /**
  * Created by Yonah on 18/03/16.
+ *
+ * Identifies devices by connecting to them and reading their service.
+ *
+ * A connection reads a single attribute: the identity characteristic served by
+ * {@link IdentityGattServer} when the device has it, whose payload holds the hash of the service
+ * and the uuid, otherwise the legacy characteristic of the last service, whose value is the
+ * service. The connection is closed as soon as the read completes. High connection priority and a
+ * larger MTU are requested first, so the discovery and the read take fewer, shorter connection
+ * events and long legacy values don't need extra reads. The time from the connection attempt to
+ * the identification is recorded in {@link DiscoveryMetrics}, as well as the latency of each step.
+ *
+ * Devices waiting to be identified are queued closest first (strongest rssi, then the oldest
+ * request), and at most mMaxConcurrentConnections connections are attempted at a time so the
+ * controller's connection slots aren't exhausted by a crowd of new peers. Every connection gets a
+ * timeout when it starts, freeing its slot even if the device is never seen again. A device whose
+ * connection ends without settling it (failed, timed out, or read inconclusively) isn't connected
+ * to again before a backoff that doubles with each failure, so a close device that never answers
+ * doesn't hold a slot against farther ones. After MAX_FAILED_ATTEMPTS it is left out for a while.
+ *
+ * All the queue and connection state is owned by the handler's thread: identify must be called
+ * there, and the gatt callbacks (which arrive on Binder threads) post their bookkeeping to it.
  */
 public class GattManager {
     private final static String TAG = "RNDiscovery-GattManager";
 
     interface GattManagerCallback {
         void didIdentify(BluetoothDevice device, String service, ParcelUuid serviceUUID);
+        // only once the device's services were read and it's certainly not ours. Transient failures,
+        // e.g. no services discovered because of a stale GATT cache, only end the connection.
         void failedToMatchService(BluetoothDevice device);
     }
 
-    private Integer mGattTimeoutInterval;
-    private Map<String, Long> mGattConnectionStartTimes;
-    private Map<String, BluetoothGatt> mGattConnections;
+    private static class Request {
+        final BluetoothDevice device;
+        final String address;
+        int rssi;
+        final long requestedAt;
+
+        Request(BluetoothDevice device, int rssi, long requestedAt) {
+            this.device = device;
+            this.address = device.getAddress();
+            this.rssi = rssi;
+            this.requestedAt = requestedAt;
+        }
+    }
+
+    private static class Connection {
+        final Request request;
+        BluetoothGatt gatt;
+        Runnable timeout;
+        long startedAt;
+        // the device was identified, or found not to be ours
+        boolean settled;
+
+        Connection(Request request) {
+            this.request = request;
+        }
+    }
+
+    // closest first, then first come first served
+    private static final Comparator<Request> PRIORITY = new Comparator<Request>() {
+        @Override
+        public int compare(Request a, Request b) {
+            if (a.rssi != b.rssi)
+                return a.rssi > b.rssi ? -1 : 1;
+            if (a.requestedAt != b.requestedAt)
+                return a.requestedAt < b.requestedAt ? -1 : 1;
+            return 0;
+        }
+    };
+
+    // consecutive failed attempts of a device and when it may be connected to again
+    private static class Failure {
+        int attempts;
+        long retryAt;
+    }
+
+    // the backoff after the first failed attempt, doubled after each other one up to the max
+    private static final long FIRST_BACKOFF_MILLIS = 2000;
+    private static final long MAX_BACKOFF_MILLIS = 60000;
+    // then the device is skipped, through the negative cache, for FAILED_DEVICE_TTL_MILLIS
+    private static final int MAX_FAILED_ATTEMPTS = 5;
+    private static final long FAILED_DEVICE_TTL_MILLIS = 5 * 60 * 1000;
+    // devices whose failures are remembered, the least recently failed are forgotten first
+    private static final int MAX_FAILURES = 256;
+
+    // large enough for any service name peers may use, and supported by iOS peers
+    private static final int PREFERRED_MTU = 185;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private int mMaxConcurrentConnections;
+    private int mMaxPendingRequests;
+    private long mConnectionTimeoutMillis;
+    private long mPendingTimeoutMillis;
+
+    private final PriorityQueue<Request> mPendingQueue;
+    private final Map<String, Request> mPendingRequests;
+    private final Map<String, Connection> mConnections;
+    private final Map<String, Failure> mFailures;
+    // packed addresses of devices known not to be ours, shared with Discovery
+    private NegativeCache mNegativeCache;
+    private final DiscoveryMetrics mMetrics = DiscoveryMetrics.get();
+    // reads the identity characteristic, on the handler's thread
+    private final IdentityPayload mPayload = new IdentityPayload();
+    private int mServiceHash;
 
     private String mService;
     private GattManagerCallback mCallback;
     private Context mContext;
-    private final MyBluetoothGattCallback mMyBluetoothGattCallback = new MyBluetoothGattCallback();
+    // connection state is only touched on this handler's thread
+    private Handler mHandler;
 
     public GattManager(Context context, String Service, GattManagerCallback callback) {
+        this(context, Service, callback, new Handler(Looper.getMainLooper()));
+    }
+
+    public GattManager(Context context, String Service, GattManagerCallback callback, Handler handler) {
         mContext = context;
         mService = Service;
+        mServiceHash = IdentityPayload.hashService(Service);
         mCallback = callback;
+        mHandler = handler;
+
+        mPendingQueue = new PriorityQueue<>(16, PRIORITY);
+        mPendingRequests = new HashMap<>();
+        mConnections = new HashMap<>();
+        mFailures = new LinkedHashMap<String, Failure>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Failure> eldest) {
+                return size() > MAX_FAILURES;
+            }
+        };
+        mMaxConcurrentConnections = 2;
+        mMaxPendingRequests = 64;
+        mConnectionTimeoutMillis = 10000;
+        mPendingTimeoutMillis = 30000;
+    }
 
-        mGattConnections = new HashMap<>();
-        mGattConnectionStartTimes = new HashMap<>();
-        mGattTimeoutInterval = 30;
-
+    public void identify(BluetoothDevice device) {
+        identify(device, Integer.MIN_VALUE);
     }
 
     // call this method to try to identify a device.
-    // this will attempt to connect to the device and read its services
-    // if a service matching ours is found. the callback didMatchService is called and we try to read the characteristics
+    // the device is queued, and connected to when a connection slot is free and no closer device is waiting.
+    // on connection we read its services:
     // if we can read the characteristic matching our service, the callback didIdentify is called with the service
-    // if no service matching ours is found, the callback failedToMatchService is called.
-    public void identify(final BluetoothDevice device) {
-        boolean shouldConnect = false;
-
-        // first check if there are any existing connection attempts in progress.
-        // If there are, check to see if they have timed out.
-        // If they have, cancel them and try again. If not, wait..
-        // if no existing attempts, start a new one and store it (if successful).
-        long currentTime = new Date().getTime();
-        BluetoothGatt existingGatt = mGattConnections.get(device.getAddress());
-
-        if (existingGatt == null) {
-            Log.v(TAG, device.getAddress() + " - device not identified. will connect");
-            shouldConnect = true;
+    // if the characteristic read holds another service, the callback failedToMatchService is called.
+    // if the read doesn't settle it, the device is identified again the next time it's requested,
+    // once its backoff is over.
+    // must be called on the handler's thread.
+    public void identify(BluetoothDevice device, int rssi) {
+        String address = device.getAddress();
+
+        if (mNegativeCache != null && mNegativeCache.contains(DeviceRegistry.packAddress(address), System.currentTimeMillis())) {
+            Log.v(TAG, address + " - known not to be ours. skipped");
+            return;
+        }
+
+        if (mConnections.containsKey(address)) {
+            Log.v(TAG, address + " - device not identified. connection already in progress");
+            return;
+        }
+
+        Failure failure = mFailures.get(address);
+        if (failure != null && SystemClock.uptimeMillis() < failure.retryAt) {
+            Log.v(TAG, address + " - last attempt failed. backing off");
+            return;
+        }
+
+        Request pending = mPendingRequests.get(address);
+        if (pending != null) {
+            // move it according to its latest rssi
+            mPendingQueue.remove(pending);
+            pending.rssi = rssi;
+            mPendingQueue.add(pending);
         } else {
-            long startedAt = mGattConnectionStartTimes.get(device.getAddress());
-            if (currentTime - startedAt < mGattTimeoutInterval * 1000) {
-                Log.v(TAG, device.getAddress() + " - device not identified. connection already in progress");
-                shouldConnect = false;
-            } else {
-                Log.w(TAG, device.getAddress() + " - connection did timeout. will retry");
-                existingGatt.disconnect();
-                existingGatt.close();
-                mGattConnections.remove(device.getAddress());
-                mGattConnectionStartTimes.remove(device.getAddress());
-                shouldConnect = true;
+            Request request = new Request(device, rssi, SystemClock.uptimeMillis());
+            if (mPendingRequests.size() >= mMaxPendingRequests && !dropFarthestRequest(request))
+                return;
+
+            Log.v(TAG, address + " - device not identified. queued");
+            mPendingQueue.add(request);
+            mPendingRequests.put(address, request);
+        }
+
+        connectNext();
+    }
+
+    // makes room for the request by dropping the farthest pending one, if the request is closer.
+    // dropped devices are requested again the next time they're seen.
+    private boolean dropFarthestRequest(Request request) {
+        Request farthest = null;
+        for (Request pending : mPendingQueue) {
+            if (farthest == null || PRIORITY.compare(pending, farthest) > 0)
+                farthest = pending;
+        }
+
+        if (farthest == null || PRIORITY.compare(request, farthest) >= 0)
+            return false;
+
+        mPendingQueue.remove(farthest);
+        mPendingRequests.remove(farthest.address);
+        return true;
+    }
+
+    // starts connections to the closest pending devices while slots are free
+    private void connectNext() {
+        long now = SystemClock.uptimeMillis();
+
+        while (mConnections.size() < mMaxConcurrentConnections && !mPendingQueue.isEmpty()) {
+            Request request = mPendingQueue.poll();
+            mPendingRequests.remove(request.address);
+
+            // it's probably gone, it will be requested again if it shows up
+            if (now - request.requestedAt > mPendingTimeoutMillis)
+                continue;
+
+            connect(request);
+        }
+    }
+
+    private void connect(Request request) {
+        final String address = request.address;
+        long startedAt = SystemClock.uptimeMillis();
+        // one callback per connection, to time its steps
+        MyBluetoothGattCallback callback = new MyBluetoothGattCallback(startedAt);
+        BluetoothGatt gatt;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            gatt = request.device.connectGatt(mContext, false, callback, BluetoothDevice.TRANSPORT_LE);
+        } else {
+            gatt = request.device.connectGatt(mContext, false, callback);
+        }
+
+        if (gatt == null) {
+            Log.w(TAG, address + " - connection failed to start");
+            recordFailure(address);
+            return;
+        }
+
+        Log.v(TAG, address + " - attempted connection");
+        Connection connection = new Connection(request);
+        connection.gatt = gatt;
+        connection.startedAt = startedAt;
+        connection.timeout = new Runnable() {
+            @Override
+            public void run() {
+                Log.w(TAG, address + " - connection did timeout");
+                finishConnection(address);
             }
+        };
+        mConnections.put(address, connection);
+        mHandler.postDelayed(connection.timeout, mConnectionTimeoutMillis);
+    }
+
+    // closes the connection, frees its slot and starts the next one.
+    // a connection that didn't settle the device counts as a failed attempt.
+    private void finishConnection(String address) {
+        Connection connection = mConnections.remove(address);
+        if (connection == null)
+            return;
+
+        mHandler.removeCallbacks(connection.timeout);
+        connection.gatt.disconnect();
+        connection.gatt.close();
+
+        if (connection.settled) {
+            mFailures.remove(address);
+        } else {
+            recordFailure(address);
         }
 
-        if (shouldConnect) {
-            Handler handler = new Handler(Looper.getMainLooper());
-            handler.post(new Runnable() {
-                @Override
-                public void run() {
-                    BluetoothGatt gatt = device.connectGatt(mContext, false, mMyBluetoothGattCallback);
-                    if (gatt != null) {
-                        Log.v(TAG, device.getAddress() + " - attempted connection");
-                        mGattConnections.put(device.getAddress(), gatt);
-                        mGattConnectionStartTimes.put(device.getAddress(), new Date().getTime());
-                    }
-                }
-            });
+        connectNext();
+    }
+
+    // backs the device off, or leaves it out for a while after too many failures
+    private void recordFailure(String address) {
+        Failure failure = mFailures.get(address);
+        if (failure == null) {
+            failure = new Failure();
+            mFailures.put(address, failure);
+        }
+        failure.attempts++;
+
+        if (failure.attempts >= MAX_FAILED_ATTEMPTS && mNegativeCache != null) {
+            Log.v(TAG, address + " - " + failure.attempts + " failed attempts. skipped for a while");
+            long now = System.currentTimeMillis();
+            mNegativeCache.put(DeviceRegistry.packAddress(address), now + FAILED_DEVICE_TTL_MILLIS, now);
+            mFailures.remove(address);
+            return;
         }
 
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, FIRST_BACKOFF_MILLIS << Math.min(failure.attempts - 1, 16));
+        failure.retryAt = SystemClock.uptimeMillis() + backoff;
+    }
+
+    /**
+     * Drops the pending requests and closes every connection.
+     */
+    public void close() {
+        mPendingQueue.clear();
+        mPendingRequests.clear();
+        mFailures.clear();
+
+        Iterator<Connection> iterator = mConnections.values().iterator();
+        while (iterator.hasNext()) {
+            Connection connection = iterator.next();
+            iterator.remove();
+            mHandler.removeCallbacks(connection.timeout);
+            connection.gatt.disconnect();
+            connection.gatt.close();
+        }
+    }
+
+    // the value read from the device, on the handler's thread.
+    // identifies the device (or not) and closes the connection right away, without waiting for the disconnection.
+    // conclusive is whether the characteristic is laid out as peers do, so a value that doesn't match
+    // means the device isn't ours, rather than that the wrong characteristic was read.
+    private void handleRead(String address, UUID characteristicUuid, byte[] value, boolean conclusive) {
+        Connection connection = mConnections.get(address);
+        if (connection == null)
+            return;
+
+        BluetoothDevice device = connection.request.device;
+        if (IdentityGattServer.IDENTITY_CHARACTERISTIC_UUID.equals(characteristicUuid)) {
+            if (!mPayload.read(value, 0, value != null ? value.length : 0)) {
+                Log.v(TAG, address + " - unreadable identity, will retry");
+            } else if (mPayload.getServiceHash() == mServiceHash) {
+                UUID uuid = new UUID(mPayload.getUuidMostSignificantBits(), mPayload.getUuidLeastSignificantBits());
+                identified(connection, mService, new ParcelUuid(uuid));
+            } else {
+                Log.v(TAG, address + " - identity of another service");
+                connection.settled = true;
+                mCallback.failedToMatchService(device);
+            }
+        } else {
+            String service = value != null ? new String(value, UTF_8) : null;
+            if (mService.equals(service)) {
+                identified(connection, service, new ParcelUuid(characteristicUuid));
+            } else if (conclusive && service != null && !service.isEmpty()) {
+                Log.v(TAG, address + " - service not matching");
+                connection.settled = true;
+                mCallback.failedToMatchService(device);
+            } else {
+                Log.v(TAG, address + " - no service in the characteristic read, will retry");
+            }
+        }
+
+        finishConnection(address);
+    }
+
+    private void identified(Connection connection, String service, ParcelUuid uuid) {
+        Log.v(TAG, connection.request.address + " - found MY service!");
+        connection.settled = true;
+        mMetrics.getGattIdentifyLatency().record(SystemClock.uptimeMillis() - connection.startedAt);
+        mCallback.didIdentify(connection.request.device, service, uuid);
+    }
+
+
+    // devices whose packed address is in the cache are never connected to
+    public void setNegativeCache(NegativeCache negativeCache) {
+        mNegativeCache = negativeCache;
+    }
+
+    public int getPendingCount() {
+        return mPendingRequests.size();
+    }
+
+    public int getConnectionCount() {
+        return mConnections.size();
+    }
+
+    public int getMaxConcurrentConnections() {
+        return mMaxConcurrentConnections;
+    }
+
+    // how many devices are connected to at once. Controllers only have a few connection slots,
+    // which the device's other bluetooth peripherals also use.
+    public void setMaxConcurrentConnections(int maxConcurrentConnections) {
+        mMaxConcurrentConnections = Math.max(1, maxConcurrentConnections);
+        connectNext();
+    }
+
+    public long getConnectionTimeoutMillis() {
+        return mConnectionTimeoutMillis;
+    }
+
+    // how long a connection may take to identify the device before its slot is given to the next one
+    public void setConnectionTimeoutMillis(long connectionTimeoutMillis) {
+        mConnectionTimeoutMillis = connectionTimeoutMillis;
     }
 
     private class MyBluetoothGattCallback extends BluetoothGattCallback {
+        // when each step started, callbacks may arrive on different Binder threads
+        private final long mStartedAt;
+        private volatile long mDiscoverStartedAt;
+        private volatile long mReadStartedAt;
+        // whether the characteristic read is laid out as peers do, see handleRead
+        private volatile boolean mConclusiveRead;
+
+        MyBluetoothGattCallback(long startedAt) {
+            mStartedAt = startedAt;
+        }
 
         @Override
         public void onConnectionStateChange(final BluetoothGatt gatt, final int status, final int newState) {
             // this will get called when a device connects or disconnects
             if (newState == BluetoothProfile.STATE_CONNECTED) {
                 Log.v(TAG, gatt.getDevice().getAddress() + " - connected!");
+                mMetrics.getGattConnectLatency().record(SystemClock.uptimeMillis() - mStartedAt);
 
-                boolean started = gatt.discoverServices();
-
-                if (!started) {
-                    gatt.disconnect();
+                // the service discovery starts once the MTU is exchanged, the stack runs one request at a time
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                    gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+                    if (gatt.requestMtu(PREFERRED_MTU))
+                        return;
                 }
+                discoverServices(gatt);
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 Log.v(TAG, gatt.getDevice().getAddress() + " - disconnected...");
-                gatt.close();
-                mGattConnections.remove(gatt.getDevice().getAddress());
-                mGattConnectionStartTimes.remove(gatt.getDevice().getAddress());
+                final String address = gatt.getDevice().getAddress();
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        finishConnection(address);
+                    }
+                });
 
             } else {
                 Log.v(TAG, gatt.getDevice().getAddress() + " status: " + status);
             }
         }
 
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            // the discovery goes on with the default MTU if the device refused
+            discoverServices(gatt);
+        }
+
+        private void discoverServices(BluetoothGatt gatt) {
+            mDiscoverStartedAt = SystemClock.uptimeMillis();
+            if (!gatt.discoverServices())
+                gatt.disconnect();
+        }
+
         @Override
         public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
             // this will get called after the client initiates a BluetoothGatt.discoverServices() call
-            // BluetoothGattService service = gatt.getService(mServiceUUID.getUuid());            
-            List<BluetoothGattService> gattServices =  gatt.getServices();
-        
-            BluetoothGattService service = null;
-
+            mMetrics.getGattDiscoverLatency().record(SystemClock.uptimeMillis() - mDiscoverStartedAt);
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                gatt.disconnect();
+                return;
+            }
 
-            if(gattServices.size() > 0 ){
-                service  = gattServices.get(gattServices.size() - 1);
+            // no characteristic to read isn't conclusive either: the services may be a stale copy
+            // cached by the stack, the device is identified again the next time it's requested
+            BluetoothGattCharacteristic characteristic = findIdentityCharacteristic(gatt);
+            mReadStartedAt = SystemClock.uptimeMillis();
+            if (characteristic == null || !gatt.readCharacteristic(characteristic)) {
+                if (characteristic == null)
+                    Log.v(TAG, gatt.getDevice().getAddress() + " - no characteristic to read, will retry");
+                gatt.disconnect();
             }
-            
-            Boolean isMyService = false;
+        }
 
+        // the characteristic to read to identify the device, or null if it has none
+        private BluetoothGattCharacteristic findIdentityCharacteristic(BluetoothGatt gatt) {
+            BluetoothGattService service = gatt.getService(IdentityGattServer.IDENTITY_SERVICE_UUID);
             if (service != null) {
-                List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
-
-                for (BluetoothGattCharacteristic characteristic : characteristics) {
-                    if (gatt.getDevice().getName().equals(mService)) {
-                        isMyService = true;
-                        Log.v(TAG, gatt.getDevice().getAddress() + " - found MY service!");
-
-                        gatt.setCharacteristicNotification(characteristic, true);
-                        gatt.readCharacteristic(characteristic);
-                    }
+                BluetoothGattCharacteristic characteristic = service.getCharacteristic(IdentityGattServer.IDENTITY_CHARACTERISTIC_UUID);
+                if (characteristic != null) {
+                    mConclusiveRead = true;
+                    return characteristic;
                 }
             }
 
-
-            if (!isMyService) {
-                mCallback.failedToMatchService(gatt.getDevice());
-                gatt.disconnect();
-            }
-
+            // legacy peers: the last service, whose characteristic has the same uuid
+            List<BluetoothGattService> gattServices = gatt.getServices();
+            if (gattServices.isEmpty())
+                return null;
+
+            service = gattServices.get(gattServices.size() - 1);
+            BluetoothGattCharacteristic characteristic = service.getCharacteristic(service.getUuid());
+            mConclusiveRead = characteristic != null;
+            if (characteristic == null && !service.getCharacteristics().isEmpty())
+                characteristic = service.getCharacteristics().get(0);
+            return characteristic;
         }
 
         @Override
         public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            onCharacteristicChanged(gatt, characteristic);
-        }
-
-        @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            if (characteristic.getValue() != null) {
-                String value = characteristic.getStringValue(0);
-                ParcelUuid uuid = new ParcelUuid(characteristic.getUuid());
-
-                // if the value is not nil, we found our service!
-                if (value != null && value.length() > 0) {
-                    mCallback.didIdentify(gatt.getDevice(), value, uuid);
-                    // cancel the subscription to our characteristic
-                    gatt.setCharacteristicNotification(characteristic, false);
-                    // and disconnect from the peripehral
-                    gatt.disconnect();
+            mMetrics.getGattReadLatency().record(SystemClock.uptimeMillis() - mReadStartedAt);
+            final String address = gatt.getDevice().getAddress();
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.v(TAG, address + " - read failed: " + status);
+                gatt.disconnect();
+                return;
+            }
 
+            final UUID uuid = characteristic.getUuid();
+            final byte[] value = characteristic.getValue();
+            final boolean conclusive = mConclusiveRead;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleRead(address, uuid, value, conclusive);
                 }
-            }
+            });
         }
     }
 
@@ -0,0 +1,333 @@
+package com.joshblour.discovery;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Remembers the identity (service and uuid) of peers that had to be identified over GATT, so they
+ * can be identified again without a connection, including after the app restarts.
+ *
+ * Entries are keyed by a long, e.g. the packed device address, and expire after the ttl counted
+ * from when the peer was last seen. They are kept in memory and persisted to an append-only file:
+ * every put appends a record and a later record for the same key replaces the earlier one when the
+ * file is loaded. Once the file holds mostly stale records it is rewritten with the live entries.
+ *
+ * Not thread-safe, use it from the thread that owns the users. File errors are logged and leave
+ * the cache working from memory.
+ */
+public class IdentityCache {
+    private final static String TAG = "RNDiscovery-IdentityCache";
+
+    private static final int MAGIC = 0x52444943; // "RDIC"
+    private static final int VERSION = 1;
+    private static final int MAX_SERVICE_BYTES = 255;
+    // rewrite the file once it holds this many more records than live entries
+    private static final int COMPACTION_SLACK = 64;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static class Entry {
+        String service;
+        long uuidMostSignificantBits;
+        long uuidLeastSignificantBits;
+        long lastSeen;
+
+        public String getService() {
+            return service;
+        }
+
+        public long getUuidMostSignificantBits() {
+            return uuidMostSignificantBits;
+        }
+
+        public long getUuidLeastSignificantBits() {
+            return uuidLeastSignificantBits;
+        }
+
+        public long getLastSeen() {
+            return lastSeen;
+        }
+    }
+
+    private final File mFile;
+    private final Map<Long, Entry> mEntries = new HashMap<>();
+    private long mTtlMillis;
+    private int mRecordCount;
+    private boolean mLoaded;
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mAvoidedConnectionCount;
+
+    /**
+     * @param file where the entries are persisted, null to only keep them in memory
+     */
+    public IdentityCache(File file, long ttlMillis) {
+        mFile = file;
+        mTtlMillis = ttlMillis;
+    }
+
+    /**
+     * Reads the persisted entries, dropping the expired ones. Called by the first lookup if needed.
+     */
+    public void load(long now) {
+        if (mLoaded)
+            return;
+        mLoaded = true;
+
+        if (mFile == null || !mFile.exists())
+            return;
+
+        boolean corrupted = false;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("unknown cache file format");
+
+            while (true) {
+                long key;
+                try {
+                    key = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                Entry entry = new Entry();
+                entry.uuidMostSignificantBits = in.readLong();
+                entry.uuidLeastSignificantBits = in.readLong();
+                entry.lastSeen = in.readLong();
+                byte[] service = new byte[in.readUnsignedByte()];
+                in.readFully(service);
+                entry.service = new String(service, UTF_8);
+
+                // an empty service marks a removed entry
+                if (service.length == 0) {
+                    mEntries.remove(key);
+                } else {
+                    mEntries.put(key, entry);
+                }
+                mRecordCount++;
+            }
+        } catch (EOFException e) {
+            // a record was cut short by a crash while appending
+            Log.w(TAG, "truncated cache file");
+            corrupted = true;
+        } catch (IOException e) {
+            Log.e(TAG, "couldn't read the identity cache", e);
+            corrupted = true;
+        } finally {
+            closeQuietly(in);
+        }
+
+        evictExpired(now);
+        // appending after a partial record would misalign every later one, start from a clean file
+        if (corrupted) {
+            rewrite();
+        } else {
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * @return the entry for the key if it hasn't expired, null otherwise. Counts a hit or a miss.
+     */
+    public Entry get(long key, long now) {
+        load(now);
+
+        Entry entry = mEntries.get(key);
+        if (entry != null && now - entry.lastSeen > mTtlMillis) {
+            mEntries.remove(key);
+            entry = null;
+        }
+
+        if (entry == null) {
+            mMissCount++;
+        } else {
+            mHitCount++;
+        }
+        return entry;
+    }
+
+    /**
+     * Stores the identity of a peer seen at lastSeen.
+     */
+    public void put(long key, String service, long uuidMostSignificantBits, long uuidLeastSignificantBits, long lastSeen) {
+        if (service == null || service.getBytes(UTF_8).length > MAX_SERVICE_BYTES)
+            return;
+
+        load(lastSeen);
+
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(key, entry);
+        }
+        entry.service = service;
+        entry.uuidMostSignificantBits = uuidMostSignificantBits;
+        entry.uuidLeastSignificantBits = uuidLeastSignificantBits;
+        entry.lastSeen = lastSeen;
+
+        append(key, entry);
+        compactIfNeeded();
+    }
+
+    /**
+     * Moves the expiry of an entry to ttl after lastSeen. The new time is only persisted once it has
+     * moved by a significant part of the ttl, to keep the file from growing with every sighting.
+     */
+    public void touch(long key, long lastSeen) {
+        Entry entry = mEntries.get(key);
+        if (entry == null || lastSeen <= entry.lastSeen)
+            return;
+
+        boolean persist = lastSeen - entry.lastSeen > mTtlMillis / 4;
+        entry.lastSeen = lastSeen;
+
+        if (persist) {
+            append(key, entry);
+            compactIfNeeded();
+        }
+    }
+
+    public void remove(long key) {
+        if (mEntries.remove(key) == null)
+            return;
+
+        // hides the earlier records when the file is loaded
+        Entry tombstone = new Entry();
+        tombstone.service = "";
+        append(key, tombstone);
+        compactIfNeeded();
+    }
+
+    /**
+     * Records that an entry made a GATT connection unnecessary.
+     */
+    public void countAvoidedConnection() {
+        mAvoidedConnectionCount++;
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    public long getHitCount() {
+        return mHitCount;
+    }
+
+    public long getMissCount() {
+        return mMissCount;
+    }
+
+    public long getAvoidedConnectionCount() {
+        return mAvoidedConnectionCount;
+    }
+
+    public long getTtlMillis() {
+        return mTtlMillis;
+    }
+
+    public void setTtlMillis(long ttlMillis) {
+        mTtlMillis = ttlMillis;
+    }
+
+    private void evictExpired(long now) {
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().lastSeen > mTtlMillis)
+                iterator.remove();
+        }
+    }
+
+    private void append(long key, Entry entry) {
+        if (mFile == null)
+            return;
+
+        DataOutputStream out = null;
+        try {
+            boolean exists = mFile.exists();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, true)));
+            if (!exists) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+            }
+            writeRecord(out, key, entry);
+            mRecordCount++;
+        } catch (IOException e) {
+            Log.e(TAG, "couldn't write the identity cache", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (mRecordCount > mEntries.size() * 2 + COMPACTION_SLACK)
+            rewrite();
+    }
+
+    // writes the live entries to a new file and swaps it in, so a crash never leaves a partial file
+    private void rewrite() {
+        if (mFile == null)
+            return;
+
+        File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Map.Entry<Long, Entry> entry : mEntries.entrySet()) {
+                writeRecord(out, entry.getKey(), entry.getValue());
+            }
+            out.close();
+            out = null;
+
+            if (!temp.renameTo(mFile)) {
+                Log.w(TAG, "couldn't replace the identity cache file");
+                temp.delete();
+                return;
+            }
+            mRecordCount = mEntries.size();
+        } catch (IOException e) {
+            Log.e(TAG, "couldn't compact the identity cache", e);
+            temp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, long key, Entry entry) throws IOException {
+        byte[] service = entry.service.getBytes(UTF_8);
+        out.writeLong(key);
+        out.writeLong(entry.uuidMostSignificantBits);
+        out.writeLong(entry.uuidLeastSignificantBits);
+        out.writeLong(entry.lastSeen);
+        out.writeByte(service.length);
+        out.write(service);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null)
+            return;
+
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+    }
+}
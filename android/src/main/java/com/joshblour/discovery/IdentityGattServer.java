@@ -0,0 +1,314 @@
+package com.joshblour.discovery;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Hosts the GATT services peers read to identify this device:
+ * - the legacy service, whose service and characteristic uuids are the user uuid and whose value
+ *   is the service name, as read by older peers
+ * - the identity service, at fixed uuids, whose value is the identity payload. It fits in a
+ *   single ATT read at the default MTU.
+ *
+ * Values are computed once when the server opens, so read requests are answered straight from the
+ * binder thread. Peers only need one read: once a client has read a value to its end it is
+ * disconnected shortly after, and clients that stay connected without finishing are disconnected
+ * after an idle timeout. Clients beyond the maximum are refused and disconnected.
+ *
+ * Devices are tracked, and count towards the maximum, from their first access to the server: a
+ * read, a write or descriptor request, or an MTU exchange, so a client that connects and never
+ * reads is disconnected too. Other connections of the phone (e.g. to its watch) are reported to the
+ * callback too and left alone.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class IdentityGattServer {
+    private final static String TAG = "RNDiscovery-GattServer";
+
+    public static final UUID IDENTITY_SERVICE_UUID = UUID.fromString("b7f1d15c-6c1a-4e2b-9d3f-5a8e2c7b0001");
+    public static final UUID IDENTITY_CHARACTERISTIC_UUID = UUID.fromString("b7f1d15c-6c1a-4e2b-9d3f-5a8e2c7b0002");
+
+    private static final int DEFAULT_MAX_CLIENTS = 4;
+    private static final int DEFAULT_MTU = 23;
+    // leaves the client time to receive the response before the link goes down
+    private static final long DISCONNECT_AFTER_READ_MILLIS = 250;
+    private static final long IDLE_TIMEOUT_MILLIS = 3000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private volatile BluetoothGattServer mServer;
+
+    private volatile UUID mLegacyUuid;
+    private volatile byte[] mLegacyValue;
+    private volatile byte[] mIdentityValue;
+    private BluetoothGattService mPendingService;
+
+    // clients that accessed the server, by address, with the task that disconnects them
+    private final Map<String, Runnable> mClients = new HashMap<>();
+    // MTUs negotiated by clients, by address
+    private final Map<String, Integer> mMtus = new HashMap<>();
+    private int mMaxClients = DEFAULT_MAX_CLIENTS;
+
+    public IdentityGattServer(Context context, Handler handler) {
+        mContext = context;
+        mHandler = handler;
+    }
+
+    /**
+     * Opens the server with the values for the given identity, closing the previous one.
+     *
+     * @return false if the server couldn't be opened, e.g. because bluetooth is off
+     */
+    public boolean open(ParcelUuid uuid, String service) {
+        close();
+
+        BluetoothManager manager = (BluetoothManager) mContext.getSystemService(Context.BLUETOOTH_SERVICE);
+        if (manager == null)
+            return false;
+
+        mLegacyUuid = uuid.getUuid();
+        mLegacyValue = service.getBytes(UTF_8);
+        mIdentityValue = IdentityPayload.encode(service, uuid.getUuid());
+
+        mServer = manager.openGattServer(mContext, mCallback);
+        if (mServer == null) {
+            Log.w(TAG, "couldn't open the gatt server");
+            return false;
+        }
+
+        // services have to be added one at a time, the legacy service follows in onServiceAdded.
+        // older peers read the last service of the device, so it has to come after the identity service
+        synchronized (this) {
+            mPendingService = buildLegacyService();
+        }
+        mServer.addService(buildIdentityService());
+        return true;
+    }
+
+    public void close() {
+        synchronized (this) {
+            for (Runnable disconnect : mClients.values()) {
+                mHandler.removeCallbacks(disconnect);
+            }
+            mClients.clear();
+            mMtus.clear();
+            mPendingService = null;
+        }
+
+        if (mServer != null) {
+            mServer.close();
+            mServer = null;
+        }
+    }
+
+    public boolean isOpen() {
+        return mServer != null;
+    }
+
+    public int getMaxClients() {
+        return mMaxClients;
+    }
+
+    public void setMaxClients(int maxClients) {
+        mMaxClients = Math.max(1, maxClients);
+    }
+
+    private BluetoothGattService buildLegacyService() {
+        BluetoothGattService gattService = new BluetoothGattService(mLegacyUuid, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        gattService.addCharacteristic(new BluetoothGattCharacteristic(mLegacyUuid,
+                BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ));
+        return gattService;
+    }
+
+    private BluetoothGattService buildIdentityService() {
+        BluetoothGattService gattService = new BluetoothGattService(IDENTITY_SERVICE_UUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        gattService.addCharacteristic(new BluetoothGattCharacteristic(IDENTITY_CHARACTERISTIC_UUID,
+                BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ));
+        return gattService;
+    }
+
+    private byte[] valueFor(UUID characteristicUuid) {
+        if (IDENTITY_CHARACTERISTIC_UUID.equals(characteristicUuid))
+            return mIdentityValue;
+        if (characteristicUuid.equals(mLegacyUuid))
+            return mLegacyValue;
+        return null;
+    }
+
+    // returns false if the client has to be refused
+    private synchronized boolean trackClient(final BluetoothDevice device, long disconnectAfterMillis) {
+        String address = device.getAddress();
+        Runnable disconnect = mClients.get(address);
+
+        if (disconnect == null) {
+            if (mClients.size() >= mMaxClients)
+                return false;
+
+            disconnect = new Runnable() {
+                @Override
+                public void run() {
+                    disconnect(device);
+                }
+            };
+            mClients.put(address, disconnect);
+        } else {
+            mHandler.removeCallbacks(disconnect);
+        }
+
+        mHandler.postDelayed(disconnect, disconnectAfterMillis);
+        return true;
+    }
+
+    // starts tracking a client on an access that isn't a read, without delaying a disconnect already
+    // scheduled. returns false if the client has to be refused
+    private synchronized boolean touchClient(BluetoothDevice device) {
+        return mClients.containsKey(device.getAddress()) || trackClient(device, IDLE_TIMEOUT_MILLIS);
+    }
+
+    private void refuse(BluetoothDevice device) {
+        Log.v(TAG, device.getAddress() + " - too many clients, refused");
+        BluetoothGattServer server = mServer;
+        if (server != null)
+            server.cancelConnection(device);
+    }
+
+    private synchronized void untrackClient(BluetoothDevice device) {
+        Runnable disconnect = mClients.remove(device.getAddress());
+        if (disconnect != null)
+            mHandler.removeCallbacks(disconnect);
+        mMtus.remove(device.getAddress());
+    }
+
+    // how many bytes of a value fit in one read response to the device
+    private synchronized int readSizeFor(BluetoothDevice device) {
+        Integer mtu = mMtus.get(device.getAddress());
+        return (mtu != null ? mtu : DEFAULT_MTU) - 1;
+    }
+
+    private void disconnect(BluetoothDevice device) {
+        untrackClient(device);
+        BluetoothGattServer server = mServer;
+        if (server != null)
+            server.cancelConnection(device);
+    }
+
+    private final BluetoothGattServerCallback mCallback = new BluetoothGattServerCallback() {
+
+        @Override
+        public void onServiceAdded(int status, BluetoothGattService service) {
+            if (status != BluetoothGatt.GATT_SUCCESS)
+                Log.w(TAG, "couldn't add service " + service.getUuid() + ": " + status);
+
+            BluetoothGattService next;
+            synchronized (IdentityGattServer.this) {
+                next = mPendingService;
+                mPendingService = null;
+            }
+
+            BluetoothGattServer server = mServer;
+            if (next != null && server != null)
+                server.addService(next);
+        }
+
+        @Override
+        public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_DISCONNECTED)
+                untrackClient(device);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothDevice device, int mtu) {
+            if (!touchClient(device)) {
+                refuse(device);
+                return;
+            }
+
+            synchronized (IdentityGattServer.this) {
+                mMtus.put(device.getAddress(), mtu);
+            }
+        }
+
+        // our characteristics are read only, without descriptors: the other requests are answered
+        // with an error, so the client doesn't wait for its own timeout
+
+        @Override
+        public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId,
+                                                 BluetoothGattCharacteristic characteristic, boolean preparedWrite,
+                                                 boolean responseNeeded, int offset, byte[] value) {
+            rejectRequest(device, requestId, responseNeeded, BluetoothGatt.GATT_WRITE_NOT_PERMITTED, offset);
+        }
+
+        @Override
+        public void onDescriptorReadRequest(BluetoothDevice device, int requestId, int offset,
+                                            BluetoothGattDescriptor descriptor) {
+            rejectRequest(device, requestId, true, BluetoothGatt.GATT_READ_NOT_PERMITTED, offset);
+        }
+
+        @Override
+        public void onDescriptorWriteRequest(BluetoothDevice device, int requestId, BluetoothGattDescriptor descriptor,
+                                             boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
+            rejectRequest(device, requestId, responseNeeded, BluetoothGatt.GATT_WRITE_NOT_PERMITTED, offset);
+        }
+
+        private void rejectRequest(BluetoothDevice device, int requestId, boolean responseNeeded, int status, int offset) {
+            BluetoothGattServer server = mServer;
+            if (server == null)
+                return;
+
+            boolean tracked = touchClient(device);
+            if (responseNeeded)
+                server.sendResponse(device, requestId, tracked ? status : BluetoothGatt.GATT_FAILURE, offset, null);
+            if (!tracked)
+                refuse(device);
+        }
+
+        @Override
+        public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset,
+                                                BluetoothGattCharacteristic characteristic) {
+            BluetoothGattServer server = mServer;
+            if (server == null)
+                return;
+
+            byte[] value = valueFor(characteristic.getUuid());
+            if (value == null) {
+                server.sendResponse(device, requestId, BluetoothGatt.GATT_READ_NOT_PERMITTED, offset, null);
+                return;
+            }
+
+            if (offset > value.length) {
+                server.sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset, null);
+                return;
+            }
+
+            // the stack sends what fits in the MTU, the client reads the rest from a larger offset
+            boolean complete = value.length - offset <= readSizeFor(device);
+            if (!trackClient(device, complete ? DISCONNECT_AFTER_READ_MILLIS : IDLE_TIMEOUT_MILLIS)) {
+                server.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, offset, null);
+                refuse(device);
+                return;
+            }
+
+            server.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset,
+                    offset == 0 ? value : Arrays.copyOfRange(value, offset, value.length));
+        }
+    };
+}
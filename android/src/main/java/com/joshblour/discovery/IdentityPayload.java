@@ -0,0 +1,192 @@
+package com.joshblour.discovery;
+
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * The identity a peer advertises as manufacturer specific data, so scanners can identify it from a
+ * single packet instead of reading its name or connecting to it.
+ *
+ * 16-bit service uuids are assigned by the Bluetooth SIG, and a 128-bit one leaves no room for the
+ * payload in a legacy advertisement, so the payload goes in the manufacturer data of a company id:
+ * {@link #DEFAULT_COMPANY_ID} unless the app sets the one the SIG assigned to its vendor (see
+ * {@link #setCompanyId(int)}). After the company id comes {@link #MARKER}, telling the payload
+ * from the company's other data, then in big endian order:
+ *
+ *     version (1 byte) | FNV-1a 32 hash of the service, UTF-8 (4 bytes) | user uuid (16 bytes)
+ *
+ * With the AD header (2 bytes), the company id (2) and the marker (2), it takes 27 bytes, which
+ * fits a legacy 31-byte scan response next to the TX power (3). Scanners compare the hash with
+ * their own service: a peer of another service is recognized as such without a connection either.
+ *
+ * Peers advertising in extended mode may also send an app defined profile, appended to the
+ * payload. It doesn't fit a legacy advertisement.
+ *
+ * Peers also serve the payload, without the marker, as the value of the identity characteristic of
+ * their GATT server.
+ *
+ * A reader is a flyweight over an {@link AdvertisementParser}: {@link #read(AdvertisementParser)}
+ * only copies primitives, so it can be used for every packet. Not thread-safe.
+ */
+public class IdentityPayload {
+
+    // the id the SIG reserves for tests. Apps that ship should set the one assigned to their vendor.
+    public static final int DEFAULT_COMPANY_ID = 0xFFFF;
+    // precedes the payload in the manufacturer data
+    public static final int MARKER = 0xD15C;
+    public static final int MARKER_LENGTH = 2;
+    public static final int VERSION = 1;
+    // version, service hash and uuid
+    public static final int LENGTH = 1 + 4 + 16;
+
+    private static final int FNV32_OFFSET_BASIS = 0x811C9DC5;
+    private static final int FNV32_PRIME = 0x01000193;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private int mCompanyId = DEFAULT_COMPANY_ID;
+    private int mServiceHash;
+    private long mUuidMostSignificantBits;
+    private long mUuidLeastSignificantBits;
+    private int mProfileOffset;
+    private int mProfileLength;
+
+    public int getCompanyId() {
+        return mCompanyId;
+    }
+
+    // the company id whose manufacturer data read(AdvertisementParser) looks into
+    public void setCompanyId(int companyId) {
+        mCompanyId = companyId;
+    }
+
+    /**
+     * Reads the payload from the record last parsed by the parser.
+     *
+     * @return true if the record holds a payload of a version this reader understands
+     */
+    public boolean read(AdvertisementParser parser) {
+        int index = parser.findManufacturerData(mCompanyId);
+        if (index < 0)
+            return false;
+
+        byte[] data = parser.getData();
+        int offset = parser.getManufacturerDataOffset(index);
+        int length = parser.getManufacturerDataLength(index);
+        if (length < MARKER_LENGTH || ((data[offset] & 0xFF) << 8 | (data[offset + 1] & 0xFF)) != MARKER)
+            return false;
+
+        return read(data, offset + MARKER_LENGTH, length - MARKER_LENGTH);
+    }
+
+    /**
+     * Reads a payload from the bytes, e.g. the value of the identity characteristic.
+     *
+     * @return true if the bytes hold a payload of a version this reader understands
+     */
+    public boolean read(byte[] data, int offset, int length) {
+        // later versions may only append fields
+        if (data == null || length < LENGTH || (data[offset] & 0xFF) < VERSION)
+            return false;
+
+        mServiceHash = (int) readBigEndian(data, offset + 1, 4);
+        mUuidMostSignificantBits = readBigEndian(data, offset + 5, 8);
+        mUuidLeastSignificantBits = readBigEndian(data, offset + 13, 8);
+        mProfileOffset = offset + LENGTH;
+        mProfileLength = length - LENGTH;
+        return true;
+    }
+
+    public int getServiceHash() {
+        return mServiceHash;
+    }
+
+    public long getUuidMostSignificantBits() {
+        return mUuidMostSignificantBits;
+    }
+
+    public long getUuidLeastSignificantBits() {
+        return mUuidLeastSignificantBits;
+    }
+
+    /**
+     * @return whether the last payload read has a profile, at getProfileOffset() in the data read
+     */
+    public boolean hasProfile() {
+        return mProfileLength > 0;
+    }
+
+    public int getProfileOffset() {
+        return mProfileOffset;
+    }
+
+    public int getProfileLength() {
+        return mProfileLength;
+    }
+
+    /**
+     * @return the payload of a peer of the service with the given uuid, as served by the identity characteristic
+     */
+    public static byte[] encode(String service, UUID uuid) {
+        byte[] payload = new byte[LENGTH];
+        payload[0] = VERSION;
+        writeBigEndian(payload, 1, 4, hashService(service));
+        writeBigEndian(payload, 5, 8, uuid.getMostSignificantBits());
+        writeBigEndian(payload, 13, 8, uuid.getLeastSignificantBits());
+        return payload;
+    }
+
+    public static int hashService(String service) {
+        byte[] bytes = service.getBytes(UTF_8);
+        int hash = FNV32_OFFSET_BASIS;
+        for (byte b : bytes) {
+            hash ^= b & 0xFF;
+            hash *= FNV32_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * @param profile appended to the payload, null for none
+     * @return the manufacturer data advertised by a peer of the service, after the company id
+     */
+    public static byte[] encodeManufacturerData(String service, UUID uuid, byte[] profile) {
+        int profileLength = profile != null ? profile.length : 0;
+        byte[] data = new byte[MARKER_LENGTH + LENGTH + profileLength];
+        writeBigEndian(data, 0, MARKER_LENGTH, MARKER);
+        System.arraycopy(encode(service, uuid), 0, data, MARKER_LENGTH, LENGTH);
+        if (profile != null)
+            System.arraycopy(profile, 0, data, MARKER_LENGTH + LENGTH, profileLength);
+        return data;
+    }
+
+    /**
+     * @return a scan filter matching the payloads of the service's peers, whatever their uuid
+     */
+    public static ScanFilterSpec toScanFilter(String service, int companyId) {
+        byte[] prefix = new byte[MARKER_LENGTH + 5];
+        writeBigEndian(prefix, 0, MARKER_LENGTH, MARKER);
+        prefix[MARKER_LENGTH] = VERSION;
+        writeBigEndian(prefix, MARKER_LENGTH + 1, 4, hashService(service));
+
+        byte[] mask = new byte[prefix.length];
+        for (int i = 0; i < mask.length; i++) {
+            mask[i] = (byte) 0xFF;
+        }
+        return new ScanFilterSpec().setManufacturerData(companyId, prefix, mask);
+    }
+
+    private static long readBigEndian(byte[] data, int offset, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static void writeBigEndian(byte[] data, int offset, int length, long value) {
+        for (int i = length - 1; i >= 0; i--) {
+            data[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.joshblour.discovery;
+
+/**
+ * One dimensional Kalman filter modelling the rssi as a random walk.
+ *
+ * The uncertainty of the estimate grows by processNoise for every second since the previous
+ * sample, so after a long gap the next sample is trusted more, while a burst of samples is
+ * averaged. measurementNoise is the variance of a single sample, in dBm squared.
+ */
+public class KalmanRssiFilter implements RssiFilter {
+
+    private final float mProcessNoise;
+    private final float mMeasurementNoise;
+
+    private float mValue;
+    private float mCovariance;
+    private long mLastTimestamp;
+    private boolean mHasValue;
+
+    /**
+     * @param processNoise how much the real rssi varies per second, in dBm squared
+     * @param measurementNoise variance of a sample around the real rssi, in dBm squared
+     */
+    public KalmanRssiFilter(float processNoise, float measurementNoise) {
+        if (processNoise < 0 || measurementNoise <= 0)
+            throw new IllegalArgumentException("invalid noise: " + processNoise + ", " + measurementNoise);
+
+        mProcessNoise = processNoise;
+        mMeasurementNoise = measurementNoise;
+    }
+
+    @Override
+    public float update(int rssi, long timestamp) {
+        if (!mHasValue) {
+            mValue = rssi;
+            mCovariance = mMeasurementNoise;
+            mHasValue = true;
+        } else {
+            // predict: the device may have moved since the previous sample
+            long elapsed = Math.max(0, timestamp - mLastTimestamp);
+            mCovariance += mProcessNoise * elapsed / 1000f;
+
+            // correct
+            float gain = mCovariance / (mCovariance + mMeasurementNoise);
+            mValue += gain * (rssi - mValue);
+            mCovariance *= 1 - gain;
+        }
+
+        mLastTimestamp = Math.max(mLastTimestamp, timestamp);
+        return mValue;
+    }
+
+    @Override
+    public float getValue() {
+        return mValue;
+    }
+
+    @Override
+    public void reset() {
+        mValue = 0;
+        mCovariance = 0;
+        mLastTimestamp = 0;
+        mHasValue = false;
+    }
+
+    @Override
+    public RssiFilter newInstance() {
+        return new KalmanRssiFilter(mProcessNoise, mMeasurementNoise);
+    }
+
+    public float getProcessNoise() {
+        return mProcessNoise;
+    }
+
+    public float getMeasurementNoise() {
+        return mMeasurementNoise;
+    }
+}
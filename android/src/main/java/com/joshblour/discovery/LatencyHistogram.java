@@ -0,0 +1,143 @@
+package com.joshblour.discovery;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in buckets whose upper bounds double from the first one: the memory used is
+ * fixed whatever the number of samples, and percentiles are accurate to a bucket. Latencies past
+ * the last bound are counted in an overflow bucket. Samples have no unit of their own, e.g.
+ * milliseconds for connections and microseconds for work on the discovery thread.
+ *
+ * Lock-free: samples may be recorded from any thread. A reset racing with a record may leave that
+ * sample partially counted.
+ */
+public class LatencyHistogram {
+
+    public static final long DEFAULT_FIRST_BUCKET_BOUND = 25;
+    public static final int DEFAULT_BUCKET_COUNT = 10;
+
+    private final long mFirstBucketBound;
+    private final int mBucketCount;
+    private final AtomicLongArray mCounts;
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong mMax = new AtomicLong();
+
+    // buckets from 25 to 12800, e.g. milliseconds
+    public LatencyHistogram() {
+        this(DEFAULT_FIRST_BUCKET_BOUND, DEFAULT_BUCKET_COUNT);
+    }
+
+    public LatencyHistogram(long firstBucketBound, int bucketCount) {
+        if (firstBucketBound <= 0 || bucketCount <= 0 || bucketCount > 48)
+            throw new IllegalArgumentException("invalid buckets: " + bucketCount + " from " + firstBucketBound);
+
+        mFirstBucketBound = firstBucketBound;
+        mBucketCount = bucketCount;
+        mCounts = new AtomicLongArray(bucketCount + 1);
+    }
+
+    /**
+     * @return the number of buckets, without the overflow bucket
+     */
+    public int getBucketCount() {
+        return mBucketCount;
+    }
+
+    /**
+     * @return the upper bound (inclusive) of the bucket, or Long.MAX_VALUE for the overflow bucket
+     * at index getBucketCount()
+     */
+    public long getBucketBound(int bucket) {
+        return bucket < mBucketCount ? mFirstBucketBound << bucket : Long.MAX_VALUE;
+    }
+
+    public void record(long latency) {
+        if (latency < 0)
+            latency = 0;
+
+        int bucket = 0;
+        while (bucket < mBucketCount && latency > getBucketBound(bucket)) {
+            bucket++;
+        }
+
+        mCounts.incrementAndGet(bucket);
+        mCount.incrementAndGet();
+        mSum.addAndGet(latency);
+
+        long min;
+        while (latency < (min = mMin.get()) && !mMin.compareAndSet(min, latency)) {
+            // raced with another sample, try again
+        }
+        long max;
+        while (latency > (max = mMax.get()) && !mMax.compareAndSet(max, latency)) {
+            // raced with another sample, try again
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMin() {
+        long min = mMin.get();
+        return min != Long.MAX_VALUE ? min : 0;
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public double getMean() {
+        long count = mCount.get();
+        return count > 0 ? (double) mSum.get() / count : 0;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper bound of the bucket holding the percentile, capped by the largest sample,
+     * or 0 if there's none
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = getBucketCounts();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0)
+            return 0;
+
+        long max = mMax.get();
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(getBucketBound(i), max);
+        }
+        return max;
+    }
+
+    /**
+     * @return a copy of the counts, by bucket. The last one is the overflow bucket.
+     */
+    public long[] getBucketCounts() {
+        long[] counts = new long[mBucketCount + 1];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = mCounts.get(i);
+        }
+        return counts;
+    }
+
+    public void reset() {
+        for (int i = 0; i <= mBucketCount; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMin.set(Long.MAX_VALUE);
+        mMax.set(0);
+    }
+}
@@ -0,0 +1,91 @@
+package com.joshblour.discovery;
+
+/**
+ * Median of the last windowSize samples, ignoring samples older than maxAgeMillis. Robust to the
+ * isolated deep fades and reflections that drag an average around.
+ *
+ * The samples live in a fixed ring and are sorted in a preallocated scratch array, so a window of
+ * up to a few dozen samples costs no allocation and a short insertion sort per sample.
+ */
+public class MedianRssiFilter implements RssiFilter {
+
+    private final int[] mSamples;
+    private final long[] mTimestamps;
+    private final int[] mSorted;
+    private final long mMaxAgeMillis;
+
+    private int mNext;
+    private int mCount;
+    private float mValue;
+
+    /**
+     * @param windowSize how many of the latest samples the median is taken over
+     * @param maxAgeMillis samples older than this are left out, 0 to keep them until replaced
+     */
+    public MedianRssiFilter(int windowSize, long maxAgeMillis) {
+        if (windowSize < 1)
+            throw new IllegalArgumentException("invalid window size: " + windowSize);
+
+        mSamples = new int[windowSize];
+        mTimestamps = new long[windowSize];
+        mSorted = new int[windowSize];
+        mMaxAgeMillis = Math.max(0, maxAgeMillis);
+    }
+
+    @Override
+    public float update(int rssi, long timestamp) {
+        mSamples[mNext] = rssi;
+        mTimestamps[mNext] = timestamp;
+        mNext = (mNext + 1) % mSamples.length;
+        if (mCount < mSamples.length)
+            mCount++;
+
+        // insertion sort of the fresh samples, the window is small
+        int size = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (mMaxAgeMillis > 0 && timestamp - mTimestamps[i] > mMaxAgeMillis)
+                continue;
+
+            int sample = mSamples[i];
+            int j = size++;
+            while (j > 0 && mSorted[j - 1] > sample) {
+                mSorted[j] = mSorted[j - 1];
+                j--;
+            }
+            mSorted[j] = sample;
+        }
+
+        // the sample just added is always fresh, so size >= 1
+        if ((size & 1) == 1) {
+            mValue = mSorted[size / 2];
+        } else {
+            mValue = (mSorted[size / 2 - 1] + mSorted[size / 2]) / 2f;
+        }
+        return mValue;
+    }
+
+    @Override
+    public float getValue() {
+        return mValue;
+    }
+
+    @Override
+    public void reset() {
+        mNext = 0;
+        mCount = 0;
+        mValue = 0;
+    }
+
+    @Override
+    public RssiFilter newInstance() {
+        return new MedianRssiFilter(mSamples.length, mMaxAgeMillis);
+    }
+
+    public int getWindowSize() {
+        return mSamples.length;
+    }
+
+    public long getMaxAgeMillis() {
+        return mMaxAgeMillis;
+    }
+}
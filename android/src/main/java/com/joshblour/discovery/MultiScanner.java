@@ -9,10 +9,13 @@ import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.os.Build;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -24,6 +27,8 @@ import java.util.UUID;
  * You specify which type of scanning you want when you initiate the class.
  * We provide a consistent callback interface for both types of scanning
  *
+ * It is the {@link ScanBackend} Discovery uses unless it is given another one.
+ *
  * You can optionally filter by a serviceUUID.
  * Note: specifying the service uuid will prevent discovery of ios apps in the background
  * since all serviceUUIDs get moved to an overflow area when the app goes to background,
@@ -31,11 +36,14 @@ import java.util.UUID;
  * start an unfiltered scan and then filter the results yourself.
  *
  */
-public class MultiScanner {
+public class MultiScanner implements ScanBackend {
     private final static String TAG = "RNDiscovery-MultiScanner";
 
     public interface MultiScannerCallback {
         void onScanResult(BluetoothDevice device, int rssi, byte[] scanRecord);
+        // a batch delivered by the controller, with at most one result per device.
+        // timestamps are in System.currentTimeMillis() time. The arrays are the callback's to keep.
+        void onBatchScanResults(BluetoothDevice[] devices, int[] rssis, byte[][] scanRecords, long[] timestamps, int count);
         void onScanFailed(int errorCode);
     }
 
@@ -45,6 +53,10 @@ public class MultiScanner {
     boolean mUsePreLScanner;
     PostLScanCallback mPostLScanCallback;
     BluetoothAdapter.LeScanCallback mPreLScanCallback;
+    long mReportDelayMillis;
+    List<ScanFilterSpec> mFilterSpecs = new ArrayList<>();
+    int mUnfilteredSweepInterval;
+    int mStartCount;
 
     public MultiScanner(BluetoothAdapter adapter, ParcelUuid uuid, MultiScannerCallback callback) {
         this(adapter, uuid, callback, false);
@@ -65,6 +77,87 @@ public class MultiScanner {
 
     }
 
+    /**
+     * Asks the controller to buffer results and deliver them in batches every reportDelayMillis,
+     * so the application processor can sleep in between. 0 (the default) reports every result
+     * right away. Only used by the Lollipop+ scanner on controllers that support offloaded batching,
+     * and applied on the next start.
+     */
+    @Override
+    public void setReportDelayMillis(long reportDelayMillis) {
+        mReportDelayMillis = Math.max(0, reportDelayMillis);
+    }
+
+    @Override
+    public boolean usesPreLScanner() {
+        return mUsePreLScanner;
+    }
+
+    public long getReportDelayMillis() {
+        return mReportDelayMillis;
+    }
+
+    /**
+     * @return true if results are batched with the current settings
+     */
+    public boolean isBatching() {
+        return mReportDelayMillis > 0
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                && !mUsePreLScanner
+                && mAdapter.isOffloadedScanBatchingSupported();
+    }
+
+    /**
+     * Filters the Lollipop+ scanner is started with. They are evaluated by the controller when it
+     * supports offloaded filtering, otherwise by the bluetooth stack, and in both cases only
+     * matching advertisements wake the app. An empty list (the default) reports everything.
+     * Applied on the next start.
+     */
+    @Override
+    public void setScanFilters(List<ScanFilterSpec> filterSpecs) {
+        mFilterSpecs = filterSpecs != null ? new ArrayList<>(filterSpecs) : new ArrayList<ScanFilterSpec>();
+    }
+
+    public List<ScanFilterSpec> getScanFilters() {
+        return mFilterSpecs;
+    }
+
+    /**
+     * With filters set, makes every sweepInterval-th start (the first one included) an unfiltered
+     * scan, to catch peers whose advertisement doesn't match the filters, e.g. iOS apps in the
+     * background whose service uuids moved to the overflow area. 0 (the default) never sweeps.
+     */
+    @Override
+    public void setUnfilteredSweepInterval(int sweepInterval) {
+        mUnfilteredSweepInterval = Math.max(0, sweepInterval);
+        mStartCount = 0;
+    }
+
+    public int getUnfilteredSweepInterval() {
+        return mUnfilteredSweepInterval;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private List<ScanFilter> buildScanFilters() {
+        List<ScanFilter> filters = new ArrayList<>();
+
+        boolean sweep = mUnfilteredSweepInterval > 0 && mStartCount++ % mUnfilteredSweepInterval == 0;
+        if (sweep) {
+            Log.v(TAG, "unfiltered sweep");
+            return filters;
+        }
+
+        if (mServiceUUID != null)
+            filters.add(new ScanFilter.Builder().setServiceUuid(mServiceUUID).build());
+
+        for (ScanFilterSpec spec : mFilterSpecs) {
+            if (!spec.isEmpty())
+                filters.add(spec.toScanFilter());
+        }
+        return filters;
+    }
+
+    @Override
     public void start() {
         if (!mAdapter.isEnabled())
             return;
@@ -73,11 +166,21 @@ public class MultiScanner {
             Log.v(TAG, "Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP");
             // we only listen to the service that belongs to our uuid
             // this is important for performance and battery consumption
-            ScanSettings settings = new ScanSettings.Builder()
-                    .setScanMode(ScanSettings.SCAN_MODE_LOW_POWER)
-                    .build();
+            ScanSettings.Builder builder = new ScanSettings.Builder()
+                    .setScanMode(ScanSettings.SCAN_MODE_LOW_POWER);
+
+            if (isBatching())
+                builder.setReportDelay(mReportDelayMillis);
+
+            // also report extended (BLE 5) advertisements, which carry the peers' profiles
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && mAdapter.isLeExtendedAdvertisingSupported()) {
+                builder.setLegacy(false);
+                builder.setPhy(ScanSettings.PHY_LE_ALL_SUPPORTED);
+            }
 
-            List<ScanFilter> filters = new ArrayList<>();
+            ScanSettings settings = builder.build();
+
+            List<ScanFilter> filters = buildScanFilters();
 
             if (mPostLScanCallback == null)
                 mPostLScanCallback = new PostLScanCallback();
@@ -96,13 +199,15 @@ public class MultiScanner {
         }
     }
 
+    @Override
     public void stop() {
         if (!mAdapter.isEnabled())
             return;
 
         if (mPostLScanCallback != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            mAdapter.getBluetoothLeScanner().stopScan(mPostLScanCallback);
+            // deliver what the controller buffered before the scan is torn down
             mAdapter.getBluetoothLeScanner().flushPendingScanResults(mPostLScanCallback);
+            mAdapter.getBluetoothLeScanner().stopScan(mPostLScanCallback);
         }
 
         if (mPreLScanCallback != null) {
@@ -127,10 +232,39 @@ public class MultiScanner {
 
         @Override
         public void onBatchScanResults(List<ScanResult> results) {
-            Log.v(TAG, "ScanCallback batch results: " + results);
-            for (ScanResult r : results) {
-                onScanResult(-1, r);
+            Log.v(TAG, "ScanCallback batch results: " + results.size());
+            if (results.isEmpty())
+                return;
+
+            // a device usually advertises many times per batch, only its latest result matters
+            Map<String, ScanResult> latest = new HashMap<>(results.size() * 2);
+            for (ScanResult result : results) {
+                String address = result.getDevice().getAddress();
+                ScanResult previous = latest.get(address);
+                if (previous == null || previous.getTimestampNanos() < result.getTimestampNanos())
+                    latest.put(address, result);
             }
+
+            int count = latest.size();
+            BluetoothDevice[] devices = new BluetoothDevice[count];
+            int[] rssis = new int[count];
+            byte[][] scanRecords = new byte[count][];
+            long[] timestamps = new long[count];
+
+            // result timestamps are on the elapsed realtime clock
+            long nowNanos = SystemClock.elapsedRealtimeNanos();
+            long nowMillis = System.currentTimeMillis();
+
+            int i = 0;
+            for (ScanResult result : latest.values()) {
+                devices[i] = result.getDevice();
+                rssis[i] = result.getRssi();
+                scanRecords[i] = result.getScanRecord() != null ? result.getScanRecord().getBytes() : null;
+                timestamps[i] = nowMillis - (nowNanos - result.getTimestampNanos()) / 1000000L;
+                i++;
+            }
+
+            mScanCallback.onBatchScanResults(devices, rssis, scanRecords, timestamps, count);
         }
 
         @Override
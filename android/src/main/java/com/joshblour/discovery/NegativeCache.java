@@ -0,0 +1,105 @@
+package com.joshblour.discovery;
+
+/**
+ * Bounded set of keys (packed addresses or advertisement fingerprints) known not to be ours,
+ * each remembered until its expiry time.
+ *
+ * The table is 4-way set associative: a key can only live in the 4 slots of the set its hash
+ * selects, so lookups and inserts touch at most 4 entries and never allocate. When a set is
+ * full, the entry that expires first makes room, which keeps the table bounded in crowded places
+ * at the price of occasionally forgetting a device early.
+ *
+ * This class is not thread-safe.
+ */
+public class NegativeCache {
+
+    private static final int WAYS = 4;
+
+    private final long[] mKeys;
+    private final long[] mExpiresAt;
+    private final int mSetMask;
+
+    private long mEvictionCount;
+
+    /**
+     * @param capacity number of entries, rounded up to a power of two of at least 4
+     */
+    public NegativeCache(int capacity) {
+        int size = WAYS;
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        mKeys = new long[size];
+        mExpiresAt = new long[size];
+        mSetMask = size / WAYS - 1;
+    }
+
+    /**
+     * Remembers the key until expiresAt, replacing a previous expiry for it.
+     */
+    public void put(long key, long expiresAt, long now) {
+        int base = setFor(key);
+        int victim = -1;
+
+        for (int slot = base; slot < base + WAYS; slot++) {
+            if (mExpiresAt[slot] > now && mKeys[slot] == key) {
+                mExpiresAt[slot] = expiresAt;
+                return;
+            }
+
+            // prefer a free (or expired) slot, otherwise the one expiring first
+            if (victim < 0 || mExpiresAt[slot] < mExpiresAt[victim])
+                victim = slot;
+        }
+
+        if (mExpiresAt[victim] > now)
+            mEvictionCount++;
+
+        mKeys[victim] = key;
+        mExpiresAt[victim] = expiresAt;
+    }
+
+    /**
+     * @return true if the key was put and hasn't expired at now
+     */
+    public boolean contains(long key, long now) {
+        int base = setFor(key);
+
+        for (int slot = base; slot < base + WAYS; slot++) {
+            if (mKeys[slot] == key && mExpiresAt[slot] > now)
+                return true;
+        }
+        return false;
+    }
+
+    public void remove(long key) {
+        int base = setFor(key);
+
+        for (int slot = base; slot < base + WAYS; slot++) {
+            if (mKeys[slot] == key)
+                mExpiresAt[slot] = 0;
+        }
+    }
+
+    public void clear() {
+        for (int i = 0; i < mExpiresAt.length; i++) {
+            mExpiresAt[i] = 0;
+        }
+    }
+
+    public int capacity() {
+        return mKeys.length;
+    }
+
+    /**
+     * @return the number of live entries dropped to make room for new ones
+     */
+    public long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    private int setFor(long key) {
+        return (DeviceRegistry.hash(key) & mSetMask) * WAYS;
+    }
+}
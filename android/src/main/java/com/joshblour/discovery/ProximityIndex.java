@@ -0,0 +1,176 @@
+package com.joshblour.discovery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Identified users ordered by proximity, maintained incrementally.
+ *
+ * Each user is stored under a composite key of its proximity (high bits) and its packed address
+ * (low 48 bits), so users with the same proximity keep a stable order. The keys are kept sorted in
+ * a long array, next to an array of the users: repositioning a user whose RSSI changed is a binary
+ * search, then a shift of the users between its old and new position, which are few since the
+ * proximity of a user moves by a few dBm at a time. Nothing is allocated or boxed per reposition,
+ * the arrays only grow as users are added. Range queries ("everyone above -70 dBm", "closest 20")
+ * walk only the part of the arrays they return, instead of sorting the whole registry on every
+ * update, and only allocate the list they return.
+ *
+ * The key a user was indexed with is kept on the user ({@link BLEUser#getIndexKey()}), since its
+ * proximity may already have moved by the time it is repositioned.
+ * This class is not thread-safe.
+ */
+public class ProximityIndex {
+
+    // proximity is stored biased in the 15 bits above the 48-bit address, so keys stay positive
+    // and their natural order is the proximity order
+    private static final int PROXIMITY_BIAS = 1 << 14;
+    private static final int MIN_PROXIMITY = -PROXIMITY_BIAS;
+    private static final int MAX_PROXIMITY = PROXIMITY_BIAS - 1;
+    private static final long ADDRESS_MASK = (1L << 48) - 1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    // ascending keys, mUsers[i] is indexed under mKeys[i]
+    private long[] mKeys = new long[INITIAL_CAPACITY];
+    private BLEUser[] mUsers = new BLEUser[INITIAL_CAPACITY];
+    private int mSize;
+
+    /**
+     * Inserts the user, or repositions it if it is already indexed.
+     */
+    public void add(BLEUser user) {
+        long key = keyFor(user);
+        long indexed = user.getIndexKey();
+
+        if (indexed == key)
+            return;
+
+        int from = indexed != DeviceRegistry.NO_KEY ? Arrays.binarySearch(mKeys, 0, mSize, indexed) : -1;
+        if (from >= 0)
+            move(from, key, user);
+        else
+            insert(key, user);
+        user.setIndexKey(key);
+    }
+
+    /**
+     * Repositions the user after its proximity changed. Users that are not indexed are ignored.
+     */
+    public void update(BLEUser user) {
+        if (user.getIndexKey() != DeviceRegistry.NO_KEY)
+            add(user);
+    }
+
+    public boolean remove(BLEUser user) {
+        long indexed = user.getIndexKey();
+        if (indexed == DeviceRegistry.NO_KEY)
+            return false;
+
+        int index = Arrays.binarySearch(mKeys, 0, mSize, indexed);
+        if (index >= 0) {
+            System.arraycopy(mKeys, index + 1, mKeys, index, mSize - index - 1);
+            System.arraycopy(mUsers, index + 1, mUsers, index, mSize - index - 1);
+            mUsers[--mSize] = null;
+        }
+        user.setIndexKey(DeviceRegistry.NO_KEY);
+        return true;
+    }
+
+    public boolean contains(BLEUser user) {
+        return user.getIndexKey() != DeviceRegistry.NO_KEY;
+    }
+
+    public void clear() {
+        for (int i = 0; i < mSize; i++) {
+            mUsers[i].setIndexKey(DeviceRegistry.NO_KEY);
+            mUsers[i] = null;
+        }
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return all users, ordered by ascending proximity (farthest first)
+     */
+    public ArrayList<BLEUser> toList() {
+        ArrayList<BLEUser> users = new ArrayList<>(mSize);
+        for (int i = 0; i < mSize; i++) {
+            users.add(mUsers[i]);
+        }
+        return users;
+    }
+
+    /**
+     * @return up to count users, closest first
+     */
+    public List<BLEUser> closest(int count) {
+        int end = Math.max(mSize - Math.max(count, 0), 0);
+        ArrayList<BLEUser> users = new ArrayList<>(mSize - end);
+        for (int i = mSize - 1; i >= end; i--) {
+            users.add(mUsers[i]);
+        }
+        return users;
+    }
+
+    /**
+     * @return users whose proximity is greater than or equal to minProximity, closest first
+     */
+    public List<BLEUser> withProximityAtLeast(int minProximity) {
+        int end = insertionPoint(keyFor(minProximity, 0));
+        ArrayList<BLEUser> users = new ArrayList<>(mSize - end);
+        for (int i = mSize - 1; i >= end; i--) {
+            users.add(mUsers[i]);
+        }
+        return users;
+    }
+
+    private void insert(long key, BLEUser user) {
+        if (mSize == mKeys.length) {
+            mKeys = Arrays.copyOf(mKeys, mSize * 2);
+            mUsers = Arrays.copyOf(mUsers, mSize * 2);
+        }
+
+        int index = insertionPoint(key);
+        System.arraycopy(mKeys, index, mKeys, index + 1, mSize - index);
+        System.arraycopy(mUsers, index, mUsers, index + 1, mSize - index);
+        mKeys[index] = key;
+        mUsers[index] = user;
+        mSize++;
+    }
+
+    // moves the user at index from to the position of key, shifting the users in between by one
+    private void move(int from, long key, BLEUser user) {
+        int to = insertionPoint(key);
+        if (to > from) {
+            // the user's own slot is freed before it, so it lands one before the insertion point
+            to--;
+            System.arraycopy(mKeys, from + 1, mKeys, from, to - from);
+            System.arraycopy(mUsers, from + 1, mUsers, from, to - from);
+        } else {
+            System.arraycopy(mKeys, to, mKeys, to + 1, from - to);
+            System.arraycopy(mUsers, to, mUsers, to + 1, from - to);
+        }
+        mKeys[to] = key;
+        mUsers[to] = user;
+    }
+
+    // the index of the first key greater than or equal to key
+    private int insertionPoint(long key) {
+        int index = Arrays.binarySearch(mKeys, 0, mSize, key);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    private static long keyFor(BLEUser user) {
+        // users without a reading yet are kept at the far end
+        int proximity = user.hasProximity() ? user.getProximity() : MIN_PROXIMITY;
+        return keyFor(proximity, user.getAddressKey());
+    }
+
+    private static long keyFor(int proximity, long addressKey) {
+        int clamped = Math.max(MIN_PROXIMITY, Math.min(MAX_PROXIMITY, proximity));
+        return ((long) (clamped + PROXIMITY_BIAS) << 48) | (addressKey & ADDRESS_MASK);
+    }
+}
@@ -0,0 +1,37 @@
+package com.joshblour.discovery;
+
+/**
+ * Smooths the rssi samples of one device into the value its proximity is derived from.
+ *
+ * Implementations keep their state in primitive fields and allocate nothing per sample. They are
+ * given the time of every sample, so the smoothing depends on how much time has passed rather
+ * than on how often the device happens to advertise.
+ *
+ * A filter belongs to a single user and is only used from the discovery thread.
+ */
+public interface RssiFilter {
+
+    /**
+     * Adds a sample.
+     *
+     * @param rssi the sampled rssi, in dBm
+     * @param timestamp when the sample was taken, in milliseconds
+     * @return the filtered rssi, in dBm
+     */
+    float update(int rssi, long timestamp);
+
+    /**
+     * @return the filtered rssi, in dBm, or 0 before the first sample
+     */
+    float getValue();
+
+    /**
+     * Forgets every sample.
+     */
+    void reset();
+
+    /**
+     * @return a filter with the same settings and no samples, for another device
+     */
+    RssiFilter newInstance();
+}
@@ -0,0 +1,36 @@
+package com.joshblour.discovery;
+
+import java.util.List;
+
+/**
+ * The radio Discovery scans with. {@link MultiScanner} drives the platform's scanners; other
+ * backends, e.g. a simulated crowd of peers, report to the same callback so the whole pipeline
+ * runs without bluetooth.
+ *
+ * Discovery only calls it from its thread. Results may be reported from any thread.
+ */
+public interface ScanBackend {
+
+    interface Factory {
+        /**
+         * @param usePreLScanner true if batching and filters are off, for backends that have a
+         *                       simpler scanner for that case
+         */
+        ScanBackend create(MultiScanner.MultiScannerCallback callback, boolean usePreLScanner);
+    }
+
+    void start();
+
+    void stop();
+
+    // 0 reports every result right away, otherwise results may be delivered in batches. Applied on the next start.
+    void setReportDelayMillis(long reportDelayMillis);
+
+    // an empty list or null reports everything. Applied on the next start.
+    void setScanFilters(List<ScanFilterSpec> filterSpecs);
+
+    // every sweepInterval-th start is unfiltered, 0 never sweeps
+    void setUnfilteredSweepInterval(int sweepInterval);
+
+    boolean usesPreLScanner();
+}
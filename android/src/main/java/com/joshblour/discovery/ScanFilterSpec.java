@@ -0,0 +1,93 @@
+package com.joshblour.discovery;
+
+import android.annotation.TargetApi;
+import android.bluetooth.le.ScanFilter;
+import android.os.Build;
+import android.os.ParcelUuid;
+
+/**
+ * Describes one scan filter that MultiScanner pushes down to the bluetooth controller.
+ *
+ * The criteria set on a spec must all match; an advertisement passes the scan if it matches
+ * any of the specs. Masks select the bits that have to match, a null mask means all of them.
+ * Kept free of Lollipop classes so it can be configured on any API level.
+ */
+public class ScanFilterSpec {
+    private ParcelUuid mServiceUuid;
+    private ParcelUuid mServiceUuidMask;
+    private ParcelUuid mServiceDataUuid;
+    private byte[] mServiceData;
+    private byte[] mServiceDataMask;
+    private int mManufacturerId = -1;
+    private byte[] mManufacturerData;
+    private byte[] mManufacturerDataMask;
+    private String mDeviceName;
+
+    public ScanFilterSpec setServiceUuid(ParcelUuid serviceUuid, ParcelUuid mask) {
+        mServiceUuid = serviceUuid;
+        mServiceUuidMask = mask;
+        return this;
+    }
+
+    public ScanFilterSpec setServiceData(ParcelUuid serviceDataUuid, byte[] data, byte[] mask) {
+        if (mask != null && (data == null || mask.length != data.length))
+            throw new IllegalArgumentException("service data mask must be as long as the data");
+
+        mServiceDataUuid = serviceDataUuid;
+        mServiceData = data;
+        mServiceDataMask = mask;
+        return this;
+    }
+
+    public ScanFilterSpec setManufacturerData(int manufacturerId, byte[] data, byte[] mask) {
+        if (manufacturerId < 0)
+            throw new IllegalArgumentException("invalid manufacturer id " + manufacturerId);
+        if (mask != null && (data == null || mask.length != data.length))
+            throw new IllegalArgumentException("manufacturer data mask must be as long as the data");
+
+        mManufacturerId = manufacturerId;
+        mManufacturerData = data;
+        mManufacturerDataMask = mask;
+        return this;
+    }
+
+    public ScanFilterSpec setDeviceName(String deviceName) {
+        mDeviceName = deviceName;
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return mServiceUuid == null && mServiceDataUuid == null && mManufacturerId < 0 && mDeviceName == null;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    ScanFilter toScanFilter() {
+        ScanFilter.Builder builder = new ScanFilter.Builder();
+
+        if (mServiceUuid != null)
+            builder.setServiceUuid(mServiceUuid, mServiceUuidMask);
+
+        if (mServiceDataUuid != null) {
+            byte[] data = mServiceData != null ? mServiceData : new byte[0];
+            if (mServiceDataMask != null) {
+                builder.setServiceData(mServiceDataUuid, data, mServiceDataMask);
+            } else {
+                builder.setServiceData(mServiceDataUuid, data);
+            }
+        }
+
+        if (mManufacturerId >= 0) {
+            byte[] data = mManufacturerData != null ? mManufacturerData : new byte[0];
+            if (mManufacturerDataMask != null) {
+                builder.setManufacturerData(mManufacturerId, data, mManufacturerDataMask);
+            } else {
+                builder.setManufacturerData(mManufacturerId, data);
+            }
+        }
+
+        if (mDeviceName != null)
+            builder.setDeviceName(mDeviceName);
+
+        return builder.build();
+    }
+}
@@ -0,0 +1,148 @@
+package com.joshblour.discovery;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded, lock-free multi-producer / single-consumer queue of scan sightings.
+ *
+ * Scan callbacks (Binder or main thread) {@link #offer} a compact record (packed address, rssi,
+ * raw record, time) and return immediately; the thread that owns the registry {@link #drain}s
+ * them. Records live in preallocated parallel arrays and every slot carries a sequence number
+ * that tells producers and the consumer whose turn it is, so neither side takes a lock.
+ *
+ * When the queue is full new sightings are dropped and counted rather than blocking the radio
+ * callback; a later advertisement of the same device carries the same information.
+ */
+public class ScanIngestQueue {
+
+    public interface Consumer {
+        void onSighting(long addressKey, BluetoothDevice device, int rssi, byte[] scanRecord, long timestamp);
+    }
+
+    private final int mMask;
+    private final AtomicLongArray mSequences;
+    private final long[] mAddressKeys;
+    private final BluetoothDevice[] mDevices;
+    private final int[] mRssis;
+    private final byte[][] mScanRecords;
+    private final long[] mTimestamps;
+
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    // only touched by the consumer
+    private long mHead;
+
+    /**
+     * @param capacity maximum number of pending sightings, rounded up to a power of two
+     */
+    public ScanIngestQueue(int capacity) {
+        int size = 2;
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        mMask = size - 1;
+        mSequences = new AtomicLongArray(size);
+        mAddressKeys = new long[size];
+        mDevices = new BluetoothDevice[size];
+        mRssis = new int[size];
+        mScanRecords = new byte[size][];
+        mTimestamps = new long[size];
+
+        // a slot is free for the producer claiming position p when its sequence equals p
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    /**
+     * Enqueues a sighting. Safe to call from any number of threads.
+     *
+     * @return false if the queue was full and the sighting was dropped
+     */
+    public boolean offer(long addressKey, BluetoothDevice device, int rssi, byte[] scanRecord, long timestamp) {
+        long position;
+        int slot;
+
+        while (true) {
+            position = mTail.get();
+            slot = (int) (position & mMask);
+            long difference = mSequences.get(slot) - position;
+
+            if (difference == 0) {
+                if (mTail.compareAndSet(position, position + 1))
+                    break;
+            } else if (difference < 0) {
+                // the consumer hasn't released this slot yet, the queue is full
+                mDropped.incrementAndGet();
+                return false;
+            }
+            // otherwise another producer claimed this position first, retry with the new tail
+        }
+
+        mAddressKeys[slot] = addressKey;
+        mDevices[slot] = device;
+        mRssis[slot] = rssi;
+        mScanRecords[slot] = scanRecord;
+        mTimestamps[slot] = timestamp;
+
+        // publish the record to the consumer
+        mSequences.lazySet(slot, position + 1);
+        return true;
+    }
+
+    /**
+     * Hands pending sightings to the consumer, in the order they were claimed.
+     * Must only be called from a single thread.
+     *
+     * @return the number of sightings consumed
+     */
+    public int drain(Consumer consumer, int maxCount) {
+        int count = 0;
+
+        while (count < maxCount) {
+            long position = mHead;
+            int slot = (int) (position & mMask);
+
+            // the producer that claimed this position hasn't published it yet
+            if (mSequences.get(slot) != position + 1)
+                break;
+
+            long addressKey = mAddressKeys[slot];
+            BluetoothDevice device = mDevices[slot];
+            int rssi = mRssis[slot];
+            byte[] scanRecord = mScanRecords[slot];
+            long timestamp = mTimestamps[slot];
+
+            mDevices[slot] = null;
+            mScanRecords[slot] = null;
+
+            // release the slot for the producer one lap ahead
+            mSequences.lazySet(slot, position + mMask + 1);
+            mHead = position + 1;
+            count++;
+
+            consumer.onSighting(addressKey, device, rssi, scanRecord, timestamp);
+        }
+
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return mSequences.get((int) (mHead & mMask)) != mHead + 1;
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * @return the number of sightings dropped because the queue was full
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+}
@@ -0,0 +1,329 @@
+package com.joshblour.discovery;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Records the scan results it receives to a log that {@link ScanReplayer} plays back, then forwards
+ * them to its delegate, if any.
+ *
+ * The log is a directory of fixed size segments, each memory-mapped while it's written: appending
+ * a result is a copy into the mapping, without a system call, so it can be done from the scanner's
+ * callback thread. Once a segment is full the next one is started, and the oldest segments are
+ * deleted beyond the maximum count. A crash loses at most the results the OS didn't write back.
+ *
+ * Segment format, big endian:
+ * - header: magic, version, the monotonic time (SystemClock.elapsedRealtimeNanos) its entry times
+ *   count from, the last entry of the previous segment of the recording if any, and the wall clock
+ *   time (System.currentTimeMillis) it was started at
+ * - entries, each a tag followed by the time since the previous entry, in microseconds:
+ *   - result: the packed address, the rssi and the raw record
+ *   - batch: whether the next entry continues the batch, the count, and as many results, each with
+ *     the age of its timestamp when the batch was delivered, in milliseconds
+ *   - scan failure: the error code
+ * - zeroes up to the end: a 0 tag ends the segment
+ * Times, counts and lengths are unsigned varints.
+ *
+ * Device names aren't recorded: reading them is a call into the bluetooth service. Names in the
+ * advertisements are part of the raw records.
+ */
+public class ScanRecorder implements MultiScanner.MultiScannerCallback {
+    private final static String TAG = "RNDiscovery-ScanRecorder";
+
+    static final int MAGIC = 0x52445343; // "RDSC"
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 4 + 4 + 8 + 8;
+    static final String SEGMENT_PREFIX = "scans-";
+    static final String SEGMENT_SUFFIX = ".rdsc";
+
+    static final int TAG_END = 0;
+    static final int TAG_RESULT = 1;
+    static final int TAG_BATCH = 2;
+    static final int TAG_SCAN_FAILED = 3;
+
+    public static final int DEFAULT_SEGMENT_BYTES = 1024 * 1024;
+    public static final int DEFAULT_MAX_SEGMENTS = 8;
+    static final int MIN_SEGMENT_BYTES = 64 * 1024;
+
+    // results longer than an extended advertisement can carry are cut
+    static final int MAX_RECORD_LENGTH = 1650;
+    private static final int MAX_RESULT_BYTES = 6 + 1 + 5 + MAX_RECORD_LENGTH + 5;
+    // batches are split in entries of at most this many results, so an entry always fits in a segment
+    private static final int BATCH_CHUNK = 32;
+    // the tag and the longest time delta
+    private static final int ENTRY_OVERHEAD = 1 + 10;
+
+    private final File mDirectory;
+    private final int mSegmentBytes;
+    private final int mMaxSegments;
+    private final MultiScanner.MultiScannerCallback mDelegate;
+
+    private MappedByteBuffer mSegment;
+    private int mSegmentNumber;
+    private long mLastEntryNanos;
+    private boolean mClosed;
+
+    // an entry being encoded, before it's known which segment it goes to
+    private final byte[] mScratch = new byte[2 + 5 + BATCH_CHUNK * (MAX_RESULT_BYTES + 10)];
+    private int mScratchLength;
+
+    private long mRecordedResults;
+    private long mTruncatedRecords;
+
+    /**
+     * Starts a new segment after the ones already in the directory.
+     *
+     * @param delegate gets every callback after it's recorded, null to only record
+     */
+    public ScanRecorder(File directory, int segmentBytes, int maxSegments, MultiScanner.MultiScannerCallback delegate) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("couldn't create " + directory);
+
+        mDirectory = directory;
+        mSegmentBytes = Math.max(MIN_SEGMENT_BYTES, segmentBytes);
+        mMaxSegments = Math.max(1, maxSegments);
+        mDelegate = delegate;
+
+        File[] segments = listSegments(directory);
+        mSegmentNumber = segments.length > 0 ? segmentNumber(segments[segments.length - 1]) : 0;
+        startSegment();
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    public synchronized long getRecordedResults() {
+        return mRecordedResults;
+    }
+
+    // records cut to MAX_RECORD_LENGTH
+    public synchronized long getTruncatedRecords() {
+        return mTruncatedRecords;
+    }
+
+    @Override
+    public void onScanResult(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        long key = DeviceRegistry.packAddress(device.getAddress());
+        if (key != DeviceRegistry.NO_KEY) {
+            synchronized (this) {
+                if (!mClosed) {
+                    mScratchLength = 0;
+                    writeResult(key, rssi, scanRecord);
+                    append(TAG_RESULT);
+                    mRecordedResults++;
+                }
+            }
+        }
+
+        if (mDelegate != null)
+            mDelegate.onScanResult(device, rssi, scanRecord);
+    }
+
+    @Override
+    public void onBatchScanResults(BluetoothDevice[] devices, int[] rssis, byte[][] scanRecords, long[] timestamps, int count) {
+        synchronized (this) {
+            if (!mClosed)
+                recordBatch(devices, rssis, scanRecords, timestamps, count);
+        }
+
+        if (mDelegate != null)
+            mDelegate.onBatchScanResults(devices, rssis, scanRecords, timestamps, count);
+    }
+
+    @Override
+    public void onScanFailed(int errorCode) {
+        synchronized (this) {
+            if (!mClosed) {
+                mScratchLength = 0;
+                writeVarint(errorCode);
+                append(TAG_SCAN_FAILED);
+            }
+        }
+
+        if (mDelegate != null)
+            mDelegate.onScanFailed(errorCode);
+    }
+
+    /**
+     * Writes the current segment back to storage and stops recording. Callbacks are still forwarded.
+     */
+    public synchronized void close() {
+        if (mClosed)
+            return;
+
+        mClosed = true;
+        if (mSegment != null) {
+            mSegment.force();
+            mSegment = null;
+        }
+    }
+
+    private void recordBatch(BluetoothDevice[] devices, int[] rssis, byte[][] scanRecords, long[] timestamps, int count) {
+        long now = System.currentTimeMillis();
+
+        // skips the devices without a valid address, counting the rest first
+        int recordable = 0;
+        for (int i = 0; i < count; i++) {
+            if (DeviceRegistry.packAddress(devices[i].getAddress()) != DeviceRegistry.NO_KEY)
+                recordable++;
+        }
+
+        int i = 0;
+        while (recordable > 0) {
+            int chunk = Math.min(BATCH_CHUNK, recordable);
+            recordable -= chunk;
+
+            mScratchLength = 0;
+            writeByte(recordable > 0 ? 1 : 0);
+            writeVarint(chunk);
+            while (chunk > 0) {
+                long key = DeviceRegistry.packAddress(devices[i].getAddress());
+                if (key != DeviceRegistry.NO_KEY) {
+                    writeResult(key, rssis[i], scanRecords[i]);
+                    writeVarint(Math.max(0, now - timestamps[i]));
+                    mRecordedResults++;
+                    chunk--;
+                }
+                i++;
+            }
+            append(TAG_BATCH);
+        }
+    }
+
+    private void writeResult(long key, int rssi, byte[] scanRecord) {
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            writeByte((int) (key >>> shift));
+        }
+        writeByte(rssi);
+
+        int length = scanRecord != null ? scanRecord.length : 0;
+        if (length > MAX_RECORD_LENGTH) {
+            length = MAX_RECORD_LENGTH;
+            mTruncatedRecords++;
+        }
+        writeVarint(length);
+        if (length > 0) {
+            System.arraycopy(scanRecord, 0, mScratch, mScratchLength, length);
+            mScratchLength += length;
+        }
+    }
+
+    // appends the entry in the scratch buffer, in a new segment if it doesn't fit in this one
+    private void append(int tag) {
+        if (mClosed)
+            return;
+
+        // keeps a zero after the entry to end the segment
+        if (mSegment.remaining() < ENTRY_OVERHEAD + mScratchLength + 1) {
+            try {
+                startSegment();
+            } catch (IOException e) {
+                Log.e(TAG, "couldn't start a segment, recording stopped", e);
+                close();
+                return;
+            }
+        }
+
+        long micros = Math.max(0, (SystemClock.elapsedRealtimeNanos() - mLastEntryNanos) / 1000);
+        mSegment.put((byte) tag);
+        putVarint(mSegment, micros);
+        mSegment.put(mScratch, 0, mScratchLength);
+        // the delta was rounded down, the next one is counted from this entry's recorded time
+        mLastEntryNanos += micros * 1000;
+    }
+
+    private void startSegment() throws IOException {
+        // the times of a recording continue from one segment to the next
+        if (mSegment != null) {
+            mSegment.force();
+        } else {
+            mLastEntryNanos = SystemClock.elapsedRealtimeNanos();
+        }
+
+        mSegmentNumber++;
+        File file = new File(mDirectory, segmentName(mSegmentNumber));
+        RandomAccessFile segment = new RandomAccessFile(file, "rw");
+        try {
+            segment.setLength(mSegmentBytes);
+            // the mapping stays valid once the file is closed
+            mSegment = segment.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentBytes);
+        } finally {
+            segment.close();
+        }
+
+        mSegment.putInt(MAGIC);
+        mSegment.putInt(VERSION);
+        mSegment.putLong(mLastEntryNanos);
+        mSegment.putLong(System.currentTimeMillis());
+
+        deleteOldSegments();
+    }
+
+    private void deleteOldSegments() {
+        File[] segments = listSegments(mDirectory);
+        for (int i = 0; i < segments.length - mMaxSegments; i++) {
+            if (!segments[i].delete())
+                Log.w(TAG, "couldn't delete " + segments[i]);
+        }
+    }
+
+    private void writeByte(int value) {
+        mScratch[mScratchLength++] = (byte) value;
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        writeByte((int) value);
+    }
+
+    private static void putVarint(MappedByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static String segmentName(int number) {
+        return String.format(Locale.US, "%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX);
+    }
+
+    static int segmentNumber(File segment) {
+        String name = segment.getName();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * @return the segments in the directory, oldest first
+     */
+    static File[] listSegments(File directory) {
+        File[] segments = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                String name = file.getName();
+                return file.isFile() && name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)
+                        && name.length() == SEGMENT_PREFIX.length() + 8 + SEGMENT_SUFFIX.length();
+            }
+        });
+        if (segments == null)
+            return new File[0];
+
+        // the numbers are zero padded
+        Arrays.sort(segments);
+        return segments;
+    }
+}
@@ -0,0 +1,294 @@
+package com.joshblour.discovery;
+
+import android.bluetooth.BluetoothDevice;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Plays a log written by {@link ScanRecorder} back to a callback, typically a {@link Discovery}:
+ * the same results, batches and failures, in the same order, with the recorded time between them
+ * divided by the speed. Batch timestamps are moved to the time of the replay.
+ *
+ * Replays are deterministic as long as the callback keeps up: Discovery drops sightings when its
+ * thread falls behind, see {@link Discovery#getDroppedSightingCount()}. At an accelerated speed,
+ * only the stream is accelerated: users still time out in real time.
+ *
+ * The devices are made by the resolver, once per address, e.g. with
+ * BluetoothAdapter.getRemoteDevice on a device.
+ */
+public class ScanReplayer {
+    private final static String TAG = "RNDiscovery-ScanReplayer";
+
+    public interface DeviceResolver {
+        BluetoothDevice getDevice(String address);
+    }
+
+    public interface Listener {
+        // called on the replay thread, also when the replay was stopped or failed
+        void onReplayFinished(long replayedResults);
+    }
+
+    private final File mDirectory;
+    private final MultiScanner.MultiScannerCallback mCallback;
+    private final DeviceResolver mDeviceResolver;
+    private final Map<Long, BluetoothDevice> mDevices = new HashMap<>();
+    private double mSpeed = 1;
+
+    private Thread mThread;
+    private volatile boolean mStopped;
+    private long mReplayedResults;
+
+    // where the replay is in the log, and when it started, in recorded and in real time
+    private long mLogNanos;
+    private long mStartLogNanos;
+    private long mStartNanos;
+
+    // a batch split across entries, as it's read. It may span segments
+    private final Batch mBatch = new Batch();
+
+    public ScanReplayer(File directory, MultiScanner.MultiScannerCallback callback, DeviceResolver deviceResolver) {
+        mDirectory = directory;
+        mCallback = callback;
+        mDeviceResolver = deviceResolver;
+    }
+
+    /**
+     * @param speed 1 for real time, 10 for ten times faster, 0 as fast as possible
+     */
+    public void setSpeed(double speed) {
+        mSpeed = Math.max(0, speed);
+    }
+
+    public long getReplayedResults() {
+        return mReplayedResults;
+    }
+
+    /**
+     * Replays the log on a new thread.
+     */
+    public synchronized void start(final Listener listener) {
+        if (mThread != null)
+            return;
+
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replay();
+                } catch (IOException e) {
+                    Log.e(TAG, "couldn't replay " + mDirectory, e);
+                }
+                if (listener != null)
+                    listener.onReplayFinished(mReplayedResults);
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    public void stop() {
+        mStopped = true;
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+        }
+        if (thread != null)
+            thread.interrupt();
+    }
+
+    /**
+     * Replays the log on the calling thread, oldest segment first.
+     *
+     * @return the number of results replayed
+     */
+    public long replay() throws IOException {
+        File[] segments = ScanRecorder.listSegments(mDirectory);
+        if (segments.length == 0)
+            throw new IOException("no segments in " + mDirectory);
+
+        mStartNanos = System.nanoTime();
+        mStartLogNanos = -1;
+        for (File segment : segments) {
+            if (mStopped)
+                break;
+            replaySegment(segment);
+        }
+        return mReplayedResults;
+    }
+
+    private void replaySegment(File file) throws IOException {
+        MappedByteBuffer segment;
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            segment = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+        } finally {
+            in.close();
+        }
+
+        if (segment.remaining() < ScanRecorder.HEADER_LENGTH || segment.getInt() != ScanRecorder.MAGIC
+                || segment.getInt() != ScanRecorder.VERSION) {
+            Log.w(TAG, "skipping " + file + ", unknown format");
+            return;
+        }
+
+        long segmentNanos = segment.getLong();
+        segment.getLong(); // wall clock time
+        // a segment continues where the previous one ended. That's already the case for segments
+        // started when the previous one was full, the others start new recordings: the time between
+        // the recordings is skipped, as is the restart of the monotonic clock with the device
+        if (mStartLogNanos < 0) {
+            mStartLogNanos = segmentNanos;
+        } else {
+            mStartLogNanos += segmentNanos - mLogNanos;
+        }
+        mLogNanos = segmentNanos;
+
+        try {
+            while (!mStopped && segment.hasRemaining()) {
+                int tag = segment.get();
+                if (tag == ScanRecorder.TAG_END)
+                    break;
+
+                mLogNanos += readVarint(segment) * 1000;
+                switch (tag) {
+                    case ScanRecorder.TAG_RESULT:
+                        BluetoothDevice device = getDevice(readAddress(segment));
+                        int rssi = segment.get();
+                        byte[] scanRecord = readRecord(segment);
+                        waitForLogTime();
+                        mCallback.onScanResult(device, rssi, scanRecord);
+                        mReplayedResults++;
+                        break;
+
+                    case ScanRecorder.TAG_BATCH:
+                        boolean continued = segment.get() != 0;
+                        mBatch.read(segment, (int) readVarint(segment));
+                        if (!continued) {
+                            waitForLogTime();
+                            mBatch.deliver();
+                        }
+                        break;
+
+                    case ScanRecorder.TAG_SCAN_FAILED:
+                        int errorCode = (int) readVarint(segment);
+                        waitForLogTime();
+                        mCallback.onScanFailed(errorCode);
+                        break;
+
+                    default:
+                        Log.w(TAG, "skipping the rest of " + file + ", unknown entry " + tag);
+                        return;
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            // the last entry was cut short, by a crash: the recording ended there
+            Log.w(TAG, "truncated segment " + file);
+            mBatch.count = 0;
+        }
+    }
+
+    private void waitForLogTime() {
+        if (mSpeed == 0)
+            return;
+
+        long due = mStartNanos + (long) ((mLogNanos - mStartLogNanos) / mSpeed);
+        long wait = due - System.nanoTime();
+        if (wait <= 0)
+            return;
+
+        try {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            mStopped = true;
+        }
+    }
+
+    private BluetoothDevice getDevice(long key) {
+        BluetoothDevice device = mDevices.get(key);
+        if (device == null) {
+            device = mDeviceResolver.getDevice(DeviceRegistry.unpackAddress(key));
+            mDevices.put(key, device);
+        }
+        return device;
+    }
+
+    private static long readAddress(MappedByteBuffer segment) {
+        long key = 0;
+        for (int i = 0; i < 6; i++) {
+            key = (key << 8) | (segment.get() & 0xFF);
+        }
+        return key;
+    }
+
+    private static byte[] readRecord(MappedByteBuffer segment) {
+        byte[] scanRecord = new byte[(int) readVarint(segment)];
+        segment.get(scanRecord);
+        return scanRecord;
+    }
+
+    private static long readVarint(MappedByteBuffer segment) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = segment.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new BufferUnderflowException();
+    }
+
+    private class Batch {
+        BluetoothDevice[] devices = new BluetoothDevice[64];
+        int[] rssis = new int[64];
+        byte[][] scanRecords = new byte[64][];
+        long[] ages = new long[64];
+        int count;
+
+        void read(MappedByteBuffer segment, int results) {
+            for (int i = 0; i < results; i++) {
+                if (count == devices.length)
+                    grow();
+
+                devices[count] = getDevice(readAddress(segment));
+                rssis[count] = segment.get();
+                scanRecords[count] = readRecord(segment);
+                ages[count] = readVarint(segment);
+                count++;
+            }
+        }
+
+        // hands the arrays over to the callback, which may keep them
+        void deliver() {
+            long now = System.currentTimeMillis();
+            long[] timestamps = new long[count];
+            for (int i = 0; i < count; i++) {
+                timestamps[i] = now - ages[i];
+            }
+
+            mCallback.onBatchScanResults(devices, rssis, scanRecords, timestamps, count);
+            mReplayedResults += count;
+
+            devices = new BluetoothDevice[devices.length];
+            rssis = new int[devices.length];
+            scanRecords = new byte[devices.length][];
+            count = 0;
+        }
+
+        private void grow() {
+            int length = devices.length * 2;
+            devices = Arrays.copyOf(devices, length);
+            rssis = Arrays.copyOf(rssis, length);
+            scanRecords = Arrays.copyOf(scanRecords, length);
+            ages = Arrays.copyOf(ages, length);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.joshblour.discovery;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Coalesces update requests so listeners are notified at most once per interval.
+ *
+ * {@link #markDirty(boolean)} only records that something changed and schedules a flush on the
+ * given handler; every request made before the flush runs is merged into it, with the
+ * usersChanged flags OR-ed together. An interval of 0 still merges the requests made during the
+ * current handler message, e.g. the several updates a single scan result can trigger.
+ */
+public class UpdateDispatcher {
+
+    public interface Listener {
+        void onFlush(boolean usersChanged);
+    }
+
+    private final Handler mHandler;
+    private final Listener mListener;
+    private long mIntervalMillis;
+
+    private boolean mDirty;
+    private boolean mUsersChanged;
+    private boolean mScheduled;
+    private long mLastFlushTime;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public UpdateDispatcher(Handler handler, Listener listener) {
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    /**
+     * Requests an update. The listener will be called once for all requests made until it runs.
+     */
+    public void markDirty(boolean usersChanged) {
+        long delay;
+        synchronized (this) {
+            mDirty = true;
+            mUsersChanged |= usersChanged;
+
+            if (mScheduled)
+                return;
+
+            mScheduled = true;
+            delay = Math.max(0, mLastFlushTime + mIntervalMillis - SystemClock.uptimeMillis());
+        }
+        mHandler.postDelayed(mFlushRunnable, delay);
+    }
+
+    /**
+     * Runs a pending update right away, regardless of the interval.
+     */
+    public void flush() {
+        boolean usersChanged;
+        synchronized (this) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mScheduled = false;
+
+            if (!mDirty)
+                return;
+
+            usersChanged = mUsersChanged;
+            mDirty = false;
+            mUsersChanged = false;
+            mLastFlushTime = SystemClock.uptimeMillis();
+        }
+        mListener.onFlush(usersChanged);
+    }
+
+    /**
+     * Drops a pending update without notifying the listener.
+     */
+    public synchronized void cancel() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mScheduled = false;
+        mDirty = false;
+        mUsersChanged = false;
+    }
+
+    public synchronized long getIntervalMillis() {
+        return mIntervalMillis;
+    }
+
+    /**
+     * @param intervalMillis minimum time between two notifications, 16 is about one frame.
+     */
+    public synchronized void setIntervalMillis(long intervalMillis) {
+        mIntervalMillis = Math.max(0, intervalMillis);
+    }
+}
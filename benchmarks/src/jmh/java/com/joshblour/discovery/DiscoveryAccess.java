@@ -0,0 +1,18 @@
+package com.joshblour.discovery;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * Reaches the package-private parts of Discovery the benchmarks measure.
+ */
+public final class DiscoveryAccess {
+
+    private DiscoveryAccess() {
+    }
+
+    // what the discovery thread does with each sighting it drains from the ingest queue
+    public static boolean processSighting(Discovery discovery, long addressKey, BluetoothDevice device,
+                                          int rssi, byte[] scanRecord, long timestamp) {
+        return discovery.processSighting(addressKey, device, rssi, scanRecord, timestamp);
+    }
+}
@@ -0,0 +1,116 @@
+package com.joshblour.discovery.benchmarks;
+
+import com.joshblour.discovery.AdvertisementParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a scan record with AdvertisementParser, against the parseUuids method Discovery used
+ * before it. The legacy method formats a string for every 16-bit uuid, the uuid16 and uuid128
+ * records have some. The fingerprint is measured on its own: Discovery only asks for it for
+ * devices it hasn't identified, and hashing it byte by byte costs more than the parse.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AdvertisementParserBenchmark {
+
+    // a peer: flags and its uuid, then the identity payload and the TX power in the scan response
+    private static final byte[] PEER_RECORD = bytes(
+            0x02, 0x01, 0x06,
+            0x11, 0x07, 0x01, 0x00, 0x7c, 0x2b, 0x5a, 0x8e, 0x2c, 0x3f, 0x9d, 0x2b, 0x4e, 0x1a, 0x6c, 0x5c, 0xd1, 0xf7,
+            0x1a, 0xff, 0xff, 0xff, 0xd1, 0x5c, 0x01, 0x12, 0x34, 0x56, 0x78,
+            0xf7, 0xd1, 0x5c, 0x6c, 0x1a, 0x4e, 0x2b, 0x9d, 0x3f, 0x5a, 0x8e, 0x2c, 0x7b, 0x00, 0x01, 0x00,
+            0x02, 0x0a, 0xf4);
+
+    // someone else's beacon: flags and manufacturer data
+    private static final byte[] BEACON_RECORD = bytes(
+            0x02, 0x01, 0x06,
+            0x1a, 0xff, 0x4c, 0x00, 0x02, 0x15,
+            0xf7, 0x82, 0x6d, 0xa6, 0x4f, 0xa2, 0x4e, 0x98, 0x80, 0x24, 0xbc, 0x5b, 0x71, 0xe0, 0x89, 0x3e,
+            0x00, 0x01, 0x00, 0x02, 0xc5);
+
+    // a heart rate strap: flags, the heart rate, battery and device information services, then its
+    // name and TX power in the scan response
+    private static final byte[] UUID16_RECORD = bytes(
+            0x02, 0x01, 0x06,
+            0x07, 0x03, 0x0d, 0x18, 0x0f, 0x18, 0x0a, 0x18,
+            0x09, 0x09, 0x48, 0x52, 0x4d, 0x2d, 0x50, 0x72, 0x6f, 0x32,
+            0x02, 0x0a, 0x00);
+
+    // a phone running two apps that advertise: flags, two 16-bit uuids and a 128-bit one, then
+    // another 128-bit uuid and a short name in the scan response
+    private static final byte[] UUID128_RECORD = bytes(
+            0x02, 0x01, 0x1a,
+            0x05, 0x03, 0x9f, 0xfe, 0x6f, 0xfd,
+            0x11, 0x07, 0x9e, 0xca, 0xdc, 0x24, 0x0e, 0xe5, 0xa9, 0xe0, 0x93, 0xf3, 0xa3, 0xb5, 0x01, 0x00, 0x40, 0x6e,
+            0x11, 0x06, 0xfb, 0x34, 0x9b, 0x5f, 0x80, 0x00, 0x00, 0x80, 0x00, 0x10, 0x00, 0x00, 0xa5, 0x2b, 0x00, 0x00,
+            0x06, 0x08, 0x50, 0x69, 0x78, 0x65, 0x6c);
+
+    @Param({"peer", "beacon", "uuid16", "uuid128"})
+    public String record;
+
+    private byte[] mRecord;
+    private final AdvertisementParser mParser = new AdvertisementParser();
+
+    @Setup
+    public void setUp() {
+        switch (record) {
+            case "peer":
+                mRecord = PEER_RECORD;
+                break;
+            case "uuid16":
+                mRecord = UUID16_RECORD;
+                break;
+            case "uuid128":
+                mRecord = UUID128_RECORD;
+                break;
+            default:
+                mRecord = BEACON_RECORD;
+                break;
+        }
+    }
+
+    @Benchmark
+    public void parse(Blackhole blackhole) {
+        mParser.parse(mRecord);
+        int count = mParser.getServiceUuidCount();
+        for (int i = 0; i < count; i++) {
+            blackhole.consume(mParser.getServiceUuidMostSignificantBits(i));
+            blackhole.consume(mParser.getServiceUuidLeastSignificantBits(i));
+        }
+    }
+
+    // parses, then hashes the fingerprint as for a device seen for the first time
+    @Benchmark
+    public long fingerprint() {
+        mParser.parse(mRecord);
+        return mParser.getFingerprint();
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    // Discovery.parseUuids as of 0.10.0
+    @Benchmark
+    public List<UUID> legacyParseUuids() {
+        return Legacy.parseUuids(mRecord);
+    }
+}
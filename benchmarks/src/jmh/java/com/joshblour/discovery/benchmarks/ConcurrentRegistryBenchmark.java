@@ -0,0 +1,114 @@
+package com.joshblour.discovery.benchmarks;
+
+import com.joshblour.discovery.BLEUser;
+import com.joshblour.discovery.DeviceRegistry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The registry shared by the discovery thread, which processes sightings, and the scanner's
+ * callback threads, which touch known users when the discovery thread is behind. Against a
+ * HashMap behind a global lock.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ConcurrentRegistryBenchmark {
+
+    @Param({"1000", "10000"})
+    public int devices;
+
+    private String[] mAddresses;
+    private long[] mKeys;
+    private int[] mRssis;
+    private long mNow;
+
+    private DeviceRegistry mRegistry;
+    private Map<Long, BLEUser> mLegacyUsers;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup
+    public void setUp() {
+        mNow = System.currentTimeMillis();
+        mAddresses = Devices.addresses(devices);
+        mRssis = Devices.rssis(4096);
+        mKeys = new long[devices];
+        for (int i = 0; i < devices; i++) {
+            mKeys[i] = DeviceRegistry.packAddress(mAddresses[i]);
+        }
+
+        mRegistry = new DeviceRegistry();
+        for (BLEUser user : Devices.users(mAddresses, mNow)) {
+            mRegistry.put(user.getAddressKey(), user);
+        }
+
+        mLegacyUsers = Collections.synchronizedMap(new HashMap<Long, BLEUser>());
+        for (BLEUser user : Devices.users(mAddresses, mNow)) {
+            mLegacyUsers.put(user.getAddressKey(), user);
+        }
+    }
+
+    @Benchmark
+    @Group("striped")
+    @GroupThreads(1)
+    public BLEUser sighting(Cursor cursor) {
+        int i = cursor.next++;
+        BLEUser user = mRegistry.get(mKeys[i % devices]);
+        user.setRssi(mRssis[i & 4095], mNow + i);
+        user.advanceUpdateTime(mNow + i);
+        return user;
+    }
+
+    @Benchmark
+    @Group("striped")
+    @GroupThreads(3)
+    public BLEUser touch(Cursor cursor) {
+        int i = cursor.next += 7;
+        BLEUser user = mRegistry.get(mKeys[i % devices]);
+        user.touch(mRssis[i & 4095], mNow + i);
+        return user;
+    }
+
+    @Benchmark
+    @Group("globalLock")
+    @GroupThreads(1)
+    public BLEUser legacySighting(Cursor cursor) {
+        int i = cursor.next++;
+        BLEUser user = mLegacyUsers.get(mKeys[i % devices]);
+        synchronized (mLegacyUsers) {
+            user.setRssi(mRssis[i & 4095], mNow + i);
+            user.setUpdateTime(mNow + i);
+        }
+        return user;
+    }
+
+    @Benchmark
+    @Group("globalLock")
+    @GroupThreads(3)
+    public BLEUser legacyTouch(Cursor cursor) {
+        int i = cursor.next += 7;
+        BLEUser user = mLegacyUsers.get(mKeys[i % devices]);
+        synchronized (mLegacyUsers) {
+            user.setUpdateTime(mNow + i);
+        }
+        return user;
+    }
+}
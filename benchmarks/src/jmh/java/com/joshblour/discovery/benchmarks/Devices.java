@@ -0,0 +1,113 @@
+package com.joshblour.discovery.benchmarks;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.joshblour.discovery.BLEUser;
+import com.joshblour.discovery.DeviceRegistry;
+import com.joshblour.discovery.IdentityPayload;
+
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Reproducible populations of nearby devices for the benchmarks.
+ */
+final class Devices {
+
+    static final long SEED = 42;
+
+    private Devices() {
+    }
+
+    static String[] addresses(int count) {
+        Random random = new Random(SEED);
+        String[] addresses = new String[count];
+        for (int i = 0; i < count; i++) {
+            StringBuilder address = new StringBuilder(17);
+            for (int b = 0; b < 6; b++) {
+                if (b > 0)
+                    address.append(':');
+                address.append(String.format("%02X", random.nextInt(256)));
+            }
+            addresses[i] = address.toString();
+        }
+        return addresses;
+    }
+
+    // identified users, with a proximity between -100 and -30 dBm
+    static BLEUser[] users(String[] addresses, long now) {
+        Random random = new Random(SEED);
+        BLEUser[] users = new BLEUser[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            BluetoothDevice device = new BluetoothDevice(addresses[i]);
+            BLEUser user = new BLEUser(DeviceRegistry.packAddress(addresses[i]), device);
+            user.setService("benchmark");
+            user.setIsMyService(true);
+            user.setIdentified(true);
+            user.setRssi(rssi(random), now);
+            user.setUpdateTime(now);
+            users[i] = user;
+        }
+        return users;
+    }
+
+    static UUID[] uuids(int count) {
+        Random random = new Random(SEED + 2);
+        UUID[] uuids = new UUID[count];
+        for (int i = 0; i < count; i++) {
+            uuids[i] = new UUID(random.nextLong(), random.nextLong());
+        }
+        return uuids;
+    }
+
+    // what a peer advertises: flags, the identity payload and the TX power
+    static byte[] peerRecord(String service, UUID uuid) {
+        byte[] payload = IdentityPayload.encodeManufacturerData(service, uuid, null);
+        byte[] record = new byte[3 + 4 + payload.length + 3];
+        int i = 0;
+        record[i++] = 2;
+        record[i++] = 0x01;
+        record[i++] = 0x06;
+        record[i++] = (byte) (3 + payload.length);
+        record[i++] = (byte) 0xFF;
+        record[i++] = (byte) (IdentityPayload.DEFAULT_COMPANY_ID & 0xFF);
+        record[i++] = (byte) (IdentityPayload.DEFAULT_COMPANY_ID >> 8);
+        System.arraycopy(payload, 0, record, i, payload.length);
+        i += payload.length;
+        record[i++] = 2;
+        record[i++] = 0x0A;
+        record[i] = (byte) -12;
+        return record;
+    }
+
+    // what a peer advertised as of 0.10.0: flags and its uuid, with the service as its name
+    static byte[] legacyPeerRecord(UUID uuid) {
+        byte[] record = new byte[3 + 18];
+        int i = 0;
+        record[i++] = 2;
+        record[i++] = 0x01;
+        record[i++] = 0x06;
+        record[i++] = 17;
+        record[i++] = 0x07;
+        for (int b = 0; b < 8; b++) {
+            record[i++] = (byte) (uuid.getLeastSignificantBits() >>> (8 * b));
+        }
+        for (int b = 0; b < 8; b++) {
+            record[i++] = (byte) (uuid.getMostSignificantBits() >>> (8 * b));
+        }
+        return record;
+    }
+
+    static int[] rssis(int count) {
+        Random random = new Random(SEED + 1);
+        int[] rssis = new int[count];
+        for (int i = 0; i < count; i++) {
+            rssis[i] = rssi(random);
+        }
+        return rssis;
+    }
+
+    private static int rssi(Random random) {
+        return -100 + random.nextInt(71);
+    }
+}
@@ -0,0 +1,47 @@
+package com.joshblour.discovery.benchmarks;
+
+import com.joshblour.discovery.EasedValue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One rssi sample through EasedValue, the value the default filter eases, against its boxed
+ * version as of 0.10.0. It eases the rssi's magnitude, as BLEUser did.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EasedValueBenchmark {
+
+    private final EasedValue mEasedValue = new EasedValue();
+    private final Legacy.EasedValue mLegacyEasedValue = new Legacy.EasedValue();
+    private int[] mRssis;
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        mRssis = Devices.rssis(4096);
+    }
+
+    @Benchmark
+    public float update() {
+        mEasedValue.setValue(-mRssis[mNext++ & 4095]);
+        mEasedValue.update();
+        return mEasedValue.getValue();
+    }
+
+    @Benchmark
+    public Float legacyUpdate() {
+        mLegacyEasedValue.setValue((float) -mRssis[mNext++ & 4095]);
+        mLegacyEasedValue.update();
+        return mLegacyEasedValue.getValue();
+    }
+}
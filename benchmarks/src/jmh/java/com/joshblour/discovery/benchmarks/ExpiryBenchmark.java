@@ -0,0 +1,111 @@
+package com.joshblour.discovery.benchmarks;
+
+import com.joshblour.discovery.BLEUser;
+import com.joshblour.discovery.ExpiryWheel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Expiring users that weren't seen for USER_TIMEOUT_MILLIS, in steady state: every operation
+ * moves the clock one wheel tick forward, in which a share of the users is seen again so each one
+ * is seen every SEEN_EVERY_MILLIS and none expires. The wheel only visits the users of the slot
+ * that came due, checkList used to walk every user.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ExpiryBenchmark {
+
+    // as in Discovery
+    private static final long TICK_MILLIS = 250;
+    private static final int SLOTS = 128;
+    private static final long USER_TIMEOUT_MILLIS = 10000;
+    private static final long SEEN_EVERY_MILLIS = 5000;
+
+    @Param({"100", "1000", "10000"})
+    public int devices;
+
+    private BLEUser[] mUsers;
+    private BLEUser[] mLegacyUsersArray;
+    private Map<String, BLEUser> mLegacyUsers;
+    private ExpiryWheel mWheel;
+    private long mNow;
+    private int mNextSeen;
+    private int mNextLegacySeen;
+    private int mSeenPerTick;
+
+    @Setup
+    public void setUp() {
+        mNow = System.currentTimeMillis();
+        String[] addresses = Devices.addresses(devices);
+        mSeenPerTick = (int) Math.max(1, devices * TICK_MILLIS / SEEN_EVERY_MILLIS);
+
+        mWheel = new ExpiryWheel(TICK_MILLIS, SLOTS, new ExpiryWheel.Callback() {
+            @Override
+            public long deadlineFor(BLEUser user) {
+                return user.getUpdateTime() + USER_TIMEOUT_MILLIS;
+            }
+
+            @Override
+            public void onExpired(BLEUser user) {
+                throw new IllegalStateException("no user should expire");
+            }
+        });
+        mUsers = Devices.users(addresses, mNow);
+        for (BLEUser user : mUsers) {
+            mWheel.schedule(user, mNow + USER_TIMEOUT_MILLIS);
+        }
+        mWheel.advance(mNow);
+
+        mLegacyUsersArray = Devices.users(addresses, mNow);
+        mLegacyUsers = new HashMap<>();
+        for (BLEUser user : mLegacyUsersArray) {
+            mLegacyUsers.put(user.getDeviceAddress(), user);
+        }
+    }
+
+    @Benchmark
+    public int checkList() {
+        mNow += TICK_MILLIS;
+        for (int i = 0; i < mSeenPerTick; i++) {
+            mUsers[mNextSeen++ % devices].setUpdateTime(mNow);
+        }
+        return mWheel.advance(mNow);
+    }
+
+    // Discovery.checkList as of 0.10.0, without the update it triggers
+    @Benchmark
+    public int legacyCheckList() {
+        mNow += TICK_MILLIS;
+        for (int i = 0; i < mSeenPerTick; i++) {
+            mLegacyUsersArray[mNextLegacySeen++ % devices].setUpdateTime(mNow);
+        }
+
+        ArrayList<String> discardedKeys = new ArrayList<>();
+        for (String key : mLegacyUsers.keySet()) {
+            BLEUser bleUser = mLegacyUsers.get(key);
+            long diff = mNow - bleUser.getUpdateTime();
+
+            if (diff > USER_TIMEOUT_MILLIS) {
+                discardedKeys.add(key);
+            }
+        }
+
+        for (String key : discardedKeys) {
+            mLegacyUsers.remove(key);
+        }
+        return discardedKeys.size();
+    }
+}
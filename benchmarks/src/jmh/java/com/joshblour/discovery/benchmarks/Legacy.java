@@ -0,0 +1,275 @@
+package com.joshblour.discovery.benchmarks;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The library's code as of 0.10.0, copied as it was for the legacy benchmarks. Only the GATT
+ * connection is left out, which the benchmarks never reach.
+ */
+final class Legacy {
+
+    private Legacy() {
+    }
+
+    // Discovery as of 0.10.0: the users map and the handling of a scan result
+    static class Discovery {
+        private static final String TAG = "RNDiscovery-Disccovery";
+
+        private final String mService;
+        private final Map<String, BLEUser> mUsersMap = new HashMap<>();
+
+        Discovery(String service) {
+            mService = service;
+        }
+
+        String getService() {
+            return mService;
+        }
+
+        Map<String, BLEUser> getUsersMap() {
+            return mUsersMap;
+        }
+
+        void updateList(Boolean usersChanged) {
+            // the list is built by UpdateListBenchmark
+        }
+
+        private BLEUser userForDevice(BluetoothDevice device) {
+            BLEUser bleUser = getUsersMap().get(device.getAddress());
+
+            if (bleUser == null) {
+                bleUser = new BLEUser(device);
+                bleUser.setService(null);
+                bleUser.setIdentified(false);
+                getUsersMap().put(bleUser.getDeviceAddress(), bleUser);
+            }
+
+            return bleUser;
+        }
+
+        public void onScanResult(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            BLEUser bleUser = userForDevice(device);
+
+            // before we report this device to our delegate as a success, two things:
+            // 1) Make sure it contains our service (it's another device advertising with our unique uuid)
+            // 2) Make sure we can read its service
+
+            // We check if we can get a cached copy of the devices service uuidsScanResult
+            if (bleUser.isMyService() == null) {
+                String service = bleUser.getService();
+                if (service != null) {
+                    if (service.equals(getService())) {
+                        Log.v(TAG, device.getAddress() + " - found MY service!");
+                        bleUser.setIsMyService(true);
+                        updateList(true);
+
+                        List<UUID> uuids = parseUuids(scanRecord);
+                        // if there is any UUID in discovered devices
+                        if (uuids != null && uuids.size() > 0) {
+                            ParcelUuid uuid = new ParcelUuid(uuids.get(0));
+                            Log.v(TAG, device.getAddress() + " - found UUIDS from advisering data!");
+                            bleUser.setUUID(uuid);
+                            bleUser.setIdentified(true);
+                            updateList(true);
+                        } else {
+                            // else connect to device and get user UUID: left out
+                            Log.v(TAG, device.getAddress() + " - couldn't get UUIDS, connecting...");
+                        }
+                    }
+                }
+            }
+
+            // We check if we can get the service from the advertisement data,
+            // in case the advertising peer application is working at foreground
+            if (bleUser.getService() == null) {
+                String service = device.getName();
+
+                if (service != null && service.length() > 0) {
+                    bleUser.setService(service);
+                    updateList(true);
+                }
+            }
+
+            bleUser.setRssi(rssi);
+            bleUser.setUpdateTime(new Date().getTime());
+        }
+    }
+
+    // Discovery.parseUuids
+    static List<UUID> parseUuids(byte[] advertisedData) {
+        List<UUID> uuids = new ArrayList<>();
+
+        ByteBuffer buffer = ByteBuffer.wrap(advertisedData).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.remaining() > 2) {
+            byte length = buffer.get();
+            if (length == 0) break;
+
+            byte type = buffer.get();
+            switch (type) {
+                case 0x02: // Partial list of 16-bit UUIDs
+                case 0x03: // Complete list of 16-bit UUIDs
+                    while (length >= 2) {
+                        uuids.add(UUID.fromString(String.format("%08x-0000-1000-8000-00805f9b34fb", buffer.getShort())));
+                        length -= 2;
+                    }
+                    break;
+
+                case 0x06: // Partial list of 128-bit UUIDs
+                case 0x07: // Complete list of 128-bit UUIDs
+                    while (length >= 16) {
+                        long lsb = buffer.getLong();
+                        long msb = buffer.getLong();
+                        uuids.add(new UUID(msb, lsb));
+                        length -= 16;
+                    }
+                    break;
+
+                default:
+                    buffer.position(buffer.position() + length - 1);
+                    break;
+            }
+        }
+
+        return uuids;
+    }
+
+    static class BLEUser {
+        private BluetoothDevice mDevice;
+        private ParcelUuid mUUID;
+        private String mDeviceAddress;
+        private String mService;
+        private Boolean mIdentified;
+        private Boolean mIsMyService;
+        private Integer mRssi;
+        private Integer mProximity;
+        private long mUpdateTime;
+        private EasedValue mEasedProximity;
+
+        BLEUser(final BluetoothDevice device) {
+            this.mDevice = device;
+            this.mDeviceAddress = device.getAddress();
+            this.mRssi = 0;
+            this.mEasedProximity = new EasedValue();
+        }
+
+        public Integer convertRSSItoProximity(Integer rssi) {
+            // eased value doesn't support negative values
+            this.mEasedProximity.setValue(Math.abs(rssi) * 1.0f);//convert to float
+            this.mEasedProximity.update();
+            Integer proximity = Math.round(this.mEasedProximity.getValue() * -1.0f);
+            return proximity;
+        }
+
+        public String getDeviceAddress() {
+            return mDeviceAddress;
+        }
+
+        public String getService() {
+            return mService;
+        }
+
+        public void setService(String mService) {
+            this.mService = mService;
+        }
+
+        public Boolean isIdentified() {
+            return mIdentified;
+        }
+
+        public void setIdentified(Boolean mIdentified) {
+            this.mIdentified = mIdentified;
+        }
+
+        public Integer getRssi() {
+            return mRssi;
+        }
+
+        public void setRssi(int mRssi) {
+            this.mRssi = mRssi;
+            this.setProximity(convertRSSItoProximity(mRssi));
+        }
+
+        public Integer getProximity() {
+            return mProximity;
+        }
+
+        public void setProximity(Integer mProximity) {
+            this.mProximity = mProximity;
+        }
+
+        public long getUpdateTime() {
+            return mUpdateTime;
+        }
+
+        public void setUpdateTime(long mUpdateTime) {
+            this.mUpdateTime = mUpdateTime;
+        }
+
+        public void setUUID(ParcelUuid mUUID) {
+            this.mUUID = mUUID;
+        }
+
+        public ParcelUuid getUUID() {
+            return mUUID;
+        }
+
+        public void setIsMyService(Boolean isMyService) {
+            this.mIsMyService = isMyService;
+        }
+
+        public Boolean isMyService() {
+            return mIsMyService;
+        }
+    }
+
+    static class EasedValue {
+        private Float mValue;
+        private Float mVelocity;
+        private Float mTargetValue;
+        private Float mCurrentValue;
+
+        EasedValue() {
+            this.mVelocity = 0.0f;
+            this.mTargetValue = 0.0f;
+            this.mCurrentValue = 0.0f;
+        }
+
+        public void setValue(Float value) {
+            this.mTargetValue = value;
+        }
+
+        public Float getValue() {
+            return mCurrentValue;
+        }
+
+        public void update() {
+            // determine speed at which the ease will happen
+            // this is based on difference between target and current value
+            mVelocity += (mTargetValue - mCurrentValue) * 0.01f;
+            mVelocity *= 0.7f;
+
+            // ease the current value
+            mCurrentValue += mVelocity;
+
+            // limit how small the ease can get
+            if (Math.abs(mTargetValue - mCurrentValue) < 0.001f) {
+                mCurrentValue = mTargetValue;
+                mVelocity = 0.0f;
+            }
+
+            // keep above zero
+            mCurrentValue = Math.max(0.0f, mCurrentValue);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.joshblour.discovery.benchmarks;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.os.ParcelUuid;
+
+import com.joshblour.discovery.BLEUser;
+import com.joshblour.discovery.DeviceRegistry;
+import com.joshblour.discovery.Discovery;
+import com.joshblour.discovery.DiscoveryAccess;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A sighting of a known, identified peer, through the code each version runs for it on the
+ * discovery thread: Discovery.processSighting, which drains what onScanResult queued, against
+ * onScanResult as of 0.10.0. Each side gets the advertisement its peers send. The sightings are
+ * processed on the benchmark's thread while the discovery thread is idle: the users don't expire
+ * and the records don't change, so no update is scheduled.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RegistryBenchmark {
+
+    private static final String SERVICE = "benchmark";
+
+    @Param({"100", "1000", "10000"})
+    public int devices;
+
+    private BluetoothDevice[] mDevices;
+    private byte[][] mRecords;
+    private byte[][] mLegacyRecords;
+    private int[] mRssis;
+    private int mNext;
+    private long mNow;
+
+    private File mFilesDir;
+    private Discovery mDiscovery;
+    private Legacy.Discovery mLegacyDiscovery;
+
+    @Setup
+    public void setUp() throws Exception {
+        mNow = System.currentTimeMillis();
+        String[] addresses = Devices.addresses(devices);
+        UUID[] uuids = Devices.uuids(devices);
+        mRssis = Devices.rssis(4096);
+
+        mDevices = new BluetoothDevice[devices];
+        mRecords = new byte[devices][];
+        mLegacyRecords = new byte[devices][];
+        for (int i = 0; i < devices; i++) {
+            mDevices[i] = new BluetoothDevice(addresses[i], SERVICE);
+            mRecords[i] = Devices.peerRecord(SERVICE, uuids[i]);
+            mLegacyRecords[i] = Devices.legacyPeerRecord(uuids[i]);
+        }
+
+        mFilesDir = Files.createTempDirectory("registry-benchmark").toFile();
+        mDiscovery = new Discovery(new Context() {
+            @Override
+            public File getFilesDir() {
+                return mFilesDir;
+            }
+        }, new ParcelUuid(new UUID(0, 1)), SERVICE, Discovery.DIStartOptions.DIStartNone, null);
+        // users mustn't time out during the benchmark
+        mDiscovery.setUserTimeoutInterval(24 * 3600);
+        // the peers are identified from their payload on the first sighting
+        mDiscovery.runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < devices; i++) {
+                    process(i);
+                }
+            }
+        });
+        // the first wait lets the sightings run, the second the update they scheduled
+        awaitDiscoveryThread();
+        awaitDiscoveryThread();
+        for (BLEUser user : mDiscovery.getUsers().values()) {
+            if (!user.isIdentified())
+                throw new IllegalStateException(user.getDeviceAddress() + " wasn't identified");
+        }
+        if (mDiscovery.getUsers().size() != devices)
+            throw new IllegalStateException(mDiscovery.getUsers().size() + " users of " + devices);
+
+        // the first sighting takes the service from the name, the second the uuid from the record
+        mLegacyDiscovery = new Legacy.Discovery(SERVICE);
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < devices; i++) {
+                legacyProcess(i);
+            }
+        }
+        for (Legacy.BLEUser user : mLegacyDiscovery.getUsersMap().values()) {
+            if (!Boolean.TRUE.equals(user.isIdentified()))
+                throw new IllegalStateException(user.getDeviceAddress() + " wasn't identified by 0.10.0");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mDiscovery.release();
+        File[] files = mFilesDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+        Files.deleteIfExists(mFilesDir.toPath());
+    }
+
+    @Benchmark
+    public boolean sighting() {
+        return process(mNext++);
+    }
+
+    @Benchmark
+    public void legacySighting() {
+        legacyProcess(mNext++);
+    }
+
+    private boolean process(int i) {
+        BluetoothDevice device = mDevices[i % devices];
+        return DiscoveryAccess.processSighting(mDiscovery, DeviceRegistry.packAddress(device.getAddress()), device,
+                mRssis[i & 4095], mRecords[i % devices], mNow += 10);
+    }
+
+    private void legacyProcess(int i) {
+        mLegacyDiscovery.onScanResult(mDevices[i % devices], mRssis[i & 4095], mLegacyRecords[i % devices]);
+    }
+
+    private void awaitDiscoveryThread() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        mDiscovery.runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        if (!latch.await(30, TimeUnit.SECONDS))
+            throw new IllegalStateException("the discovery thread is stuck");
+    }
+}
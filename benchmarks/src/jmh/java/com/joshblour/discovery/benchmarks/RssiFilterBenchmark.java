@@ -0,0 +1,62 @@
+package com.joshblour.discovery.benchmarks;
+
+import com.joshblour.discovery.EasedRssiFilter;
+import com.joshblour.discovery.ExponentialRssiFilter;
+import com.joshblour.discovery.KalmanRssiFilter;
+import com.joshblour.discovery.MedianRssiFilter;
+import com.joshblour.discovery.RssiFilter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One rssi sample through each filter, with samples 100ms apart. Every filter is meant to be
+ * allocation-free: gc.alloc.rate.norm should stay at 0 in the results. The value the default
+ * filter eases is in {@link EasedValueBenchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RssiFilterBenchmark {
+
+    @Param({"eased", "exponential", "kalman", "median"})
+    public String filter;
+
+    private RssiFilter mFilter;
+    private int[] mRssis;
+    private int mNext;
+    private long mNow;
+
+    @Setup
+    public void setUp() {
+        switch (filter) {
+            case "exponential":
+                mFilter = new ExponentialRssiFilter(1000);
+                break;
+            case "kalman":
+                mFilter = new KalmanRssiFilter(0.008f, 4f);
+                break;
+            case "median":
+                mFilter = new MedianRssiFilter(5, 2000);
+                break;
+            default:
+                mFilter = new EasedRssiFilter();
+                break;
+        }
+        mRssis = Devices.rssis(4096);
+        mNow = System.currentTimeMillis();
+    }
+
+    @Benchmark
+    public float update() {
+        return mFilter.update(mRssis[mNext++ & 4095], mNow += 100);
+    }
+}
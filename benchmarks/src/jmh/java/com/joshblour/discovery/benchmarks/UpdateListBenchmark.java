@@ -0,0 +1,76 @@
+package com.joshblour.discovery.benchmarks;
+
+import com.joshblour.discovery.BLEUser;
+import com.joshblour.discovery.ProximityIndex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the ordered list of identified users sent with every update: a walk of the proximity
+ * index, against filtering and sorting every user as updateList did before.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UpdateListBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int devices;
+
+    private ProximityIndex mIndex;
+    private Map<String, BLEUser> mLegacyUsers;
+
+    @Setup
+    public void setUp() {
+        long now = System.currentTimeMillis();
+        String[] addresses = Devices.addresses(devices);
+
+        mIndex = new ProximityIndex();
+        mLegacyUsers = new HashMap<>();
+        for (BLEUser user : Devices.users(addresses, now)) {
+            mIndex.add(user);
+            mLegacyUsers.put(user.getDeviceAddress(), user);
+        }
+    }
+
+    @Benchmark
+    public List<BLEUser> updateList() {
+        return mIndex.toList();
+    }
+
+    // Discovery.updateList as of 0.10.0, without the delegate
+    @Benchmark
+    public List<BLEUser> legacyUpdateList() {
+        ArrayList<BLEUser> users = new ArrayList<>(mLegacyUsers.values());
+
+        ArrayList<BLEUser> discardedItems = new ArrayList<>();
+        for (BLEUser user : users) {
+            if (!user.isIdentified()) {
+                discardedItems.add(user);
+            }
+        }
+        users.removeAll(discardedItems);
+
+        Collections.sort(users, new Comparator<BLEUser>() {
+            public int compare(BLEUser s1, BLEUser s2) {
+                return Integer.valueOf(s1.getProximity()).compareTo(s2.getProximity());
+            }
+        });
+        return users;
+    }
+}
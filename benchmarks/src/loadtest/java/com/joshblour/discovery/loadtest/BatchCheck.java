@@ -0,0 +1,105 @@
+package com.joshblour.discovery.loadtest;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.ParcelUuid;
+
+import com.joshblour.discovery.BLEUser;
+import com.joshblour.discovery.DeviceRegistry;
+import com.joshblour.discovery.Discovery;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that a batch of scan results reaches the delegate as a single update with every peer in
+ * it, for batches larger than what the discovery thread processes per message one by one (256)
+ * and than the ingest queue (1024):
+ *
+ *     gradle batchCheck
+ *
+ * Exits with 1 if it doesn't.
+ */
+public class BatchCheck {
+
+    private static final String SERVICE = "batchcheck";
+    private static final int[] BATCH_SIZES = {300, 1000, 5000};
+
+    private final Object mLock = new Object();
+    private int mUpdates;
+    private int mReportedUsers;
+    private Discovery mDiscovery;
+
+    public static void main(String[] args) throws Exception {
+        System.exit(new BatchCheck().run() ? 0 : 1);
+    }
+
+    private boolean run() throws Exception {
+        mDiscovery = new Discovery(Harness.newContext(), new ParcelUuid(UUID.randomUUID()), SERVICE,
+                Discovery.DIStartOptions.DIStartNone, new Discovery.DiscoveryCallback() {
+            @Override
+            public void didUpdateUsers(ArrayList<BLEUser> users, Boolean usersChanged) {
+                synchronized (mLock) {
+                    mUpdates++;
+                    mReportedUsers = users.size();
+                }
+            }
+        });
+        // users mustn't time out during the check
+        mDiscovery.setUserTimeoutInterval(600);
+
+        boolean passed = true;
+        long address = 1;
+        int peers = 0;
+        for (int size : BATCH_SIZES) {
+            BluetoothDevice[] devices = new BluetoothDevice[size];
+            int[] rssis = new int[size];
+            byte[][] scanRecords = new byte[size][];
+            long[] timestamps = new long[size];
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < size; i++) {
+                devices[i] = new BluetoothDevice(DeviceRegistry.unpackAddress(address++));
+                rssis[i] = -60;
+                scanRecords[i] = SimulatedCrowd.peerRecord(SERVICE, UUID.randomUUID());
+                timestamps[i] = now;
+            }
+            peers += size;
+
+            synchronized (mLock) {
+                mUpdates = 0;
+            }
+            mDiscovery.onBatchScanResults(devices, rssis, scanRecords, timestamps, size);
+            // the first wait lets the batch run, the second the update it scheduled
+            awaitDiscoveryThread();
+            awaitDiscoveryThread();
+
+            int updates;
+            int reportedUsers;
+            synchronized (mLock) {
+                updates = mUpdates;
+                reportedUsers = mReportedUsers;
+            }
+            boolean ok = updates == 1 && reportedUsers == peers && mDiscovery.getDroppedSightingCount() == 0;
+            passed &= ok;
+            System.out.println(String.format(Locale.US, "%s  batch of %d: %d updates, %d users reported of %d, %d dropped",
+                    ok ? "ok  " : "FAIL", size, updates, reportedUsers, peers, mDiscovery.getDroppedSightingCount()));
+        }
+
+        mDiscovery.release();
+        return passed;
+    }
+
+    private void awaitDiscoveryThread() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        mDiscovery.runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        if (!latch.await(30, TimeUnit.SECONDS))
+            throw new IllegalStateException("the discovery thread is stuck");
+    }
+}
@@ -0,0 +1,59 @@
+package com.joshblour.discovery.loadtest;
+
+import com.joshblour.discovery.DutyCycleScheduler;
+
+import java.util.Locale;
+
+/**
+ * Checks that the adaptive wait between scan windows recovers after a busy period drove it down to
+ * a minimum of 0, and when it starts from 0:
+ *
+ *     gradle dutyCycleCheck
+ *
+ * Busy periods (every cycle has arrivals) alternate with quiet ones (no change). Each quiet period
+ * must bring the wait back up to its longest within QUIET_CYCLES cycles. Exits with 1 if it doesn't.
+ */
+public class DutyCycleCheck {
+
+    private static final long SCAN_MILLIS = 5000;
+    private static final int BUSY_CYCLES = 20;
+    private static final int QUIET_CYCLES = 15;
+    private static final int PERIODS = 3;
+
+    public static void main(String[] args) {
+        boolean passed = true;
+        // no latency target, then one capping the wait at 15s
+        passed &= check("min 0, max 30s", new DutyCycleScheduler(0, 30000, 0), 5000, 30000);
+        passed &= check("min 0, max 30s, latency 20s", new DutyCycleScheduler(0, 30000, 20000), 5000, 15000);
+        passed &= check("min 0, max 30s, from 0", new DutyCycleScheduler(0, 30000, 0), 0, 30000);
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static boolean check(String name, DutyCycleScheduler scheduler, long initialWait, long longestWait) {
+        scheduler.reset(initialWait);
+        long wait = scheduler.getWaitMillis(SCAN_MILLIS);
+        boolean passed = true;
+
+        for (int period = 0; period < PERIODS; period++) {
+            // from 0, the first period is quiet
+            if (period > 0 || initialWait > 0) {
+                for (int i = 0; i < BUSY_CYCLES; i++) {
+                    wait = scheduler.onCycleFinished(3, 2, SCAN_MILLIS, SCAN_MILLIS + wait);
+                }
+            }
+            long busyWait = wait;
+
+            int cycles = 0;
+            while (wait < longestWait && cycles < QUIET_CYCLES) {
+                wait = scheduler.onCycleFinished(0, 0, SCAN_MILLIS, SCAN_MILLIS + wait);
+                cycles++;
+            }
+
+            boolean ok = wait == longestWait;
+            passed &= ok;
+            System.out.println(String.format(Locale.US, "%s  %s, period %d: busy wait %dms, %dms after %d quiet cycles",
+                    ok ? "ok  " : "FAIL", name, period + 1, busyWait, wait, cycles));
+        }
+        return passed;
+    }
+}
@@ -0,0 +1,95 @@
+package com.joshblour.discovery.loadtest;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.ParcelUuid;
+
+import com.joshblour.discovery.BLEUser;
+import com.joshblour.discovery.DeviceRegistry;
+import com.joshblour.discovery.EasedRssiFilter;
+import com.joshblour.discovery.ProximityIndex;
+
+import org.openjdk.jol.info.GraphLayout;
+import org.openjdk.jol.vm.VM;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Measures the heap retained per tracked device: the registry and the proximity index filled with
+ * identified users, as Discovery keeps them, walked with JOL:
+ *
+ *     gradle footprint --args="--json=build/footprint.json"
+ *
+ * Each size is measured on its own and the per device figure is the total divided by the size,
+ * so the tables' fixed overhead fades as they grow. The devices are the JVM stand-ins of
+ * src/seams/java, whose fields are those of the platform's (an address string and an int): on a
+ * device their size may differ by a few bytes. The class histogram of the largest size follows.
+ */
+public class Footprint {
+
+    private static final int[] SIZES = {1000, 10000, 100000};
+    private static final String SERVICE = "footprint";
+
+    public static void main(String[] args) throws IOException {
+        String jsonFile = null;
+        for (String arg : args) {
+            if (arg.startsWith("--json="))
+                jsonFile = arg.substring("--json=".length());
+            else
+                throw new IllegalArgumentException("unknown option: " + arg);
+        }
+
+        System.out.println(VM.current().details());
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"vm\": \"").append(System.getProperty("java.vm.name")).append(' ')
+                .append(System.getProperty("java.version")).append("\",\n  \"sizes\": [");
+        GraphLayout largest = null;
+        for (int i = 0; i < SIZES.length; i++) {
+            int size = SIZES[i];
+            DeviceRegistry registry = new DeviceRegistry();
+            ProximityIndex index = new ProximityIndex();
+            fill(registry, index, size);
+
+            GraphLayout registryLayout = GraphLayout.parseInstance(registry);
+            GraphLayout layout = GraphLayout.parseInstance(registry, index);
+            System.out.println(String.format(Locale.US, "%7d devices  registry %6.1f bytes/device  with the index %6.1f bytes/device",
+                    size, registryLayout.totalSize() / (double) size, layout.totalSize() / (double) size));
+
+            json.append(i == 0 ? "\n" : ",\n").append(String.format(Locale.US,
+                    "    {\"devices\": %d, \"registryBytes\": %d, \"totalBytes\": %d, \"bytesPerDevice\": %.1f}",
+                    size, registryLayout.totalSize(), layout.totalSize(), layout.totalSize() / (double) size));
+            largest = layout;
+        }
+        json.append("\n  ]\n}\n");
+
+        System.out.println();
+        System.out.println(largest.toFootprint());
+        if (jsonFile != null)
+            Harness.write(new File(jsonFile), json.toString());
+    }
+
+    // identified users with their own filter, uuid and device, sharing the service string
+    private static void fill(DeviceRegistry registry, ProximityIndex index, int size) {
+        Random random = new Random(size);
+        long now = System.currentTimeMillis();
+        while (registry.size() < size) {
+            long key = random.nextLong() & 0xFFFFFFFFFFFFL;
+            if (registry.containsKey(key))
+                continue;
+
+            BLEUser user = new BLEUser(key, new BluetoothDevice(DeviceRegistry.unpackAddress(key)), new EasedRssiFilter());
+            user.setService(SERVICE);
+            user.setIsMyService(true);
+            user.setUUID(new ParcelUuid(new UUID(random.nextLong(), random.nextLong())));
+            user.setIdentified(true);
+            user.setRssi(-100 + random.nextInt(71), now);
+            user.setUpdateTime(now);
+            registry.put(key, user);
+            index.add(user);
+        }
+    }
+}
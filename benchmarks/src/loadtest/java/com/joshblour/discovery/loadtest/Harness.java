@@ -0,0 +1,97 @@
+package com.joshblour.discovery.loadtest;
+
+import android.content.Context;
+
+import com.joshblour.discovery.LatencyHistogram;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Locale;
+
+/**
+ * What the load test and the replay share: the context Discovery runs in, and the measurements of
+ * the JVM.
+ */
+final class Harness {
+
+    private Harness() {
+    }
+
+    // a context whose files directory is a new temporary directory
+    static Context newContext() throws IOException {
+        final File filesDir = new File(System.getProperty("java.io.tmpdir"), "discovery-loadtest-" + System.nanoTime());
+        if (!filesDir.mkdirs())
+            throw new IOException("couldn't create " + filesDir);
+        filesDir.deleteOnExit();
+
+        return new Context() {
+            @Override
+            public File getFilesDir() {
+                return filesDir;
+            }
+        };
+    }
+
+    static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    static void resetHeapPeaks() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+        }
+    }
+
+    // the sum of the pools' peaks, an upper bound of the peak of the heap
+    static long getHeapPeaks() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    static long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    static long getGcTimeMillis() {
+        long time = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, collector.getCollectionTime());
+        }
+        return time;
+    }
+
+    static void appendHistogram(StringBuilder json, LatencyHistogram histogram) {
+        json.append("{\"count\": ").append(histogram.getCount())
+                .append(", \"mean\": ").append(String.format(Locale.US, "%.1f", histogram.getMean()))
+                .append(", \"p50\": ").append(histogram.getPercentile(50))
+                .append(", \"p90\": ").append(histogram.getPercentile(90))
+                .append(", \"p99\": ").append(histogram.getPercentile(99))
+                .append(", \"max\": ").append(histogram.getMax())
+                .append("}");
+    }
+
+    static void write(File file, String content) throws IOException {
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.joshblour.discovery.loadtest;
+
+import android.content.Context;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
+
+import com.joshblour.discovery.BLEUser;
+import com.joshblour.discovery.Discovery;
+import com.joshblour.discovery.DiscoveryMetrics;
+import com.joshblour.discovery.LatencyHistogram;
+import com.joshblour.discovery.ScanRecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Runs the real Discovery pipeline against a {@link SimulatedCrowd} and reports its throughput,
+ * discovery latency and heap:
+ *
+ *     gradle loadTest --args="--peers=5000 --duration=60"
+ *
+ * Options, as --name=value:
+ *     peers, beacons      devices advertising the service's identity payload, and other devices (1000, 0)
+ *     interval, jitter    advertising interval and random delay, in ms (250, 10)
+ *     loss                the share of packets lost (0.2)
+ *     dwell               mean time a device stays, in s, 0 to keep them (300)
+ *     rotation            private address rotation, in s, 0 never (900)
+ *     batchDelay          scan batching report delay, in ms (0)
+ *     scanFor, waitFor    scan windows, in s (5, 5)
+ *     timeout             user timeout, in s (10)
+ *     duration            run time, in s (30)
+ *     report              progress every, in s (5)
+ *     seed                the crowd's random seed (1)
+ *     json                writes the results to this file
+ *     record              records the scan results to a log in this directory, for {@link Replay}
+ *
+ * The discovery latency of a peer runs from its arrival to the first update reporting it identified.
+ */
+public class LoadTest {
+
+    private final SimulatedCrowd.Config mConfig = new SimulatedCrowd.Config();
+    private long mBatchDelayMillis = 0;
+    private int mScanForSeconds = 5;
+    private int mWaitForSeconds = 5;
+    private int mUserTimeoutSeconds = 10;
+    private long mDurationSeconds = 30;
+    private long mReportSeconds = 5;
+    private String mJsonFile;
+    private String mRecordDirectory;
+
+    // from arrival to the first report, in milliseconds: 25ms to 51.2s
+    private final LatencyHistogram mDiscoveryLatency = new LatencyHistogram(25, 12);
+    private volatile int mReportedUsers;
+    private volatile int mIdentifiedUsers;
+    private volatile long mUpdates;
+
+    public static void main(String[] args) throws Exception {
+        LoadTest loadTest = new LoadTest();
+        loadTest.parse(args);
+        loadTest.run();
+    }
+
+    private void parse(String[] args) {
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0)
+                throw new IllegalArgumentException("expected --name=value: " + arg);
+
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+            switch (name) {
+                case "peers": mConfig.peers = Integer.parseInt(value); break;
+                case "beacons": mConfig.beacons = Integer.parseInt(value); break;
+                case "interval": mConfig.advertisingIntervalMillis = Long.parseLong(value); break;
+                case "jitter": mConfig.advertisingJitterMillis = Long.parseLong(value); break;
+                case "loss": mConfig.lossRate = Double.parseDouble(value); break;
+                case "dwell": mConfig.dwellMillis = Long.parseLong(value) * 1000; break;
+                case "rotation": mConfig.rotationMillis = Long.parseLong(value) * 1000; break;
+                case "seed": mConfig.seed = Long.parseLong(value); break;
+                case "batchDelay": mBatchDelayMillis = Long.parseLong(value); break;
+                case "scanFor": mScanForSeconds = Integer.parseInt(value); break;
+                case "waitFor": mWaitForSeconds = Integer.parseInt(value); break;
+                case "timeout": mUserTimeoutSeconds = Integer.parseInt(value); break;
+                case "duration": mDurationSeconds = Long.parseLong(value); break;
+                case "report": mReportSeconds = Math.max(1, Long.parseLong(value)); break;
+                case "json": mJsonFile = value; break;
+                case "record": mRecordDirectory = value; break;
+                default: throw new IllegalArgumentException("unknown option: " + name);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        Context context = Harness.newContext();
+        final SimulatedCrowd crowd = new SimulatedCrowd(mConfig);
+        Discovery discovery = new Discovery(context, new ParcelUuid(UUID.randomUUID()), mConfig.service,
+                Discovery.DIStartOptions.DIStartNone, new Discovery.DiscoveryCallback() {
+            @Override
+            public void didUpdateUsers(ArrayList<BLEUser> users, Boolean usersChanged) {
+                long now = SystemClock.elapsedRealtime();
+                int identified = 0;
+                for (BLEUser user : users) {
+                    if (!user.isIdentified() || user.getUUID() == null)
+                        continue;
+
+                    identified++;
+                    long latency = crowd.onReported(user.getUUID().getUuid(), now);
+                    if (latency >= 0)
+                        mDiscoveryLatency.record(latency);
+                }
+                mReportedUsers = users.size();
+                mIdentifiedUsers = identified;
+                mUpdates++;
+            }
+        });
+        discovery.setScanBackendFactory(crowd);
+        discovery.setUserTimeoutInterval(mUserTimeoutSeconds);
+        discovery.setBatchScanDelayMillis(mBatchDelayMillis);
+        discovery.setScanForSeconds(mScanForSeconds);
+        discovery.setWaitForSeconds(mWaitForSeconds);
+        if (mRecordDirectory != null)
+            discovery.startRecording(new File(mRecordDirectory), ScanRecorder.DEFAULT_SEGMENT_BYTES, Integer.MAX_VALUE);
+
+        System.out.println(String.format(Locale.US,
+                "%d peers, %d beacons, every %dms, %.0f%% lost, dwell %ds, rotation %ds, batches %dms, scan %ds/%ds, for %ds",
+                mConfig.peers, mConfig.beacons, mConfig.advertisingIntervalMillis, mConfig.lossRate * 100,
+                mConfig.dwellMillis / 1000, mConfig.rotationMillis / 1000, mBatchDelayMillis,
+                mScanForSeconds, mWaitForSeconds, mDurationSeconds));
+
+        Harness.resetHeapPeaks();
+        long gcCountBefore = Harness.getGcCount();
+        long gcTimeBefore = Harness.getGcTimeMillis();
+        DiscoveryMetrics metrics = DiscoveryMetrics.get();
+        metrics.reset();
+
+        long startedAt = SystemClock.elapsedRealtime();
+        crowd.start();
+        discovery.setShouldDiscover(true);
+
+        long lastDelivered = 0;
+        long lastProcessed = 0;
+        long end = startedAt + mDurationSeconds * 1000;
+        long nextReport = startedAt + mReportSeconds * 1000;
+        while (SystemClock.elapsedRealtime() < end) {
+            Thread.sleep(Math.max(1, Math.min(nextReport, end) - SystemClock.elapsedRealtime()));
+            if (SystemClock.elapsedRealtime() < nextReport)
+                continue;
+
+            long delivered = crowd.getDelivered();
+            long processed = metrics.getMatchedScanResults() + metrics.getUnmatchedScanResults();
+            System.out.println(String.format(Locale.US,
+                    "%4ds  delivered %8.0f/s  processed %8.0f/s  dropped %d  registry %d  reported %d  identified %d  heap %dMB",
+                    (nextReport - startedAt) / 1000,
+                    (delivered - lastDelivered) / (double) mReportSeconds,
+                    (processed - lastProcessed) / (double) mReportSeconds,
+                    discovery.getDroppedSightingCount(), metrics.getRegistrySize(), mReportedUsers, mIdentifiedUsers,
+                    Harness.usedHeap() >> 20));
+            lastDelivered = delivered;
+            lastProcessed = processed;
+            nextReport += mReportSeconds * 1000;
+        }
+
+        discovery.setShouldDiscover(false);
+        crowd.stop();
+        long elapsed = SystemClock.elapsedRealtime() - startedAt;
+        long peakHeap = Harness.getHeapPeaks();
+        long gcCount = Harness.getGcCount() - gcCountBefore;
+        long gcTime = Harness.getGcTimeMillis() - gcTimeBefore;
+        System.gc();
+        long retainedHeap = Harness.usedHeap();
+        discovery.release();
+
+        Result result = new Result();
+        result.elapsedSeconds = elapsed / 1000.0;
+        result.advertisements = crowd.getAdvertisements();
+        result.delivered = crowd.getDelivered();
+        result.processed = metrics.getMatchedScanResults() + metrics.getUnmatchedScanResults();
+        result.matched = metrics.getMatchedScanResults();
+        result.dropped = discovery.getDroppedSightingCount();
+        result.arrivals = crowd.getArrivals();
+        result.departures = crowd.getDepartures();
+        result.unreportedDepartures = crowd.getUnreportedDepartures();
+        result.rotations = crowd.getRotations();
+        result.updates = mUpdates;
+        result.reportedUsers = mReportedUsers;
+        result.identifiedUsers = mIdentifiedUsers;
+        result.peakHeap = peakHeap;
+        result.retainedHeap = retainedHeap;
+        result.gcCount = gcCount;
+        result.gcTimeMillis = gcTime;
+
+        print(result, metrics.getUpdateListMicros());
+        if (mJsonFile != null)
+            writeJson(result, metrics.getUpdateListMicros(), new File(mJsonFile));
+        System.exit(0);
+    }
+
+    private void print(Result result, LatencyHistogram updateList) {
+        System.out.println();
+        System.out.println(String.format(Locale.US, "throughput   %.0f delivered/s, %.0f processed/s, %d dropped (%.2f%%)",
+                result.delivered / result.elapsedSeconds, result.processed / result.elapsedSeconds, result.dropped,
+                result.delivered > 0 ? result.dropped * 100.0 / result.delivered : 0));
+        System.out.println(String.format(Locale.US, "crowd        %d arrivals, %d departures (%d never reported), %d address rotations",
+                result.arrivals, result.departures, result.unreportedDepartures, result.rotations));
+        System.out.println(String.format(Locale.US, "users        %d reported, %d identified, %d updates",
+                result.reportedUsers, result.identifiedUsers, result.updates));
+        System.out.println(String.format(Locale.US, "discovery    p50 %dms  p90 %dms  p99 %dms  max %dms  (%d peers)",
+                mDiscoveryLatency.getPercentile(50), mDiscoveryLatency.getPercentile(90),
+                mDiscoveryLatency.getPercentile(99), mDiscoveryLatency.getMax(), mDiscoveryLatency.getCount()));
+        System.out.println(String.format(Locale.US, "update list  p50 %dus  p90 %dus  p99 %dus  max %dus  (%d updates)",
+                updateList.getPercentile(50), updateList.getPercentile(90), updateList.getPercentile(99),
+                updateList.getMax(), updateList.getCount()));
+        System.out.println(String.format(Locale.US, "heap         peak %dMB, retained %dMB after gc, %d gcs in %dms",
+                result.peakHeap >> 20, result.retainedHeap >> 20, result.gcCount, result.gcTimeMillis));
+    }
+
+    private void writeJson(Result result, LatencyHistogram updateList, File file) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"config\": {")
+                .append("\"peers\": ").append(mConfig.peers)
+                .append(", \"beacons\": ").append(mConfig.beacons)
+                .append(", \"intervalMillis\": ").append(mConfig.advertisingIntervalMillis)
+                .append(", \"jitterMillis\": ").append(mConfig.advertisingJitterMillis)
+                .append(", \"lossRate\": ").append(mConfig.lossRate)
+                .append(", \"dwellMillis\": ").append(mConfig.dwellMillis)
+                .append(", \"rotationMillis\": ").append(mConfig.rotationMillis)
+                .append(", \"batchDelayMillis\": ").append(mBatchDelayMillis)
+                .append(", \"scanForSeconds\": ").append(mScanForSeconds)
+                .append(", \"waitForSeconds\": ").append(mWaitForSeconds)
+                .append(", \"userTimeoutSeconds\": ").append(mUserTimeoutSeconds)
+                .append(", \"seed\": ").append(mConfig.seed)
+                .append("},\n");
+        json.append("  \"elapsedSeconds\": ").append(result.elapsedSeconds).append(",\n");
+        json.append("  \"advertisements\": ").append(result.advertisements).append(",\n");
+        json.append("  \"delivered\": ").append(result.delivered).append(",\n");
+        json.append("  \"processed\": ").append(result.processed).append(",\n");
+        json.append("  \"matched\": ").append(result.matched).append(",\n");
+        json.append("  \"dropped\": ").append(result.dropped).append(",\n");
+        json.append("  \"arrivals\": ").append(result.arrivals).append(",\n");
+        json.append("  \"departures\": ").append(result.departures).append(",\n");
+        json.append("  \"unreportedDepartures\": ").append(result.unreportedDepartures).append(",\n");
+        json.append("  \"rotations\": ").append(result.rotations).append(",\n");
+        json.append("  \"updates\": ").append(result.updates).append(",\n");
+        json.append("  \"reportedUsers\": ").append(result.reportedUsers).append(",\n");
+        json.append("  \"identifiedUsers\": ").append(result.identifiedUsers).append(",\n");
+        json.append("  \"discoveryLatencyMillis\": ");
+        Harness.appendHistogram(json, mDiscoveryLatency);
+        json.append(",\n");
+        json.append("  \"updateListMicros\": ");
+        Harness.appendHistogram(json, updateList);
+        json.append(",\n");
+        json.append("  \"peakHeapBytes\": ").append(result.peakHeap).append(",\n");
+        json.append("  \"retainedHeapBytes\": ").append(result.retainedHeap).append(",\n");
+        json.append("  \"gcCount\": ").append(result.gcCount).append(",\n");
+        json.append("  \"gcTimeMillis\": ").append(result.gcTimeMillis).append("\n");
+        json.append("}\n");
+
+        Harness.write(file, json.toString());
+    }
+
+    private static class Result {
+        double elapsedSeconds;
+        long advertisements;
+        long delivered;
+        long processed;
+        long matched;
+        long dropped;
+        long arrivals;
+        long departures;
+        long unreportedDepartures;
+        long rotations;
+        long updates;
+        int reportedUsers;
+        int identifiedUsers;
+        long peakHeap;
+        long retainedHeap;
+        long gcCount;
+        long gcTimeMillis;
+    }
+}
@@ -0,0 +1,100 @@
+package com.joshblour.discovery.loadtest;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.joshblour.discovery.BLEUser;
+import com.joshblour.discovery.DeviceRegistry;
+import com.joshblour.discovery.ProximityIndex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Checks the order ProximityIndex keeps its users in against a plain sort, through random
+ * insertions, repositions and removals:
+ *
+ *     gradle proximityIndexCheck
+ *
+ * Exits with 1 if the index and the sort ever disagree.
+ */
+public class ProximityIndexCheck {
+
+    private static final int USERS = 2000;
+    private static final int OPERATIONS = 200000;
+    private static final int CHECK_EVERY = 1000;
+
+    // ascending proximity, then address, like the index
+    private static final Comparator<BLEUser> ORDER = new Comparator<BLEUser>() {
+        @Override
+        public int compare(BLEUser a, BLEUser b) {
+            int byProximity = Integer.compare(a.getProximity(), b.getProximity());
+            return byProximity != 0 ? byProximity : Long.compare(a.getAddressKey(), b.getAddressKey());
+        }
+    };
+
+    public static void main(String[] args) {
+        Random random = new Random(42);
+        BLEUser[] users = new BLEUser[USERS];
+        for (int i = 0; i < USERS; i++) {
+            long key = random.nextLong() & 0xFFFFFFFFFFFFL;
+            users[i] = new BLEUser(key, new BluetoothDevice(DeviceRegistry.unpackAddress(key)));
+            users[i].setProximity(-100 + random.nextInt(71));
+        }
+
+        ProximityIndex index = new ProximityIndex();
+        List<BLEUser> indexed = new ArrayList<>();
+        boolean passed = true;
+        int failures = 0;
+
+        for (int operation = 1; operation <= OPERATIONS; operation++) {
+            BLEUser user = users[random.nextInt(USERS)];
+            int action = random.nextInt(10);
+            if (action == 0) {
+                if (index.remove(user))
+                    indexed.remove(user);
+            } else if (!index.contains(user)) {
+                index.add(user);
+                indexed.add(user);
+            } else {
+                // mostly small moves, like an rssi filter's, sometimes a jump
+                int step = action == 1 ? random.nextInt(71) - 35 : random.nextInt(7) - 3;
+                user.setProximity(Math.max(-100, Math.min(-30, user.getProximity() + step)));
+                index.update(user);
+            }
+
+            if (operation % CHECK_EVERY == 0 && !matches(index, indexed, random)) {
+                passed = false;
+                failures++;
+            }
+        }
+
+        System.out.println(String.format(Locale.US, "%s  %d operations on %d users, %d mismatches, %d indexed",
+                passed ? "ok  " : "FAIL", OPERATIONS, USERS, failures, index.size()));
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static boolean matches(ProximityIndex index, List<BLEUser> indexed, Random random) {
+        List<BLEUser> expected = new ArrayList<>(indexed);
+        Collections.sort(expected, ORDER);
+        if (index.size() != expected.size() || !index.toList().equals(expected))
+            return false;
+
+        List<BLEUser> closestFirst = new ArrayList<>(expected);
+        Collections.reverse(closestFirst);
+        int count = random.nextInt(50);
+        if (!index.closest(count).equals(closestFirst.subList(0, Math.min(count, closestFirst.size()))))
+            return false;
+
+        int minProximity = -100 + random.nextInt(71);
+        List<BLEUser> atLeast = new ArrayList<>();
+        for (BLEUser user : closestFirst) {
+            if (user.getProximity() >= minProximity)
+                atLeast.add(user);
+        }
+        return index.withProximityAtLeast(minProximity).equals(atLeast);
+    }
+}
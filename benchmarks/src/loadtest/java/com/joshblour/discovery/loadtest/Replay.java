@@ -0,0 +1,193 @@
+package com.joshblour.discovery.loadtest;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
+
+import com.joshblour.discovery.BLEUser;
+import com.joshblour.discovery.Discovery;
+import com.joshblour.discovery.DiscoveryMetrics;
+import com.joshblour.discovery.LatencyHistogram;
+import com.joshblour.discovery.MultiScanner;
+import com.joshblour.discovery.ScanReplayer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Replays a scan log, recorded on a device or by {@link LoadTest}, into the real Discovery pipeline
+ * and reports its throughput and heap, so a field recording becomes a repeatable benchmark:
+ *
+ *     gradle replay --args="--log=path/to/rndiscovery-scans --service=myService --speed=10"
+ *
+ * Options, as --name=value:
+ *     log        the recording's directory
+ *     service    the service of the peers, as given to Discovery on the device (loadtest)
+ *     speed      1 for real time, 10 for ten times faster, 0 as fast as possible (1)
+ *     timeout    user timeout, in s (10)
+ *     json       writes the results to this file
+ *
+ * The digest covers the replayed stream: two replays of a log feed Discovery the same results in
+ * the same order. Sightings dropped by Discovery are reported.
+ */
+public class Replay {
+
+    // how long the pipeline gets to catch up once the log has been replayed
+    private static final long DRAIN_TIMEOUT_MILLIS = 10000;
+
+    private String mLog;
+    private String mService = "loadtest";
+    private double mSpeed = 1;
+    private int mUserTimeoutSeconds = 10;
+    private String mJsonFile;
+
+    private volatile int mReportedUsers;
+    private volatile int mIdentifiedUsers;
+    private volatile long mUpdates;
+
+    public static void main(String[] args) throws Exception {
+        Replay replay = new Replay();
+        replay.parse(args);
+        replay.run();
+    }
+
+    private void parse(String[] args) {
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0)
+                throw new IllegalArgumentException("expected --name=value: " + arg);
+
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+            switch (name) {
+                case "log": mLog = value; break;
+                case "service": mService = value; break;
+                case "speed": mSpeed = Double.parseDouble(value); break;
+                case "timeout": mUserTimeoutSeconds = Integer.parseInt(value); break;
+                case "json": mJsonFile = value; break;
+                default: throw new IllegalArgumentException("unknown option: " + name);
+            }
+        }
+        if (mLog == null)
+            throw new IllegalArgumentException("missing --log=<directory>");
+    }
+
+    private void run() throws Exception {
+        final Discovery discovery = new Discovery(Harness.newContext(), new ParcelUuid(UUID.randomUUID()), mService,
+                Discovery.DIStartOptions.DIStartNone, new Discovery.DiscoveryCallback() {
+            @Override
+            public void didUpdateUsers(ArrayList<BLEUser> users, Boolean usersChanged) {
+                int identified = 0;
+                for (BLEUser user : users) {
+                    if (user.isIdentified())
+                        identified++;
+                }
+                mReportedUsers = users.size();
+                mIdentifiedUsers = identified;
+                mUpdates++;
+            }
+        });
+        discovery.setUserTimeoutInterval(mUserTimeoutSeconds);
+
+        final CRC32 digest = new CRC32();
+        MultiScanner.MultiScannerCallback digester = new MultiScanner.MultiScannerCallback() {
+            @Override
+            public void onScanResult(BluetoothDevice device, int rssi, byte[] scanRecord) {
+                update(device, rssi, scanRecord);
+                discovery.onScanResult(device, rssi, scanRecord);
+            }
+
+            @Override
+            public void onBatchScanResults(BluetoothDevice[] devices, int[] rssis, byte[][] scanRecords, long[] timestamps, int count) {
+                for (int i = 0; i < count; i++) {
+                    update(devices[i], rssis[i], scanRecords[i]);
+                }
+                discovery.onBatchScanResults(devices, rssis, scanRecords, timestamps, count);
+            }
+
+            @Override
+            public void onScanFailed(int errorCode) {
+                discovery.onScanFailed(errorCode);
+            }
+
+            private void update(BluetoothDevice device, int rssi, byte[] scanRecord) {
+                digest.update(device.getAddress().getBytes());
+                digest.update(rssi);
+                digest.update(scanRecord);
+            }
+        };
+
+        ScanReplayer replayer = new ScanReplayer(new File(mLog), digester, new ScanReplayer.DeviceResolver() {
+            @Override
+            public BluetoothDevice getDevice(String address) {
+                return new BluetoothDevice(address);
+            }
+        });
+        replayer.setSpeed(mSpeed);
+
+        Harness.resetHeapPeaks();
+        long gcCountBefore = Harness.getGcCount();
+        long gcTimeBefore = Harness.getGcTimeMillis();
+        DiscoveryMetrics metrics = DiscoveryMetrics.get();
+        metrics.reset();
+
+        long startedAt = SystemClock.elapsedRealtime();
+        long replayed = replayer.replay();
+        long replayedAt = SystemClock.elapsedRealtime();
+
+        // every sighting is either processed or dropped
+        while (metrics.getMatchedScanResults() + metrics.getUnmatchedScanResults() + discovery.getDroppedSightingCount() < replayed
+                && SystemClock.elapsedRealtime() - replayedAt < DRAIN_TIMEOUT_MILLIS) {
+            Thread.sleep(10);
+        }
+        long elapsed = SystemClock.elapsedRealtime() - startedAt;
+        long processed = metrics.getMatchedScanResults() + metrics.getUnmatchedScanResults();
+        long dropped = discovery.getDroppedSightingCount();
+        long peakHeap = Harness.getHeapPeaks();
+        long gcCount = Harness.getGcCount() - gcCountBefore;
+        long gcTime = Harness.getGcTimeMillis() - gcTimeBefore;
+        discovery.release();
+        LatencyHistogram updateList = metrics.getUpdateListMicros();
+
+        System.out.println(String.format(Locale.US, "replayed     %d results in %.1fs at speed %s, digest %08x",
+                replayed, (replayedAt - startedAt) / 1000.0, mSpeed == 0 ? "max" : String.valueOf(mSpeed), digest.getValue()));
+        System.out.println(String.format(Locale.US, "throughput   %.0f processed/s, %d matched, %d dropped (%.2f%%)",
+                processed * 1000.0 / Math.max(1, elapsed), metrics.getMatchedScanResults(), dropped,
+                replayed > 0 ? dropped * 100.0 / replayed : 0));
+        System.out.println(String.format(Locale.US, "users        %d reported, %d identified, %d updates",
+                mReportedUsers, mIdentifiedUsers, mUpdates));
+        System.out.println(String.format(Locale.US, "update list  p50 %dus  p90 %dus  p99 %dus  max %dus  (%d updates)",
+                updateList.getPercentile(50), updateList.getPercentile(90), updateList.getPercentile(99),
+                updateList.getMax(), updateList.getCount()));
+        System.out.println(String.format(Locale.US, "heap         peak %dMB, %d gcs in %dms",
+                peakHeap >> 20, gcCount, gcTime));
+
+        if (mJsonFile != null) {
+            StringBuilder json = new StringBuilder();
+            json.append("{\n");
+            json.append("  \"log\": \"").append(mLog.replace("\\", "\\\\").replace("\"", "\\\"")).append("\",\n");
+            json.append("  \"speed\": ").append(mSpeed).append(",\n");
+            json.append("  \"digest\": \"").append(String.format("%08x", digest.getValue())).append("\",\n");
+            json.append("  \"replayed\": ").append(replayed).append(",\n");
+            json.append("  \"elapsedSeconds\": ").append(elapsed / 1000.0).append(",\n");
+            json.append("  \"processed\": ").append(processed).append(",\n");
+            json.append("  \"matched\": ").append(metrics.getMatchedScanResults()).append(",\n");
+            json.append("  \"dropped\": ").append(dropped).append(",\n");
+            json.append("  \"updates\": ").append(mUpdates).append(",\n");
+            json.append("  \"reportedUsers\": ").append(mReportedUsers).append(",\n");
+            json.append("  \"identifiedUsers\": ").append(mIdentifiedUsers).append(",\n");
+            json.append("  \"updateListMicros\": ");
+            Harness.appendHistogram(json, updateList);
+            json.append(",\n");
+            json.append("  \"peakHeapBytes\": ").append(peakHeap).append(",\n");
+            json.append("  \"gcCount\": ").append(gcCount).append(",\n");
+            json.append("  \"gcTimeMillis\": ").append(gcTime).append("\n");
+            json.append("}\n");
+            Harness.write(new File(mJsonFile), json.toString());
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,313 @@
+package com.joshblour.discovery.loadtest;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+
+import com.joshblour.discovery.DeviceRegistry;
+import com.joshblour.discovery.IdentityPayload;
+import com.joshblour.discovery.MultiScanner;
+import com.joshblour.discovery.ScanBackend;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A crowd of advertising devices around the phone: peers of the service, advertising their identity
+ * payload, and other devices advertising beacons.
+ *
+ * Every device advertises at the configured interval plus a random delay, as the link layer does.
+ * Its RSSI walks randomly around where it stands, with noise on every packet, and some packets are
+ * lost. Devices rotate their private address, and leave after an exponentially distributed dwell
+ * time, replaced by a new arrival: the population stays the same, with N / dwell arrivals per
+ * second.
+ *
+ * The crowd runs on its own thread, which delivers the advertisements to the started backend like
+ * the platform's binder thread does. Backends are created by Discovery through the factory.
+ */
+public class SimulatedCrowd implements ScanBackend.Factory {
+
+    // how often batches are flushed when no advertisement is due
+    private static final long TICK_MILLIS = 5;
+    private static final int TX_POWER = -59;
+    private static final double MIN_RSSI = -100;
+    private static final double MAX_RSSI = -35;
+
+    public static class Config {
+        public String service = "loadtest";
+        public int peers = 1000;
+        public int beacons = 0;
+        public long advertisingIntervalMillis = 250;
+        // the advertising delay added to every interval, up to 10ms in the spec
+        public long advertisingJitterMillis = 10;
+        // the share of packets the scanner misses
+        public double lossRate = 0.2;
+        // the mean time a device stays around, 0 to keep the same devices
+        public long dwellMillis = 300000;
+        // how often devices change their private address, 0 never
+        public long rotationMillis = 900000;
+        public double rssiStepDb = 0.5;
+        public double rssiNoiseDb = 4;
+        public long seed = 1;
+    }
+
+    private final Config mConfig;
+    private final Random mRandom;
+    private final PriorityQueue<Device> mQueue;
+    private Thread mThread;
+    private volatile boolean mRunning;
+    private volatile SimulatedScanBackend mBackend;
+
+    // peers that arrived and weren't reported yet, with their arrival time
+    private final ConcurrentHashMap<UUID, Long> mPendingArrivals = new ConcurrentHashMap<>();
+
+    private final AtomicLong mAdvertisements = new AtomicLong();
+    private final AtomicLong mDelivered = new AtomicLong();
+    private final AtomicLong mArrivals = new AtomicLong();
+    private final AtomicLong mDepartures = new AtomicLong();
+    private final AtomicLong mUnreportedDepartures = new AtomicLong();
+    private final AtomicLong mRotations = new AtomicLong();
+
+    public SimulatedCrowd(Config config) {
+        mConfig = config;
+        mRandom = new Random(config.seed);
+        mQueue = new PriorityQueue<>(Math.max(1, config.peers + config.beacons), new Comparator<Device>() {
+            @Override
+            public int compare(Device a, Device b) {
+                return a.nextAdvertisingAt < b.nextAdvertisingAt ? -1 : (a.nextAdvertisingAt == b.nextAdvertisingAt ? 0 : 1);
+            }
+        });
+    }
+
+    @Override
+    public ScanBackend create(MultiScanner.MultiScannerCallback callback, boolean usePreLScanner) {
+        return new SimulatedScanBackend(this, callback, usePreLScanner);
+    }
+
+    /**
+     * Places the devices and starts advertising. The initial devices all arrive now.
+     */
+    public synchronized void start() {
+        if (mRunning)
+            return;
+
+        long now = SystemClock.elapsedRealtime();
+        for (int i = 0; i < mConfig.peers; i++) {
+            mQueue.add(arrive(true, now));
+        }
+        for (int i = 0; i < mConfig.beacons; i++) {
+            mQueue.add(arrive(false, now));
+        }
+
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                advertise();
+            }
+        }, "SimulatedCrowd");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    public synchronized void stop() {
+        mRunning = false;
+        if (mThread != null) {
+            mThread.interrupt();
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mThread = null;
+        }
+    }
+
+    void attach(SimulatedScanBackend backend) {
+        mBackend = backend;
+    }
+
+    void detach(SimulatedScanBackend backend) {
+        if (mBackend == backend)
+            mBackend = null;
+    }
+
+    /**
+     * Marks the peer as reported to the delegate.
+     *
+     * @return the time since it arrived, or -1 if it was already reported
+     */
+    public long onReported(UUID uuid, long now) {
+        Long arrivedAt = mPendingArrivals.remove(uuid);
+        return arrivedAt != null ? now - arrivedAt : -1;
+    }
+
+    // advertisements sent, and delivered to a started backend
+    public long getAdvertisements() {
+        return mAdvertisements.get();
+    }
+
+    public long getDelivered() {
+        return mDelivered.get();
+    }
+
+    public long getArrivals() {
+        return mArrivals.get();
+    }
+
+    public long getDepartures() {
+        return mDepartures.get();
+    }
+
+    // peers that left before they were reported
+    public long getUnreportedDepartures() {
+        return mUnreportedDepartures.get();
+    }
+
+    public long getRotations() {
+        return mRotations.get();
+    }
+
+    private void advertise() {
+        while (mRunning) {
+            long now = SystemClock.elapsedRealtime();
+            SimulatedScanBackend backend = mBackend;
+
+            Device device;
+            while ((device = mQueue.peek()) != null && device.nextAdvertisingAt <= now) {
+                mQueue.poll();
+                if (mConfig.dwellMillis > 0 && device.departsAt <= now) {
+                    depart(device);
+                    mQueue.add(arrive(device.peer, now));
+                    continue;
+                }
+
+                if (mConfig.rotationMillis > 0 && device.rotatesAt <= now) {
+                    device.device = new BluetoothDevice(randomAddress());
+                    device.rotatesAt = now + mConfig.rotationMillis;
+                    mRotations.incrementAndGet();
+                }
+
+                mAdvertisements.incrementAndGet();
+                int rssi = walkRssi(device);
+                if (backend != null && mRandom.nextDouble() >= mConfig.lossRate) {
+                    // the platform hands every result its own copy of the record
+                    backend.onAdvertisement(device.device, rssi, device.record.clone(), now);
+                    mDelivered.incrementAndGet();
+                }
+
+                device.nextAdvertisingAt += mConfig.advertisingIntervalMillis + nextJitter();
+                mQueue.add(device);
+            }
+
+            if (backend != null)
+                backend.onTick(now);
+
+            long next = device != null ? Math.min(device.nextAdvertisingAt, now + TICK_MILLIS) : now + TICK_MILLIS;
+            long sleep = next - SystemClock.elapsedRealtime();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private Device arrive(boolean peer, long now) {
+        Device device = new Device();
+        device.peer = peer;
+        device.uuid = UUID.randomUUID();
+        device.device = new BluetoothDevice(randomAddress());
+        device.record = peer ? peerRecord(mConfig.service, device.uuid) : beaconRecord(device.uuid);
+        device.baseRssi = MIN_RSSI + mRandom.nextDouble() * (MAX_RSSI - MIN_RSSI);
+        // devices don't start advertising in step
+        device.nextAdvertisingAt = now + (long) (mRandom.nextDouble() * mConfig.advertisingIntervalMillis);
+        device.departsAt = mConfig.dwellMillis > 0 ? now + (long) (-Math.log(1 - mRandom.nextDouble()) * mConfig.dwellMillis) : Long.MAX_VALUE;
+        device.rotatesAt = mConfig.rotationMillis > 0 ? now + (long) (mRandom.nextDouble() * mConfig.rotationMillis) : Long.MAX_VALUE;
+
+        mArrivals.incrementAndGet();
+        if (peer)
+            mPendingArrivals.put(device.uuid, now);
+        return device;
+    }
+
+    private void depart(Device device) {
+        mDepartures.incrementAndGet();
+        if (device.peer && mPendingArrivals.remove(device.uuid) != null)
+            mUnreportedDepartures.incrementAndGet();
+    }
+
+    private int walkRssi(Device device) {
+        device.baseRssi += mRandom.nextGaussian() * mConfig.rssiStepDb;
+        device.baseRssi = Math.max(MIN_RSSI, Math.min(MAX_RSSI, device.baseRssi));
+        return (int) Math.round(device.baseRssi + mRandom.nextGaussian() * mConfig.rssiNoiseDb);
+    }
+
+    private long nextJitter() {
+        return mConfig.advertisingJitterMillis > 0 ? (long) (mRandom.nextDouble() * mConfig.advertisingJitterMillis) : 0;
+    }
+
+    private String randomAddress() {
+        return DeviceRegistry.unpackAddress(mRandom.nextLong() & 0xFFFFFFFFFFFFL);
+    }
+
+    // flags, the identity payload as manufacturer data and the tx power
+    static byte[] peerRecord(String service, UUID uuid) {
+        byte[] payload = IdentityPayload.encodeManufacturerData(service, uuid, null);
+        byte[] record = new byte[3 + 4 + payload.length + 3];
+        int i = 0;
+        record[i++] = 2;
+        record[i++] = 0x01;
+        record[i++] = 0x06;
+        record[i++] = (byte) (3 + payload.length);
+        record[i++] = (byte) 0xFF;
+        record[i++] = (byte) (IdentityPayload.DEFAULT_COMPANY_ID & 0xFF);
+        record[i++] = (byte) (IdentityPayload.DEFAULT_COMPANY_ID >> 8);
+        System.arraycopy(payload, 0, record, i, payload.length);
+        i += payload.length;
+        record[i++] = 2;
+        record[i++] = 0x0A;
+        record[i] = (byte) TX_POWER;
+        return record;
+    }
+
+    // flags and an iBeacon
+    private byte[] beaconRecord(UUID uuid) {
+        byte[] record = new byte[3 + 27];
+        int i = 0;
+        record[i++] = 2;
+        record[i++] = 0x01;
+        record[i++] = 0x06;
+        record[i++] = 26;
+        record[i++] = (byte) 0xFF;
+        record[i++] = 0x4C;
+        record[i++] = 0x00;
+        record[i++] = 0x02;
+        record[i++] = 0x15;
+        for (int b = 0; b < 8; b++) {
+            record[i++] = (byte) (uuid.getMostSignificantBits() >>> (56 - 8 * b));
+        }
+        for (int b = 0; b < 8; b++) {
+            record[i++] = (byte) (uuid.getLeastSignificantBits() >>> (56 - 8 * b));
+        }
+        i += 4; // major and minor
+        record[i] = (byte) TX_POWER;
+        return record;
+    }
+
+    private static class Device {
+        boolean peer;
+        UUID uuid;
+        BluetoothDevice device;
+        byte[] record;
+        double baseRssi;
+        long nextAdvertisingAt;
+        long departsAt;
+        long rotatesAt;
+    }
+}
@@ -0,0 +1,147 @@
+package com.joshblour.discovery.loadtest;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.joshblour.discovery.MultiScanner;
+import com.joshblour.discovery.ScanBackend;
+import com.joshblour.discovery.ScanFilterSpec;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Scans a {@link SimulatedCrowd}. With a report delay, results are batched like the controller
+ * does: the latest result of each device, delivered once the delay has passed.
+ *
+ * Scan filters are accepted and not applied: the crowd's records are built for the pipeline's own
+ * checks, and filtering would only hide the devices it has to drop.
+ */
+class SimulatedScanBackend implements ScanBackend {
+
+    private final SimulatedCrowd mCrowd;
+    private final MultiScanner.MultiScannerCallback mCallback;
+    private final boolean mUsePreLScanner;
+    private volatile long mReportDelayMillis;
+
+    // the batch being collected, by device
+    private final Map<BluetoothDevice, Integer> mBatchIndex = new HashMap<>();
+    private BluetoothDevice[] mDevices = new BluetoothDevice[64];
+    private int[] mRssis = new int[64];
+    private byte[][] mScanRecords = new byte[64][];
+    private long[] mTimestamps = new long[64];
+    private int mCount;
+    private long mBatchStartedAt;
+
+    SimulatedScanBackend(SimulatedCrowd crowd, MultiScanner.MultiScannerCallback callback, boolean usePreLScanner) {
+        mCrowd = crowd;
+        mCallback = callback;
+        mUsePreLScanner = usePreLScanner;
+    }
+
+    @Override
+    public void start() {
+        synchronized (this) {
+            clearBatch();
+        }
+        mCrowd.attach(this);
+    }
+
+    @Override
+    public void stop() {
+        // like the platform, results still batched are dropped
+        mCrowd.detach(this);
+        synchronized (this) {
+            clearBatch();
+        }
+    }
+
+    @Override
+    public void setReportDelayMillis(long reportDelayMillis) {
+        mReportDelayMillis = mUsePreLScanner ? 0 : reportDelayMillis;
+    }
+
+    @Override
+    public void setScanFilters(List<ScanFilterSpec> filterSpecs) {
+    }
+
+    @Override
+    public void setUnfilteredSweepInterval(int sweepInterval) {
+    }
+
+    @Override
+    public boolean usesPreLScanner() {
+        return mUsePreLScanner;
+    }
+
+    // on the crowd's thread
+    void onAdvertisement(BluetoothDevice device, int rssi, byte[] scanRecord, long now) {
+        if (mReportDelayMillis == 0) {
+            mCallback.onScanResult(device, rssi, scanRecord);
+            return;
+        }
+
+        synchronized (this) {
+            if (mCount == 0)
+                mBatchStartedAt = now;
+
+            Integer index = mBatchIndex.get(device);
+            if (index == null) {
+                if (mCount == mDevices.length)
+                    grow();
+                index = mCount++;
+                mBatchIndex.put(device, index);
+                mDevices[index] = device;
+            }
+            mRssis[index] = rssi;
+            mScanRecords[index] = scanRecord;
+            mTimestamps[index] = System.currentTimeMillis();
+        }
+    }
+
+    // on the crowd's thread
+    void onTick(long now) {
+        long reportDelayMillis = mReportDelayMillis;
+        BluetoothDevice[] devices;
+        int[] rssis;
+        byte[][] scanRecords;
+        long[] timestamps;
+        int count;
+
+        synchronized (this) {
+            if (mCount == 0 || reportDelayMillis == 0 || now - mBatchStartedAt < reportDelayMillis)
+                return;
+
+            // the batch is handed over, the next one gets new arrays
+            devices = mDevices;
+            rssis = mRssis;
+            scanRecords = mScanRecords;
+            timestamps = mTimestamps;
+            count = mCount;
+            mDevices = new BluetoothDevice[devices.length];
+            mRssis = new int[devices.length];
+            mScanRecords = new byte[devices.length][];
+            mTimestamps = new long[devices.length];
+            mBatchIndex.clear();
+            mCount = 0;
+        }
+
+        mCallback.onBatchScanResults(devices, rssis, scanRecords, timestamps, count);
+    }
+
+    private void clearBatch() {
+        Arrays.fill(mDevices, 0, mCount, null);
+        Arrays.fill(mScanRecords, 0, mCount, null);
+        mBatchIndex.clear();
+        mCount = 0;
+    }
+
+    private void grow() {
+        int length = mDevices.length * 2;
+        mDevices = Arrays.copyOf(mDevices, length);
+        mRssis = Arrays.copyOf(mRssis, length);
+        mScanRecords = Arrays.copyOf(mScanRecords, length);
+        mTimestamps = Arrays.copyOf(mTimestamps, length);
+    }
+}
@@ -0,0 +1,7 @@
+package android.annotation;
+
+/** Stand-in for the platform type. */
+@java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.CLASS)
+public @interface TargetApi {
+    int value();
+}
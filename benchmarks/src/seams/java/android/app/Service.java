@@ -0,0 +1,20 @@
+package android.app;
+
+/** Stand-in for the platform class, so the library compiles: it can't be used off a device. */
+public abstract class Service extends android.content.Context {
+    public static final int START_REDELIVER_INTENT = 3;
+
+    public void onCreate() {}
+
+    public void onDestroy() {}
+
+    public int onStartCommand(android.content.Intent i, int f, int s) {
+        throw new UnsupportedOperationException();
+    }
+
+    public abstract android.os.IBinder onBind(android.content.Intent i);
+
+    public final void stopSelf() {
+        throw new UnsupportedOperationException();
+    }
+}
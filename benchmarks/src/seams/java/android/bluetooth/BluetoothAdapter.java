@@ -0,0 +1,88 @@
+package android.bluetooth;
+
+/** Stand-in for the platform class, so the library compiles: it can't be used off a device. */
+public final class BluetoothAdapter {
+    public static final String ACTION_STATE_CHANGED = "a";
+    public static final String EXTRA_STATE = "s";
+    public static final int ERROR = -1, STATE_OFF = 10, STATE_ON = 12;
+
+    public interface LeScanCallback {
+        void onLeScan(BluetoothDevice d, int rssi, byte[] r);
+    }
+
+    public static BluetoothAdapter getDefaultAdapter() {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean isEnabled() {
+        throw new UnsupportedOperationException();
+    }
+
+    public int getState() {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean enable() {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean disable() {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean setName(String n) {
+        throw new UnsupportedOperationException();
+    }
+
+    public String getName() {
+        throw new UnsupportedOperationException();
+    }
+
+    public android.bluetooth.le.BluetoothLeScanner getBluetoothLeScanner() {
+        throw new UnsupportedOperationException();
+    }
+
+    public android.bluetooth.le.BluetoothLeAdvertiser getBluetoothLeAdvertiser() {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean startLeScan(LeScanCallback c) {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean startLeScan(java.util.UUID[] u, LeScanCallback c) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void stopLeScan(LeScanCallback c) {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean isOffloadedFilteringSupported() {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean isOffloadedScanBatchingSupported() {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean isLeExtendedAdvertisingSupported() {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean isLe2MPhySupported() {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean isLeCodedPhySupported() {
+        throw new UnsupportedOperationException();
+    }
+
+    public int getLeMaximumAdvertisingDataLength() {
+        throw new UnsupportedOperationException();
+    }
+
+    public BluetoothDevice getRemoteDevice(String a) {
+        throw new UnsupportedOperationException();
+    }
+}
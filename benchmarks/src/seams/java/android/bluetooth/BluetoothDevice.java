@@ -0,0 +1,39 @@
+package android.bluetooth;
+
+import android.content.Context;
+
+/**
+ * Stand-in for the platform class, which can't be instantiated off a device: an address and a
+ * name. There's no radio to connect with.
+ */
+public class BluetoothDevice {
+    public static final int TRANSPORT_LE = 2;
+
+    private final String mAddress;
+    private final String mName;
+
+    public BluetoothDevice(String address) {
+        this(address, null);
+    }
+
+    public BluetoothDevice(String address, String name) {
+        mAddress = address;
+        mName = name;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public BluetoothGatt connectGatt(Context context, boolean autoConnect, BluetoothGattCallback callback) {
+        throw new UnsupportedOperationException();
+    }
+
+    public BluetoothGatt connectGatt(Context context, boolean autoConnect, BluetoothGattCallback callback, int transport) {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,52 @@
+package android.bluetooth;
+
+/** Stand-in for the platform class, so the library compiles: it can't be used off a device. */
+public final class BluetoothGatt {
+    public static final int GATT_SUCCESS = 0,
+            GATT_READ_NOT_PERMITTED = 2,
+            GATT_WRITE_NOT_PERMITTED = 3,
+            GATT_INVALID_OFFSET = 7,
+            GATT_FAILURE = 257,
+            CONNECTION_PRIORITY_HIGH = 1,
+            CONNECTION_PRIORITY_BALANCED = 0;
+
+    public BluetoothDevice getDevice() {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean discoverServices() {
+        throw new UnsupportedOperationException();
+    }
+
+    public java.util.List<BluetoothGattService> getServices() {
+        throw new UnsupportedOperationException();
+    }
+
+    public BluetoothGattService getService(java.util.UUID u) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void disconnect() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void close() {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic c, boolean e) {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean readCharacteristic(BluetoothGattCharacteristic c) {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean requestMtu(int m) {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean requestConnectionPriority(int p) {
+        throw new UnsupportedOperationException();
+    }
+}
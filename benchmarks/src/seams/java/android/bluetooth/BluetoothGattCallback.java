@@ -0,0 +1,14 @@
+package android.bluetooth;
+
+/** Stand-in for the platform type. */
+public abstract class BluetoothGattCallback {
+    public void onConnectionStateChange(BluetoothGatt g, int s, int n) {}
+
+    public void onServicesDiscovered(BluetoothGatt g, int s) {}
+
+    public void onCharacteristicRead(BluetoothGatt g, BluetoothGattCharacteristic c, int s) {}
+
+    public void onCharacteristicChanged(BluetoothGatt g, BluetoothGattCharacteristic c) {}
+
+    public void onMtuChanged(BluetoothGatt g, int m, int s) {}
+}
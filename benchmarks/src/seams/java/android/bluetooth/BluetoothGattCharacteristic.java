@@ -0,0 +1,28 @@
+package android.bluetooth;
+
+/** Stand-in for the platform class, so the library compiles: it can't be used off a device. */
+public class BluetoothGattCharacteristic {
+    public static final int PROPERTY_READ = 2, PERMISSION_READ = 1;
+
+    public BluetoothGattCharacteristic(java.util.UUID u, int p, int perm) {}
+
+    public java.util.UUID getUuid() {
+        throw new UnsupportedOperationException();
+    }
+
+    public byte[] getValue() {
+        throw new UnsupportedOperationException();
+    }
+
+    public String getStringValue(int o) {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean setValue(String v) {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean setValue(byte[] v) {
+        throw new UnsupportedOperationException();
+    }
+}
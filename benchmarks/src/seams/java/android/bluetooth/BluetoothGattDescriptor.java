@@ -0,0 +1,8 @@
+package android.bluetooth;
+
+/** Stand-in for the platform class, so the library compiles: it can't be used off a device. */
+public class BluetoothGattDescriptor {
+    public java.util.UUID getUuid() {
+        throw new UnsupportedOperationException();
+    }
+}
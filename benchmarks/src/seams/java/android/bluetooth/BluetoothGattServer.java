@@ -0,0 +1,24 @@
+package android.bluetooth;
+
+/** Stand-in for the platform class, so the library compiles: it can't be used off a device. */
+public final class BluetoothGattServer {
+    public boolean addService(BluetoothGattService s) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void close() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void cancelConnection(BluetoothDevice d) {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean sendResponse(BluetoothDevice d, int r, int s, int o, byte[] v) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void clearServices() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,21 @@
+package android.bluetooth;
+
+/** Stand-in for the platform type. */
+public abstract class BluetoothGattServerCallback {
+    public void onConnectionStateChange(BluetoothDevice d, int s, int n) {}
+
+    public void onServiceAdded(int s, BluetoothGattService svc) {}
+
+    public void onCharacteristicReadRequest(
+            BluetoothDevice d, int r, int o, BluetoothGattCharacteristic c) {}
+
+    public void onCharacteristicWriteRequest(BluetoothDevice d, int r, BluetoothGattCharacteristic c,
+            boolean p, boolean n, int o, byte[] v) {}
+
+    public void onDescriptorReadRequest(BluetoothDevice d, int r, int o, BluetoothGattDescriptor desc) {}
+
+    public void onDescriptorWriteRequest(BluetoothDevice d, int r, BluetoothGattDescriptor desc,
+            boolean p, boolean n, int o, byte[] v) {}
+
+    public void onMtuChanged(BluetoothDevice d, int m) {}
+}
@@ -0,0 +1,24 @@
+package android.bluetooth;
+
+/** Stand-in for the platform class, so the library compiles: it can't be used off a device. */
+public class BluetoothGattService {
+    public static final int SERVICE_TYPE_PRIMARY = 0;
+
+    public BluetoothGattService(java.util.UUID u, int t) {}
+
+    public java.util.UUID getUuid() {
+        throw new UnsupportedOperationException();
+    }
+
+    public java.util.List<BluetoothGattCharacteristic> getCharacteristics() {
+        throw new UnsupportedOperationException();
+    }
+
+    public BluetoothGattCharacteristic getCharacteristic(java.util.UUID u) {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean addCharacteristic(BluetoothGattCharacteristic c) {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,13 @@
+package android.bluetooth;
+
+/** Stand-in for the platform class, so the library compiles: it can't be used off a device. */
+public final class BluetoothManager {
+    public BluetoothAdapter getAdapter() {
+        throw new UnsupportedOperationException();
+    }
+
+    public BluetoothGattServer openGattServer(
+            android.content.Context c, BluetoothGattServerCallback cb) {
+        throw new UnsupportedOperationException();
+    }
+}
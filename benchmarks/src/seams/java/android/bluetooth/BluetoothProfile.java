@@ -0,0 +1,6 @@
+package android.bluetooth;
+
+/** Stand-in for the platform type. */
+public interface BluetoothProfile {
+    int STATE_CONNECTED = 2, STATE_DISCONNECTED = 0;
+}
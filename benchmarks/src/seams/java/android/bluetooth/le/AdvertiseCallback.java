@@ -0,0 +1,14 @@
+package android.bluetooth.le;
+
+/** Stand-in for the platform type. */
+public abstract class AdvertiseCallback {
+    public static final int ADVERTISE_FAILED_DATA_TOO_LARGE = 1,
+            ADVERTISE_FAILED_TOO_MANY_ADVERTISERS = 2,
+            ADVERTISE_FAILED_ALREADY_STARTED = 3,
+            ADVERTISE_FAILED_INTERNAL_ERROR = 4,
+            ADVERTISE_FAILED_FEATURE_UNSUPPORTED = 5;
+
+    public void onStartSuccess(AdvertiseSettings s) {}
+
+    public void onStartFailure(int e) {}
+}
@@ -0,0 +1,30 @@
+package android.bluetooth.le;
+
+/** Stand-in for the platform class, so the library compiles: it can't be used off a device. */
+public final class AdvertiseData {
+    public static final class Builder {
+        public Builder addServiceUuid(android.os.ParcelUuid u) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Builder addServiceData(android.os.ParcelUuid u, byte[] d) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Builder addManufacturerData(int id, byte[] d) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Builder setIncludeDeviceName(boolean b) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Builder setIncludeTxPowerLevel(boolean b) {
+            throw new UnsupportedOperationException();
+        }
+
+        public AdvertiseData build() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
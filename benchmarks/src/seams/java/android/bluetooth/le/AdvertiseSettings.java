@@ -0,0 +1,38 @@
+package android.bluetooth.le;
+
+/** Stand-in for the platform class, so the library compiles: it can't be used off a device. */
+public final class AdvertiseSettings {
+    public static final int ADVERTISE_MODE_LOW_POWER = 0,
+            ADVERTISE_MODE_BALANCED = 1,
+            ADVERTISE_MODE_LOW_LATENCY = 2,
+            ADVERTISE_TX_POWER_ULTRA_LOW = 0,
+            ADVERTISE_TX_POWER_LOW = 1,
+            ADVERTISE_TX_POWER_MEDIUM = 2,
+            ADVERTISE_TX_POWER_HIGH = 3;
+
+    public int getTxPowerLevel() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static final class Builder {
+        public Builder setAdvertiseMode(int m) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Builder setTxPowerLevel(int l) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Builder setConnectable(boolean c) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Builder setTimeout(int t) {
+            throw new UnsupportedOperationException();
+        }
+
+        public AdvertiseSettings build() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package android.bluetooth.le;
+
+/** Stand-in for the platform class, so the library compiles: it can't be used off a device. */
+public final class AdvertisingSet {
+    public void setAdvertisingData(AdvertiseData d) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void setScanResponseData(AdvertiseData d) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void enableAdvertising(boolean e, int d, int m) {
+        throw new UnsupportedOperationException();
+    }
+}
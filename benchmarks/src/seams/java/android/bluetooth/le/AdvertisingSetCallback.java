@@ -0,0 +1,19 @@
+package android.bluetooth.le;
+
+/** Stand-in for the platform type. */
+public abstract class AdvertisingSetCallback {
+    public static final int ADVERTISE_SUCCESS = 0,
+            ADVERTISE_FAILED_DATA_TOO_LARGE = 1,
+            ADVERTISE_FAILED_TOO_MANY_ADVERTISERS = 2,
+            ADVERTISE_FAILED_ALREADY_STARTED = 3,
+            ADVERTISE_FAILED_INTERNAL_ERROR = 4,
+            ADVERTISE_FAILED_FEATURE_UNSUPPORTED = 5;
+
+    public void onAdvertisingSetStarted(AdvertisingSet s, int tx, int st) {}
+
+    public void onAdvertisingSetStopped(AdvertisingSet s) {}
+
+    public void onAdvertisingDataSet(AdvertisingSet s, int st) {}
+
+    public void onScanResponseDataSet(AdvertisingSet s, int st) {}
+}
@@ -0,0 +1,50 @@
+package android.bluetooth.le;
+
+/** Stand-in for the platform class, so the library compiles: it can't be used off a device. */
+public final class AdvertisingSetParameters {
+    public static final int INTERVAL_LOW = 160,
+            INTERVAL_MEDIUM = 400,
+            INTERVAL_HIGH = 1600,
+            TX_POWER_ULTRA_LOW = -21,
+            TX_POWER_LOW = -15,
+            TX_POWER_MEDIUM = -7,
+            TX_POWER_HIGH = 1;
+
+    public static final class Builder {
+        public Builder setLegacyMode(boolean b) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Builder setConnectable(boolean b) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Builder setScannable(boolean b) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Builder setInterval(int i) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Builder setTxPowerLevel(int t) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Builder setPrimaryPhy(int p) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Builder setSecondaryPhy(int p) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Builder setIncludeTxPower(boolean b) {
+            throw new UnsupportedOperationException();
+        }
+
+        public AdvertisingSetParameters build() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package android.bluetooth.le;
+
+/** Stand-in for the platform class, so the library compiles: it can't be used off a device. */
+public final class BluetoothLeAdvertiser {
+    public void startAdvertising(AdvertiseSettings s, AdvertiseData d, AdvertiseCallback c) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void startAdvertising(
+            AdvertiseSettings s, AdvertiseData d, AdvertiseData r, AdvertiseCallback c) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void stopAdvertising(AdvertiseCallback c) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void startAdvertisingSet(
+            AdvertisingSetParameters p,
+            AdvertiseData d,
+            AdvertiseData r,
+            PeriodicAdvertisingParameters pp,
+            AdvertiseData pd,
+            AdvertisingSetCallback c) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void stopAdvertisingSet(AdvertisingSetCallback c) {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,16 @@
+package android.bluetooth.le;
+
+/** Stand-in for the platform class, so the library compiles: it can't be used off a device. */
+public final class BluetoothLeScanner {
+    public void startScan(java.util.List<ScanFilter> f, ScanSettings s, ScanCallback c) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void stopScan(ScanCallback c) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void flushPendingScanResults(ScanCallback c) {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,4 @@
+package android.bluetooth.le;
+
+/** Stand-in for the platform type. */
+public final class PeriodicAdvertisingParameters {}
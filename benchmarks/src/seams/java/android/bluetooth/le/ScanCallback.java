@@ -0,0 +1,15 @@
+package android.bluetooth.le;
+
+/** Stand-in for the platform type. */
+public abstract class ScanCallback {
+    public static final int SCAN_FAILED_ALREADY_STARTED = 1,
+            SCAN_FAILED_APPLICATION_REGISTRATION_FAILED = 2,
+            SCAN_FAILED_INTERNAL_ERROR = 3,
+            SCAN_FAILED_FEATURE_UNSUPPORTED = 4;
+
+    public void onScanResult(int t, ScanResult r) {}
+
+    public void onBatchScanResults(java.util.List<ScanResult> r) {}
+
+    public void onScanFailed(int e) {}
+}
@@ -0,0 +1,38 @@
+package android.bluetooth.le;
+
+/** Stand-in for the platform class, so the library compiles: it can't be used off a device. */
+public final class ScanFilter {
+    public static final class Builder {
+        public Builder setServiceUuid(android.os.ParcelUuid u) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Builder setServiceUuid(android.os.ParcelUuid u, android.os.ParcelUuid m) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Builder setServiceData(android.os.ParcelUuid u, byte[] d) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Builder setServiceData(android.os.ParcelUuid u, byte[] d, byte[] m) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Builder setManufacturerData(int id, byte[] d) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Builder setManufacturerData(int id, byte[] d, byte[] m) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Builder setDeviceName(String n) {
+            throw new UnsupportedOperationException();
+        }
+
+        public ScanFilter build() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package android.bluetooth.le;
+
+/** Stand-in for the platform class, so the library compiles: it can't be used off a device. */
+public final class ScanRecord {
+    public byte[] getBytes() {
+        throw new UnsupportedOperationException();
+    }
+}
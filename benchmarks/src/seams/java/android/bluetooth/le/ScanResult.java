@@ -0,0 +1,20 @@
+package android.bluetooth.le;
+
+/** Stand-in for the platform class, so the library compiles: it can't be used off a device. */
+public final class ScanResult {
+    public android.bluetooth.BluetoothDevice getDevice() {
+        throw new UnsupportedOperationException();
+    }
+
+    public int getRssi() {
+        throw new UnsupportedOperationException();
+    }
+
+    public ScanRecord getScanRecord() {
+        throw new UnsupportedOperationException();
+    }
+
+    public long getTimestampNanos() {
+        throw new UnsupportedOperationException();
+    }
+}
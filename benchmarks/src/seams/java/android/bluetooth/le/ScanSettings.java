@@ -0,0 +1,31 @@
+package android.bluetooth.le;
+
+/** Stand-in for the platform class, so the library compiles: it can't be used off a device. */
+public final class ScanSettings {
+    public static final int SCAN_MODE_LOW_POWER = 0,
+            SCAN_MODE_BALANCED = 1,
+            SCAN_MODE_LOW_LATENCY = 2,
+            PHY_LE_ALL_SUPPORTED = 255;
+
+    public static final class Builder {
+        public Builder setScanMode(int m) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Builder setReportDelay(long d) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Builder setLegacy(boolean l) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Builder setPhy(int p) {
+            throw new UnsupportedOperationException();
+        }
+
+        public ScanSettings build() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
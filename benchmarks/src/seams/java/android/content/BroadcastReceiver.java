@@ -0,0 +1,6 @@
+package android.content;
+
+/** Stand-in for the platform type. */
+public abstract class BroadcastReceiver {
+    public abstract void onReceive(Context c, Intent i);
+}
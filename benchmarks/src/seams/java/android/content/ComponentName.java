@@ -0,0 +1,4 @@
+package android.content;
+
+/** Stand-in for the platform type. */
+public class ComponentName {}
@@ -0,0 +1,50 @@
+package android.content;
+
+import java.io.File;
+
+/**
+ * Stand-in for the platform class. There are no system services off a device, so
+ * {@link #getSystemService(String)} returns null, as it does for a missing one; subclasses provide
+ * the directories they need.
+ */
+public abstract class Context {
+    public static final String BLUETOOTH_SERVICE = "bluetooth";
+    public static final String LOCATION_SERVICE = "location";
+    public static final int MODE_PRIVATE = 0;
+
+    public Object getSystemService(String name) {
+        return null;
+    }
+
+    public ComponentName startService(Intent service) {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean stopService(Intent service) {
+        throw new UnsupportedOperationException();
+    }
+
+    public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void unregisterReceiver(BroadcastReceiver receiver) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void sendBroadcast(Intent intent) {
+        throw new UnsupportedOperationException();
+    }
+
+    public File getFilesDir() {
+        throw new UnsupportedOperationException();
+    }
+
+    public File getCacheDir() {
+        throw new UnsupportedOperationException();
+    }
+
+    public Context getApplicationContext() {
+        return this;
+    }
+}
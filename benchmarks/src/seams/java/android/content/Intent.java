@@ -0,0 +1,50 @@
+package android.content;
+
+/** Stand-in for the platform class, so the library compiles: it can't be used off a device. */
+public class Intent {
+    public Intent() {}
+
+    public Intent(String a) {}
+
+    public Intent(Context c, Class<?> k) {}
+
+    public String getAction() {
+        throw new UnsupportedOperationException();
+    }
+
+    public Intent setAction(String a) {
+        throw new UnsupportedOperationException();
+    }
+
+    public Intent putExtra(String k, String v) {
+        throw new UnsupportedOperationException();
+    }
+
+    public Intent putExtra(String k, int v) {
+        throw new UnsupportedOperationException();
+    }
+
+    public Intent putExtra(String k, boolean v) {
+        throw new UnsupportedOperationException();
+    }
+
+    public Intent putExtra(String k, byte[] v) {
+        throw new UnsupportedOperationException();
+    }
+
+    public int getIntExtra(String k, int d) {
+        throw new UnsupportedOperationException();
+    }
+
+    public String getStringExtra(String k) {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean getBooleanExtra(String k, boolean d) {
+        throw new UnsupportedOperationException();
+    }
+
+    public android.os.Bundle getExtras() {
+        throw new UnsupportedOperationException();
+    }
+}
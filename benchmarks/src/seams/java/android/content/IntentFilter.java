@@ -0,0 +1,10 @@
+package android.content;
+
+/** Stand-in for the platform class, so the library compiles: it can't be used off a device. */
+public class IntentFilter {
+    public IntentFilter(String a) {}
+
+    public void addAction(String a) {
+        throw new UnsupportedOperationException();
+    }
+}
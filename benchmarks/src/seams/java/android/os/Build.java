@@ -0,0 +1,22 @@
+package android.os;
+
+/**
+ * Stand-in for the platform class: the JVM passes for a recent device.
+ */
+public class Build {
+    public static final String MODEL = "jvm";
+    public static final String MANUFACTURER = "jvm";
+
+    public static class VERSION {
+        public static final int SDK_INT = VERSION_CODES.P;
+    }
+
+    public static class VERSION_CODES {
+        public static final int KITKAT = 19;
+        public static final int LOLLIPOP = 21;
+        public static final int M = 23;
+        public static final int N = 24;
+        public static final int O = 26;
+        public static final int P = 28;
+    }
+}
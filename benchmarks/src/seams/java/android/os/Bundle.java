@@ -0,0 +1,20 @@
+package android.os;
+
+/** Stand-in for the platform class, so the library compiles: it can't be used off a device. */
+public class Bundle {
+    public String getString(String k) {
+        throw new UnsupportedOperationException();
+    }
+
+    public byte[] getByteArray(String k) {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean getBoolean(String k, boolean d) {
+        throw new UnsupportedOperationException();
+    }
+
+    public int getInt(String k, int d) {
+        throw new UnsupportedOperationException();
+    }
+}
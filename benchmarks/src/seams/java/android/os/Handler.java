@@ -0,0 +1,47 @@
+package android.os;
+
+/**
+ * Stand-in for the platform class: posts runnables to a {@link Looper}. Messages aren't supported,
+ * the library only posts runnables.
+ */
+public class Handler {
+    private final Looper mLooper;
+
+    public Handler() {
+        this(Looper.myLooper());
+    }
+
+    public Handler(Looper looper) {
+        if (looper == null)
+            throw new IllegalStateException("no looper");
+        mLooper = looper;
+    }
+
+    public final boolean post(Runnable r) {
+        return postAtTime(r, SystemClock.uptimeMillis());
+    }
+
+    public final boolean postDelayed(Runnable r, long delayMillis) {
+        return postAtTime(r, SystemClock.uptimeMillis() + Math.max(0, delayMillis));
+    }
+
+    public final boolean postAtTime(Runnable r, long uptimeMillis) {
+        return mLooper.enqueue(this, r, uptimeMillis);
+    }
+
+    public final void removeCallbacks(Runnable r) {
+        if (r != null)
+            mLooper.remove(this, r);
+    }
+
+    // only null tokens are supported: removes every pending runnable of this handler
+    public final void removeCallbacksAndMessages(Object token) {
+        if (token != null)
+            throw new UnsupportedOperationException("tokens aren't supported");
+        mLooper.remove(this, null);
+    }
+
+    public final Looper getLooper() {
+        return mLooper;
+    }
+}
@@ -0,0 +1,66 @@
+package android.os;
+
+/**
+ * Stand-in for the platform class: a thread running a {@link Looper}.
+ */
+public class HandlerThread extends Thread {
+    private Looper mLooper;
+
+    public HandlerThread(String name) {
+        this(name, Process.THREAD_PRIORITY_DEFAULT);
+    }
+
+    public HandlerThread(String name, int priority) {
+        super(name);
+    }
+
+    @Override
+    public void run() {
+        Looper.prepare();
+        synchronized (this) {
+            mLooper = Looper.myLooper();
+            notifyAll();
+        }
+        Looper.loop();
+    }
+
+    /**
+     * Waits for the thread to start its looper.
+     *
+     * @return null if the thread wasn't started
+     */
+    public Looper getLooper() {
+        if (!isAlive() && mLooper == null)
+            return null;
+
+        boolean interrupted = false;
+        synchronized (this) {
+            while (isAlive() && mLooper == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        return mLooper;
+    }
+
+    public boolean quit() {
+        Looper looper = getLooper();
+        if (looper == null)
+            return false;
+        looper.quit();
+        return true;
+    }
+
+    public boolean quitSafely() {
+        Looper looper = getLooper();
+        if (looper == null)
+            return false;
+        looper.quitSafely();
+        return true;
+    }
+}
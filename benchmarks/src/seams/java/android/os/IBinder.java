@@ -0,0 +1,4 @@
+package android.os;
+
+/** Stand-in for the platform type. */
+public interface IBinder {}
@@ -0,0 +1,147 @@
+package android.os;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Stand-in for the platform class: runs the tasks posted by its handlers on its thread, in the
+ * order of their times on the {@link SystemClock#uptimeMillis()} clock and of their posting.
+ */
+public class Looper {
+    private static final ThreadLocal<Looper> sThreadLooper = new ThreadLocal<>();
+    private static Looper sMainLooper;
+
+    private final Thread mThread;
+    private final PriorityQueue<Task> mQueue = new PriorityQueue<>();
+    private long mNextSequence;
+    private boolean mQuitting;
+
+    private Looper(Thread thread) {
+        mThread = thread;
+    }
+
+    /**
+     * Makes a looper for the current thread, which then runs it with {@link #loop()}.
+     */
+    public static void prepare() {
+        if (sThreadLooper.get() != null)
+            throw new IllegalStateException("only one looper per thread");
+        sThreadLooper.set(new Looper(Thread.currentThread()));
+    }
+
+    public static Looper myLooper() {
+        return sThreadLooper.get();
+    }
+
+    /**
+     * There's no main thread off a device: the main looper runs on a daemon thread started on
+     * first use.
+     */
+    public static synchronized Looper getMainLooper() {
+        if (sMainLooper == null) {
+            HandlerThread thread = new HandlerThread("main");
+            thread.setDaemon(true);
+            thread.start();
+            sMainLooper = thread.getLooper();
+        }
+        return sMainLooper;
+    }
+
+    /**
+     * Runs the tasks of the current thread's looper until it quits.
+     */
+    public static void loop() {
+        Looper looper = myLooper();
+        if (looper == null)
+            throw new IllegalStateException("no looper on this thread");
+
+        Task task;
+        while ((task = looper.next()) != null) {
+            task.runnable.run();
+        }
+    }
+
+    public Thread getThread() {
+        return mThread;
+    }
+
+    // quits once the tasks that are due have run, later ones are dropped
+    public synchronized void quitSafely() {
+        long now = SystemClock.uptimeMillis();
+        Iterator<Task> tasks = mQueue.iterator();
+        while (tasks.hasNext()) {
+            if (tasks.next().when > now)
+                tasks.remove();
+        }
+        mQuitting = true;
+        notifyAll();
+    }
+
+    public synchronized void quit() {
+        mQueue.clear();
+        mQuitting = true;
+        notifyAll();
+    }
+
+    synchronized boolean enqueue(Handler handler, Runnable runnable, long when) {
+        if (mQuitting)
+            return false;
+
+        mQueue.add(new Task(handler, runnable, when, mNextSequence++));
+        notifyAll();
+        return true;
+    }
+
+    // removes the handler's tasks running the runnable, or all of them if it's null
+    synchronized void remove(Handler handler, Runnable runnable) {
+        Iterator<Task> tasks = mQueue.iterator();
+        while (tasks.hasNext()) {
+            Task task = tasks.next();
+            if (task.handler == handler && (runnable == null || task.runnable == runnable))
+                tasks.remove();
+        }
+    }
+
+    // waits for the next task that is due, or returns null once quitting with nothing due
+    private synchronized Task next() {
+        while (true) {
+            Task task = mQueue.peek();
+            long now = SystemClock.uptimeMillis();
+            if (task != null && task.when <= now)
+                return mQueue.poll();
+            if (mQuitting)
+                return null;
+
+            try {
+                if (task == null) {
+                    wait();
+                } else {
+                    wait(task.when - now);
+                }
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+    }
+
+    private static class Task implements Comparable<Task> {
+        final Handler handler;
+        final Runnable runnable;
+        final long when;
+        final long sequence;
+
+        Task(Handler handler, Runnable runnable, long when, long sequence) {
+            this.handler = handler;
+            this.runnable = runnable;
+            this.when = when;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (when != other.when)
+                return when < other.when ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package android.os;
+
+import java.util.UUID;
+
+/**
+ * Stand-in for the platform class: a UUID wrapper.
+ */
+public final class ParcelUuid {
+    private final UUID mUuid;
+
+    public ParcelUuid(UUID uuid) {
+        mUuid = uuid;
+    }
+
+    public static ParcelUuid fromString(String uuid) {
+        return new ParcelUuid(UUID.fromString(uuid));
+    }
+
+    public UUID getUuid() {
+        return mUuid;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        return object instanceof ParcelUuid && mUuid.equals(((ParcelUuid) object).mUuid);
+    }
+
+    @Override
+    public int hashCode() {
+        return mUuid.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return mUuid.toString();
+    }
+}
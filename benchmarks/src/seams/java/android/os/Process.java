@@ -0,0 +1,9 @@
+package android.os;
+
+/**
+ * Stand-in for the platform class. Priorities aren't applied to JVM threads.
+ */
+public class Process {
+    public static final int THREAD_PRIORITY_DEFAULT = 0;
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+}
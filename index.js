@@ -1,16 +1,42 @@
 import { useEffect, useState } from "react";
 import { NativeModules, DeviceEventEmitter } from "react-native";
 
+export type ProximityZone = "immediate" | "near" | "far";
 export type BLEUser = {
+  distance?: number,
   identified: boolean,
   peripheralId: string,
   proximity: number,
+  profile?: number[],
+  proximityZone?: ProximityZone,
   rssi: number,
   service: string,
+  txPower?: number,
   updateTime: string,
   uuid: string,
 };
-export type EventType = "bleStateChanged" | "discoveredUsers";
+export type EventType = "bleStateChanged" | "discoveredUsers" | "discoveredUsersDelta" | "scanCycleChanged" | "advertisingModeChanged";
+export type EventMode = "full" | "delta";
+export type ScanFilterMode = "none" | "filtered" | "hybrid";
+export type ScanFilter = {
+  deviceName?: string,
+  manufacturerData?: number[],
+  manufacturerDataMask?: number[],
+  manufacturerId?: number,
+  serviceData?: number[],
+  serviceDataMask?: number[],
+  serviceDataUuid?: string,
+  serviceUuid?: string,
+  serviceUuidMask?: string,
+};
+export type RssiFilterType = "eased" | "exponential" | "kalman" | "median";
+export type RssiFilterOptions = {
+  halfLifeMillis?: number,
+  maxAgeMillis?: number,
+  measurementNoise?: number,
+  processNoise?: number,
+  windowSize?: number,
+};
 export type BluetoothData = {
   isOn: boolean,
 };
@@ -19,7 +45,79 @@ export type DiscoverData = {
   usersChanged: boolean,
   uuid: string,
 };
-export type EventListener = ((data: BluetoothData) => void) | ((data: DiscoverData) => void);
+export type DiscoverDeltaData = {
+  added: BLEUser[],
+  changed: BLEUser[],
+  removed: string[],
+  reset: boolean,
+  seq: number,
+  usersChanged: boolean,
+  uuid: string,
+};
+export type ScanCycleData = {
+  churnRate: number,
+  scanForMillis: number,
+  scanning: boolean,
+  waitForMillis: number,
+};
+export type AdvertisingMode = "off" | "legacy" | "extended";
+export type AdvertisingModeData = {
+  mode: AdvertisingMode,
+};
+export type IdentityCacheStats = {
+  avoidedConnections: number,
+  hits: number,
+  misses: number,
+  size: number,
+};
+export type LatencyBucket = {
+  count: number,
+  le: number | null,
+};
+export type IdentificationLatency = {
+  buckets: LatencyBucket[],
+  count: number,
+  max: number,
+  mean: number,
+  min: number,
+  p50: number,
+  p90: number,
+  p99: number,
+};
+export type DiscoveryMetrics = {
+  advertiser: {
+    failures: number,
+    restarts: number,
+  },
+  bridgeEmit: {
+    count: number,
+    duration: IdentificationLatency,
+    maxUsers: number,
+    users: number,
+  },
+  elapsedMillis: number,
+  gatt: {
+    connect: IdentificationLatency,
+    discover: IdentificationLatency,
+    identify: IdentificationLatency,
+    read: IdentificationLatency,
+  },
+  registrySize: number,
+  scanResults: {
+    matched: number,
+    matchedPerSecond: number,
+    perSecond: number,
+    unmatched: number,
+    unmatchedPerSecond: number,
+  },
+  updateList: IdentificationLatency,
+};
+export type EventListener =
+  | ((data: BluetoothData) => void)
+  | ((data: DiscoverData) => void)
+  | ((data: DiscoverDeltaData) => void)
+  | ((data: ScanCycleData) => void)
+  | ((data: AdvertisingModeData) => void);
 
 export function useEventListener(
   eventType: EventType,
@@ -34,18 +132,60 @@ export function useEventListener(
 }
 
 export interface IDiscoveryModule {
+  getAdvertisingMode(): Promise<AdvertisingMode>;
+  getClosestUsers(count: number): Promise<BLEUser[]>;
+  getIdentificationLatency(): Promise<IdentificationLatency>;
+  getIdentityCacheStats(): Promise<IdentityCacheStats>;
+  getMetrics(): Promise<DiscoveryMetrics>;
+  getUsersWithProximityAtLeast(minProximity: number): Promise<BLEUser[]>;
   handleStateChange(state: number): void;
   initialize(uuid: string, service: string): Promise<string>;
   isBluetoothEnabled(): Promise<boolean>;
   isLocationEnabled(): Promise<boolean>;
+  requestResync(): Promise<true | string>;
+  resetMetrics(): Promise<true>;
+  setAdaptiveDutyCycle(
+    enabled: boolean,
+    minWaitMillis: number,
+    maxWaitMillis: number,
+    targetLatencyMillis: number
+  ): Promise<true | string>;
+  setAdvertisingProfile(profile: number[] | null): Promise<true | string>;
+  setBatchScanDelayMillis(batchScanDelayMillis: number): Promise<true | string>;
   setBluetoothOn(): Promise<boolean>;
   setBluetoothOff(): Promise<boolean>;
+  setCompanyId(companyId: number): Promise<true | string>;
+  setDistanceCalibration(
+    environmentFactor: number,
+    calibrationOffsets?: { [model: string]: number }
+  ): Promise<true | string>;
+  setEventMode(eventMode: EventMode): Promise<true | string>;
+  setExtendedAdvertising(extendedAdvertising: boolean): Promise<true | string>;
+  setMaxConcurrentGattConnections(
+    maxConcurrentGattConnections: number
+  ): Promise<true | string>;
   setPaused(paused: boolean): Promise<true | string>;
+  setRssiFilter(
+    type: RssiFilterType,
+    options?: RssiFilterOptions
+  ): Promise<true | string>;
+  setScanFilterMode(
+    scanFilterMode: ScanFilterMode,
+    unfilteredSweepInterval: number
+  ): Promise<true | string>;
+  setScanFilters(filters: ScanFilter[]): Promise<true | string>;
   setScanForSeconds(scanForSeconds: number): Promise<true | string>;
   setShouldAdvertise(shouldAdvertise: boolean): Promise<true | string>;
   setShouldDiscover(shouldDiscover: boolean): Promise<true | string>;
+  setShouldRenameAdapter(shouldRenameAdapter: boolean): Promise<true | string>;
+  setUpdateIntervalMillis(updateIntervalMillis: number): Promise<true | string>;
   setUserTimeoutInterval(userTimeoutInterval: number): Promise<true | string>;
   setWaitForSeconds(waitForSeconds: number): Promise<true | string>;
+  startRecording(
+    segmentKilobytes: number,
+    maxSegments: number
+  ): Promise<string>;
+  stopRecording(): Promise<true | string>;
   useEventListener(eventType: EventType, listener: (data: Data) => void): void;
 }
 